@@ -0,0 +1,228 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch.benchmark;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.hornetq.api.core.TransportConfiguration;
+import org.hornetq.core.config.Configuration;
+import org.hornetq.core.config.impl.ConfigurationImpl;
+import org.hornetq.core.remoting.impl.invm.InVMAcceptorFactory;
+import org.hornetq.core.remoting.impl.invm.InVMConnectorFactory;
+import org.hornetq.core.server.HornetQServer;
+import org.hornetq.core.server.HornetQServers;
+import org.hornetq.core.server.cluster.QueueConfiguration;
+import org.hornetq.jms.client.HornetQConnectionFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.shopzilla.spring.messaging.jms.mdp.batch.AcknowledgeStrategy;
+import com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListener;
+import com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer;
+import com.shopzilla.spring.messaging.jms.mdp.batch.FlushReason;
+import com.shopzilla.spring.messaging.jms.mdp.batch.SimpleBatchMetrics;
+
+
+/**
+ * Drives a {@link BatchMessageListenerContainer} against an embedded, in-VM HornetQ broker.
+ *
+ * <p>
+ * {@link #throughput()} sends a burst of {@value #BURST} messages and waits for the listener to
+ * receive all of them, reporting messages per second. {@link #flushLatency()} sends a single message
+ * and waits for it to reach the listener, which shows how long a lone message waits for its batch
+ * to be flushed. Each trial starts a broker and a container with one of every combination of the
+ * parameters; narrow them with <code>-p</code>, for example
+ * <code>java -jar target/benchmarks.jar -p batchSize=1000 -p acknowledgement=CLIENT</code>.
+ * </p>
+ *
+ * <p>
+ * Run with <code>-prof gc</code> to report the allocation rate. At the end of each trial the mean
+ * time batches took to fill, by flush reason, is printed from the container's metrics.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class BatchMessageListenerContainerBenchmark {
+
+    /** The number of messages sent by each invocation of the throughput benchmark. */
+    public static final int BURST = 10000;
+
+    private static final String QUEUE = "benchmarkQueue";
+
+    /** The session and acknowledgement configurations benchmarked. */
+    public enum Acknowledgement {
+        AUTO, CLIENT, CLIENT_ASYNC, DUPS_OK, TRANSACTED
+    }
+
+    @Param({ "1", "100", "1000" })
+    public int batchSize;
+
+    @Param({ "10", "1000" })
+    public int quietPeriod;
+
+    @Param({ "AUTO", "CLIENT", "CLIENT_ASYNC", "DUPS_OK", "TRANSACTED" })
+    public Acknowledgement acknowledgement;
+
+    @Param({ "128", "4096" })
+    public int messageSize;
+
+    private HornetQServer server;
+    private HornetQConnectionFactory connectionFactory;
+    private BatchMessageListenerContainer container;
+    private SimpleBatchMetrics metrics;
+    private Connection connection;
+    private Session session;
+    private MessageProducer producer;
+    private byte[] body;
+    private volatile CountDownLatch remaining;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Configuration configuration = new ConfigurationImpl();
+        configuration.setPersistenceEnabled(false);
+        configuration.setSecurityEnabled(false);
+        configuration.setJMXManagementEnabled(false);
+        configuration.getAcceptorConfigurations().add(new TransportConfiguration(InVMAcceptorFactory.class.getName()));
+        configuration.getQueueConfigurations().add(
+            new QueueConfiguration("jms.queue." + QUEUE, "jms.queue." + QUEUE, null, false));
+        this.server = HornetQServers.newHornetQServer(configuration, false);
+        this.server.start();
+
+        this.connectionFactory = new HornetQConnectionFactory(
+            new TransportConfiguration(InVMConnectorFactory.class.getName()));
+
+        this.connection = this.connectionFactory.createConnection();
+        this.session = this.connection.createSession(true, Session.SESSION_TRANSACTED);
+        this.producer = this.session.createProducer(this.session.createQueue(QUEUE));
+        this.producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+        this.body = new byte[this.messageSize];
+        Arrays.fill(this.body, (byte) 'x');
+
+        this.metrics = new SimpleBatchMetrics();
+        this.container = new BatchMessageListenerContainer();
+        this.container.setConnectionFactory(this.connectionFactory);
+        this.container.setDestinationName(QUEUE);
+        this.container.setBatchSize(this.batchSize);
+        this.container.setQuietPeriod(this.quietPeriod);
+        this.container.setMetrics(this.metrics);
+        switch (this.acknowledgement) {
+        case CLIENT:
+            this.container.setSessionAcknowledgeMode(Session.CLIENT_ACKNOWLEDGE);
+            break;
+        case CLIENT_ASYNC:
+            this.container.setAcknowledgeStrategy(AcknowledgeStrategy.ASYNC);
+            break;
+        case DUPS_OK:
+            this.container.setAcknowledgeStrategy(AcknowledgeStrategy.DUPS_OK);
+            break;
+        case TRANSACTED:
+            this.container.setSessionTransacted(true);
+            break;
+        default:
+            break;
+        }
+        this.container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                    final CountDownLatch latch = remaining;
+                    for (int i = 0; i < messages.size(); i++) {
+                        latch.countDown();
+                    }
+                }
+            });
+        this.container.afterPropertiesSet();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        try {
+            this.container.destroy();
+            this.connection.close();
+            this.connectionFactory.close();
+            this.server.stop();
+        } finally {
+            for (FlushReason reason : FlushReason.values()) {
+                if (this.metrics.getFlushCount(reason.name()) > 0) {
+                    System.out.println(String.format("%s: %d batches, mean fill time %.0f us", reason,
+                        this.metrics.getFlushCount(reason.name()), this.metrics.getFillTimeMean(reason.name())));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BURST)
+    public void throughput() throws Exception {
+        deliver(BURST);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void flushLatency() throws Exception {
+        deliver(1);
+    }
+
+    private void deliver(int messages) throws JMSException, InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(messages);
+        this.remaining = latch;
+        for (int i = 1; i <= messages; i++) {
+            BytesMessage message = this.session.createBytesMessage();
+            message.writeBytes(this.body);
+            this.producer.send(message);
+            if ((i % 1000) == 0) {
+                this.session.commit();
+            }
+        }
+        this.session.commit();
+        latch.await();
+    }
+}
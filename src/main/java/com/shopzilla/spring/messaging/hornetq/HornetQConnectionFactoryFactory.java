@@ -24,15 +24,35 @@
 package com.shopzilla.spring.messaging.hornetq;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.hornetq.api.core.Pair;
 import org.hornetq.api.core.TransportConfiguration;
+import org.hornetq.api.core.client.HornetQClient;
+import org.hornetq.api.core.client.loadbalance.FirstElementConnectionLoadBalancingPolicy;
+import org.hornetq.api.core.client.loadbalance.RandomConnectionLoadBalancingPolicy;
+import org.hornetq.api.core.client.loadbalance.RoundRobinConnectionLoadBalancingPolicy;
+import org.hornetq.core.remoting.impl.invm.InVMConnectorFactory;
+import org.hornetq.integration.transports.netty.NettyConnectorFactory;
+import org.hornetq.integration.transports.netty.TransportConstants;
 import org.hornetq.jms.client.HornetQConnectionFactory;
 import org.springframework.beans.factory.config.AbstractFactoryBean;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * This builds a {@link org.hornetq.jms.client.HornetQConnectionFactory} to handle connections to a HornetQ broker
  *
+ * <p>
+ * To spread connections across a cluster, specify either a list of 'servers,' each a live broker and
+ * optionally its backup, or the UDP group the cluster broadcasts on with 'discoveryAddress' and
+ * 'discoveryPort'. HornetQ then connects each new connection, and each new session, to the broker
+ * picked by the 'loadBalancingPolicy.'
+ * An in-VM connection takes precedence over discovery, discovery over a list of servers, and a list
+ * of servers over 'host' and 'port.'
+ * </p>
+ *
  * @author Josh Long
  * @since May 11, 2010
  *
@@ -45,6 +65,29 @@ public class HornetQConnectionFactoryFactory extends AbstractFactoryBean<HornetQ
     private int backupPort = -1;
     private boolean failoverOnServerShutdown = true;
     private int reconnectAttempts = 0;
+    private boolean inVm = false;
+    private int serverId = 0;
+    private String[] servers = null;
+    private String discoveryAddress = null;
+    private int discoveryPort = -1;
+    private String loadBalancingPolicy = null;
+    private boolean tcpNoDelay = TransportConstants.DEFAULT_TCP_NODELAY;
+    private int tcpSendBufferSize = TransportConstants.DEFAULT_TCP_SENDBUFFER_SIZE;
+    private int tcpReceiveBufferSize = TransportConstants.DEFAULT_TCP_RECEIVEBUFFER_SIZE;
+    private boolean useNio = TransportConstants.DEFAULT_USE_NIO_CLIENT;
+    private boolean blockOnDurableSend = HornetQClient.DEFAULT_BLOCK_ON_DURABLE_SEND;
+    private boolean blockOnNonDurableSend = HornetQClient.DEFAULT_BLOCK_ON_NON_DURABLE_SEND;
+    private boolean blockOnAcknowledge = HornetQClient.DEFAULT_BLOCK_ON_ACKNOWLEDGE;
+    private int consumerWindowSize = HornetQClient.DEFAULT_CONSUMER_WINDOW_SIZE;
+    private int producerWindowSize = HornetQClient.DEFAULT_PRODUCER_WINDOW_SIZE;
+    private int confirmationWindowSize = HornetQClient.DEFAULT_CONFIRMATION_WINDOW_SIZE;
+    private int dupsOKBatchSize = HornetQClient.DEFAULT_ACK_BATCH_SIZE;
+    private int transactionBatchSize = HornetQClient.DEFAULT_ACK_BATCH_SIZE;
+    private int minLargeMessageSize = HornetQClient.DEFAULT_MIN_LARGE_MESSAGE_SIZE;
+    private boolean cacheLargeMessagesClient = HornetQClient.DEFAULT_CACHE_LARGE_MESSAGE_CLIENT;
+    private boolean useGlobalPools = HornetQClient.DEFAULT_USE_GLOBAL_POOLS;
+    private int threadPoolMaxSize = HornetQClient.DEFAULT_THREAD_POOL_MAX_SIZE;
+    private int scheduledThreadPoolMaxSize = HornetQClient.DEFAULT_SCHEDULED_THREAD_POOL_MAX_SIZE;
 
     /**
      * Builds a {@link org.hornetq.api.core.TransportConfiguration}
@@ -63,29 +106,135 @@ public class HornetQConnectionFactoryFactory extends AbstractFactoryBean<HornetQ
         }
 
         Map<String, Object> parms = new HashMap<String, Object>();
-        parms.put("host", host);
-        parms.put("port", port);
+        parms.put(TransportConstants.HOST_PROP_NAME, host);
+        parms.put(TransportConstants.PORT_PROP_NAME, port);
+        parms.put(TransportConstants.TCP_NODELAY_PROPNAME, this.tcpNoDelay);
+        parms.put(TransportConstants.TCP_SENDBUFFER_SIZE_PROPNAME, this.tcpSendBufferSize);
+        parms.put(TransportConstants.TCP_RECEIVEBUFFER_SIZE_PROPNAME, this.tcpReceiveBufferSize);
+        parms.put(TransportConstants.USE_NIO_PROP_NAME, this.useNio);
 
-        return new TransportConfiguration("org.hornetq.integration.transports.netty.NettyConnectorFactory",
-            parms);
+        return new TransportConfiguration(NettyConnectorFactory.class.getName(), parms);
     }
 
-    private HornetQConnectionFactory factoryHornetQConnectionFactory() throws Exception {
-        TransportConfiguration main = factoryTransportConfiguration(this.host, this.port);
-        TransportConfiguration backup = factoryTransportConfiguration(this.backupHost,
-                this.backupPort);
+    /**
+     * Builds a {@link org.hornetq.api.core.TransportConfiguration} for a broker embedded in this JVM
+     *
+     * @return a {@link org.hornetq.api.core.TransportConfiguration} that connects to the broker's in-VM acceptor
+     */
+    private TransportConfiguration factoryInVMTransportConfiguration() {
+        Map<String, Object> parms = new HashMap<String, Object>();
+        parms.put(org.hornetq.core.remoting.impl.invm.TransportConstants.SERVER_ID_PROP_NAME, this.serverId);
+
+        return new TransportConfiguration(InVMConnectorFactory.class.getName(), parms);
+    }
+
+    /**
+     * Builds a live and backup pair of {@link org.hornetq.api.core.TransportConfiguration}s for each of the 'servers'
+     *
+     * @return the pairs, the backup of each being <code>null</code> if it has none
+     *
+     * @throws Exception thrown if a server is not in the form 'host:port' or 'host:port/backupHost:backupPort'
+     */
+    private List<Pair<TransportConfiguration, TransportConfiguration>> factoryStaticConnectors()
+        throws Exception {
+        List<Pair<TransportConfiguration, TransportConfiguration>> connectors = new ArrayList<Pair<TransportConfiguration, TransportConfiguration>>();
+
+        for (String entry : this.servers) {
+            // a comma-separated string is passed as a single entry
+            for (String server : StringUtils.split(entry, ',')) {
+                if (StringUtils.isBlank(server)) {
+                    continue;
+                }
+
+                String[] liveAndBackup = StringUtils.split(server.trim(), '/');
+                if ((liveAndBackup.length < 1) || (liveAndBackup.length > 2)) {
+                    throw new IllegalArgumentException("'" + server + "' is not a server of the form 'host:port' or 'host:port/backupHost:backupPort'");
+                }
+
+                TransportConfiguration live = factoryServerTransportConfiguration(liveAndBackup[0], server);
+                TransportConfiguration backup = (liveAndBackup.length > 1) ? factoryServerTransportConfiguration(liveAndBackup[1], server) : null;
+                connectors.add(new Pair<TransportConfiguration, TransportConfiguration>(live, backup));
+            }
+        }
+
+        if (connectors.isEmpty()) {
+            throw new IllegalArgumentException("'servers' does not list any server");
+        }
 
+        return connectors;
+    }
+
+    private TransportConfiguration factoryServerTransportConfiguration(String hostAndPort, String server)
+        throws Exception {
+        int colon = hostAndPort.lastIndexOf(':');
+        int port = (colon > 0) ? NumberUtils.toInt(hostAndPort.substring(colon + 1).trim(), -1) : -1;
+        TransportConfiguration configuration = (colon > 0) ? factoryTransportConfiguration(hostAndPort.substring(0, colon).trim(), port) : null;
+
+        if (configuration == null) {
+            throw new IllegalArgumentException("'" + server + "' is not a server of the form 'host:port' or 'host:port/backupHost:backupPort'");
+        }
+
+        return configuration;
+    }
+
+    /**
+     * Resolves the 'loadBalancingPolicy' to the name of a {@link org.hornetq.api.core.client.loadbalance.ConnectionLoadBalancingPolicy} class
+     */
+    private String resolveLoadBalancingPolicyClassName() {
+        if ("round-robin".equals(this.loadBalancingPolicy)) {
+            return RoundRobinConnectionLoadBalancingPolicy.class.getName();
+        } else if ("random".equals(this.loadBalancingPolicy)) {
+            return RandomConnectionLoadBalancingPolicy.class.getName();
+        } else if ("sticky".equals(this.loadBalancingPolicy)) {
+            return FirstElementConnectionLoadBalancingPolicy.class.getName();
+        }
+
+        return this.loadBalancingPolicy;
+    }
+
+    private HornetQConnectionFactory factoryHornetQConnectionFactory() throws Exception {
         HornetQConnectionFactory conn;
 
-        if (main == null) {
-            throw new RuntimeException(
-                "both the configuration for the main and backup servers are null! You must specify at least 'host' and 'port.'");
+        if (this.inVm) {
+            conn = new HornetQConnectionFactory(factoryInVMTransportConfiguration());
+        } else if (StringUtils.isNotEmpty(this.discoveryAddress)) {
+            if (this.discoveryPort < 1) {
+                throw new RuntimeException("'discoveryAddress' was specified without a 'discoveryPort.'");
+            }
+            conn = new HornetQConnectionFactory(this.discoveryAddress, this.discoveryPort);
+        } else if ((this.servers != null) && (this.servers.length > 0)) {
+            conn = new HornetQConnectionFactory(factoryStaticConnectors());
+        } else {
+            TransportConfiguration main = factoryTransportConfiguration(this.host, this.port);
+            TransportConfiguration backup = factoryTransportConfiguration(this.backupHost, this.backupPort);
+
+            if (main == null) {
+                throw new RuntimeException(
+                    "both the configuration for the main and backup servers are null! You must specify at least 'host' and 'port,' 'servers,' 'discoveryAddress' or 'inVm.'");
+            }
+
+            conn = (backup == null) ? new HornetQConnectionFactory(main)
+                                    : new HornetQConnectionFactory(main, backup);
         }
 
-        conn = (backup == null) ? new HornetQConnectionFactory(main)
-                                : new HornetQConnectionFactory(main, backup);
+        if (this.loadBalancingPolicy != null) {
+            conn.setConnectionLoadBalancingPolicyClassName(resolveLoadBalancingPolicyClassName());
+        }
         conn.setFailoverOnServerShutdown(this.failoverOnServerShutdown);
         conn.setReconnectAttempts(this.reconnectAttempts);
+        conn.setBlockOnDurableSend(this.blockOnDurableSend);
+        conn.setBlockOnNonDurableSend(this.blockOnNonDurableSend);
+        conn.setBlockOnAcknowledge(this.blockOnAcknowledge);
+        conn.setConsumerWindowSize(this.consumerWindowSize);
+        conn.setProducerWindowSize(this.producerWindowSize);
+        conn.setConfirmationWindowSize(this.confirmationWindowSize);
+        conn.setDupsOKBatchSize(this.dupsOKBatchSize);
+        conn.setTransactionBatchSize(this.transactionBatchSize);
+        conn.setMinLargeMessageSize(this.minLargeMessageSize);
+        conn.setCacheLargeMessagesClient(this.cacheLargeMessagesClient);
+        conn.setUseGlobalPools(this.useGlobalPools);
+        conn.setThreadPoolMaxSize(this.threadPoolMaxSize);
+        conn.setScheduledThreadPoolMaxSize(this.scheduledThreadPoolMaxSize);
 
         return conn;
     }
@@ -124,4 +273,227 @@ public class HornetQConnectionFactoryFactory extends AbstractFactoryBean<HornetQ
     public void setReconnectAttempts(final int reconnectAttempts) {
         this.reconnectAttempts = reconnectAttempts;
     }
+
+    /**
+     * Specifies whether to connect to a broker embedded in this JVM through its in-VM acceptor, which
+     * passes messages without going through the network stack or serializing them. The host, port
+     * and backup settings are ignored.
+     *
+     * @param inVm <code>true</code> to connect in-VM; the default is <code>false</code>
+     */
+    public void setInVm(final boolean inVm) {
+        this.inVm = inVm;
+    }
+
+    /**
+     * Specifies the id of the in-VM acceptor to connect to, when connecting in-VM.
+     *
+     * @param serverId the id of the acceptor; the default is 0
+     */
+    public void setServerId(final int serverId) {
+        this.serverId = serverId;
+    }
+
+    /**
+     * Specifies the brokers to spread connections across, each as 'host:port,' or as
+     * 'host:port/backupHost:backupPort' if it has a backup.
+     *
+     * @param servers the brokers; entries may themselves be comma-separated lists of brokers
+     */
+    public void setServers(final String[] servers) {
+        this.servers = servers;
+    }
+
+    /**
+     * Specifies the UDP multicast address a cluster broadcasts its brokers on, to discover the brokers
+     * to connect to rather than listing them.
+     *
+     * @param discoveryAddress the multicast address of the cluster's broadcast group
+     */
+    public void setDiscoveryAddress(final String discoveryAddress) {
+        this.discoveryAddress = discoveryAddress;
+    }
+
+    /**
+     * Specifies the UDP port a cluster broadcasts its brokers on.
+     *
+     * @param discoveryPort the port of the cluster's broadcast group
+     */
+    public void setDiscoveryPort(final int discoveryPort) {
+        this.discoveryPort = discoveryPort;
+    }
+
+    /**
+     * Specifies how a broker is picked for each new connection and session, when there is more than one.
+     *
+     * @param loadBalancingPolicy 'round-robin,' 'random,' 'sticky' to always use the first broker, or the name of a {@link org.hornetq.api.core.client.loadbalance.ConnectionLoadBalancingPolicy}
+     *        class; the default is HornetQ's, round-robin
+     */
+    public void setLoadBalancingPolicy(final String loadBalancingPolicy) {
+        this.loadBalancingPolicy = loadBalancingPolicy;
+    }
+
+    /**
+     * Specifies whether Nagle's algorithm is disabled on the connection, so that small writes are
+     * sent at once rather than coalesced.
+     *
+     * @param tcpNoDelay <code>false</code> to coalesce small writes; the default is <code>true</code>
+     */
+    public void setTcpNoDelay(final boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * Specifies the size of the socket's send buffer.
+     *
+     * @param tcpSendBufferSize the size in bytes; the default is 32 KB
+     */
+    public void setTcpSendBufferSize(final int tcpSendBufferSize) {
+        this.tcpSendBufferSize = tcpSendBufferSize;
+    }
+
+    /**
+     * Specifies the size of the socket's receive buffer.
+     *
+     * @param tcpReceiveBufferSize the size in bytes; the default is 32 KB
+     */
+    public void setTcpReceiveBufferSize(final int tcpReceiveBufferSize) {
+        this.tcpReceiveBufferSize = tcpReceiveBufferSize;
+    }
+
+    /**
+     * Specifies whether the connection uses non-blocking I/O rather than a thread blocked reading it.
+     *
+     * @param useNio <code>true</code> to use NIO; the default is <code>false</code>
+     */
+    public void setUseNio(final boolean useNio) {
+        this.useNio = useNio;
+    }
+
+    /**
+     * Specifies whether sending a persistent message outside a transaction waits for the broker to
+     * confirm it. Turning this off lets a producer pipeline its sends, at the risk of losing those
+     * not yet received by the broker if the connection fails.
+     *
+     * @param blockOnDurableSend <code>false</code> to send persistent messages asynchronously; the default is <code>true</code>
+     */
+    public void setBlockOnDurableSend(final boolean blockOnDurableSend) {
+        this.blockOnDurableSend = blockOnDurableSend;
+    }
+
+    /**
+     * Specifies whether sending a non-persistent message waits for the broker to confirm it.
+     *
+     * @param blockOnNonDurableSend <code>true</code> to wait for confirmation; the default is <code>false</code>
+     */
+    public void setBlockOnNonDurableSend(final boolean blockOnNonDurableSend) {
+        this.blockOnNonDurableSend = blockOnNonDurableSend;
+    }
+
+    /**
+     * Specifies whether acknowledging a message waits for the broker to confirm it.
+     *
+     * @param blockOnAcknowledge <code>true</code> to wait for confirmation; the default is <code>false</code>
+     */
+    public void setBlockOnAcknowledge(final boolean blockOnAcknowledge) {
+        this.blockOnAcknowledge = blockOnAcknowledge;
+    }
+
+    /**
+     * Specifies how many bytes of messages the broker may send a consumer ahead of it receiving them.
+     * Larger windows let a busy consumer receive without waiting on the network, but leave other
+     * consumers of the queue idle while messages sit in one consumer's buffer.
+     *
+     * @param consumerWindowSize the size in bytes, 0 to not buffer, or -1 for no limit; the default is 1 MB
+     */
+    public void setConsumerWindowSize(final int consumerWindowSize) {
+        this.consumerWindowSize = consumerWindowSize;
+    }
+
+    /**
+     * Specifies how many bytes of messages a producer may send before the broker grants it more credit.
+     *
+     * @param producerWindowSize the size in bytes, or -1 for no limit; the default is 1 MB
+     */
+    public void setProducerWindowSize(final int producerWindowSize) {
+        this.producerWindowSize = producerWindowSize;
+    }
+
+    /**
+     * Specifies how many bytes of commands the client buffers for resending after a failover.
+     *
+     * @param confirmationWindowSize the size in bytes, or -1 to not buffer; the default is -1
+     */
+    public void setConfirmationWindowSize(final int confirmationWindowSize) {
+        this.confirmationWindowSize = confirmationWindowSize;
+    }
+
+    /**
+     * Specifies how many bytes of acknowledgements a <code>DUPS_OK_ACKNOWLEDGE</code> session batches
+     * before sending them to the broker.
+     *
+     * @param dupsOKBatchSize the size in bytes; the default is 1 MB
+     */
+    public void setDupsOKBatchSize(final int dupsOKBatchSize) {
+        this.dupsOKBatchSize = dupsOKBatchSize;
+    }
+
+    /**
+     * Specifies how many bytes of acknowledgements a transacted session batches before sending them
+     * to the broker ahead of the commit.
+     *
+     * @param transactionBatchSize the size in bytes; the default is 1 MB
+     */
+    public void setTransactionBatchSize(final int transactionBatchSize) {
+        this.transactionBatchSize = transactionBatchSize;
+    }
+
+    /**
+     * Specifies the size from which a message is sent and received in chunks, as a large message.
+     *
+     * @param minLargeMessageSize the size in bytes; the default is 100 KB
+     */
+    public void setMinLargeMessageSize(final int minLargeMessageSize) {
+        this.minLargeMessageSize = minLargeMessageSize;
+    }
+
+    /**
+     * Specifies whether the body of a large message is cached in a temporary file as it is received,
+     * so that it can be read more than once.
+     *
+     * @param cacheLargeMessagesClient <code>true</code> to cache large messages; the default is <code>false</code>
+     */
+    public void setCacheLargeMessagesClient(final boolean cacheLargeMessagesClient) {
+        this.cacheLargeMessagesClient = cacheLargeMessagesClient;
+    }
+
+    /**
+     * Specifies whether the connection factory uses the thread pools shared by every client in the
+     * JVM, or its own sized by the thread pool settings.
+     *
+     * @param useGlobalPools <code>false</code> to use its own pools; the default is <code>true</code>
+     */
+    public void setUseGlobalPools(final boolean useGlobalPools) {
+        this.useGlobalPools = useGlobalPools;
+    }
+
+    /**
+     * Specifies the size of the connection factory's own thread pool, which delivers messages to
+     * asynchronous listeners.
+     *
+     * @param threadPoolMaxSize the number of threads, or -1 for no limit; the default is -1
+     */
+    public void setThreadPoolMaxSize(final int threadPoolMaxSize) {
+        this.threadPoolMaxSize = threadPoolMaxSize;
+    }
+
+    /**
+     * Specifies the size of the connection factory's own scheduled thread pool, which sends pings and
+     * times out calls.
+     *
+     * @param scheduledThreadPoolMaxSize the number of threads; the default is 5
+     */
+    public void setScheduledThreadPoolMaxSize(final int scheduledThreadPoolMaxSize) {
+        this.scheduledThreadPoolMaxSize = scheduledThreadPoolMaxSize;
+    }
 }
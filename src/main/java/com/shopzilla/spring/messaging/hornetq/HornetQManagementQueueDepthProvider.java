@@ -0,0 +1,104 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.hornetq;
+
+import com.shopzilla.spring.messaging.jms.mdp.batch.QueueDepthProvider;
+import org.hornetq.api.core.management.ResourceNames;
+import org.hornetq.api.jms.HornetQJMSClient;
+import org.hornetq.api.jms.management.JMSManagementHelper;
+import org.springframework.jms.support.JmsUtils;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+
+/**
+ * A {@link com.shopzilla.spring.messaging.jms.mdp.batch.QueueDepthProvider} that asks the HornetQ
+ * broker for the <code>messageCount</code> attribute of a JMS queue through the management queue.
+ * Unlike browsing, this costs a single request/reply regardless of the size of the backlog. The user
+ * of the connection must be allowed to send management messages.
+ */
+public class HornetQManagementQueueDepthProvider implements QueueDepthProvider {
+
+    private String managementQueueName = "hornetq.management";
+    private long replyTimeout = 5000;
+
+    public long getQueueDepth(final Connection connection, final Queue queue)
+        throws JMSException {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        TemporaryQueue replyQueue = null;
+        MessageConsumer consumer = null;
+        try {
+            replyQueue = session.createTemporaryQueue();
+            consumer = session.createConsumer(replyQueue);
+
+            Message request = session.createMessage();
+            request.setJMSReplyTo(replyQueue);
+            JMSManagementHelper.putAttribute(request, ResourceNames.JMS_QUEUE + queue.getQueueName(), "messageCount");
+
+            MessageProducer producer = session.createProducer(HornetQJMSClient.createQueue(this.managementQueueName));
+            try {
+                producer.send(request);
+            } finally {
+                JmsUtils.closeMessageProducer(producer);
+            }
+
+            Message reply = consumer.receive(this.replyTimeout);
+            if ((reply == null) || !JMSManagementHelper.hasOperationSucceeded(reply)) {
+                return -1;
+            }
+
+            return ((Number) JMSManagementHelper.getResult(reply)).longValue();
+        } catch (JMSException e) {
+            throw e;
+        } catch (Exception e) {
+            JMSException jmsException = new JMSException("could not read the message count of " + queue);
+            jmsException.setLinkedException(e);
+            throw jmsException;
+        } finally {
+            JmsUtils.closeMessageConsumer(consumer);
+            if (replyQueue != null) {
+                try {
+                    replyQueue.delete();
+                } catch (JMSException e) {
+                    // the temporary queue goes away with the connection anyway
+                }
+            }
+            JmsUtils.closeSession(session);
+        }
+    }
+
+    public void setManagementQueueName(final String managementQueueName) {
+        this.managementQueueName = managementQueueName;
+    }
+
+    public void setReplyTimeout(final long replyTimeout) {
+        this.replyTimeout = replyTimeout;
+    }
+}
@@ -37,7 +37,10 @@ import org.w3c.dom.Element;
  * This configures a no-frills {@link javax.jms.ConnectionFactory} for JBoss's HornetQ message broker.
  * This, in tandem with the META-INF/spring.(handlers|schemas) files, teaches Spring how to handle a
  * given namespace. You may specify a primary and a backup host for the message queue using the
- * 'host,' 'port,' 'backup-host,' and 'backup-port' properties
+ * 'host,' 'port,' 'backup-host,' and 'backup-port' properties, spread connections across a cluster with
+ * 'servers' or 'discovery-address' and 'load-balancing-policy,' or connect to an embedded broker with
+ * 'in-vm,' and tune its Netty transport, its flow control, acknowledgement
+ * batching, large messages and thread pools with the other attributes of the element
  *
  * @author Josh Long
  * @since May 11, 2010
@@ -63,8 +66,31 @@ public class HornetQNamespaceHandler extends NamespaceHandlerSupport {
             szNamespaceUtils.setValueIfAttributeDefined(builder, element, "backup-host", "backupHost");
             szNamespaceUtils.setValueIfAttributeDefined(builder, element, "port", "port");
             szNamespaceUtils.setValueIfAttributeDefined(builder, element, "backup-port", "backupPort");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "servers", "servers");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "discovery-address", "discoveryAddress");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "discovery-port", "discoveryPort");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "load-balancing-policy", "loadBalancingPolicy");
             szNamespaceUtils.setValueIfAttributeDefined(builder, element, "reconnect-attempts", "reconnectAttempts");
             szNamespaceUtils.setValueIfAttributeDefined(builder, element, "failover-on-server-shutdown", "failoverOnServerShutdown");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "in-vm", "inVm");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "server-id", "serverId");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "tcp-no-delay", "tcpNoDelay");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "tcp-send-buffer-size", "tcpSendBufferSize");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "tcp-receive-buffer-size", "tcpReceiveBufferSize");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "use-nio", "useNio");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "block-on-durable-send", "blockOnDurableSend");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "block-on-non-durable-send", "blockOnNonDurableSend");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "block-on-acknowledge", "blockOnAcknowledge");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "consumer-window-size", "consumerWindowSize");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "producer-window-size", "producerWindowSize");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "confirmation-window-size", "confirmationWindowSize");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "dups-ok-batch-size", "dupsOKBatchSize");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "transaction-batch-size", "transactionBatchSize");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "min-large-message-size", "minLargeMessageSize");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "cache-large-messages-client", "cacheLargeMessagesClient");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "use-global-pools", "useGlobalPools");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "thread-pool-max-size", "threadPoolMaxSize");
+            szNamespaceUtils.setValueIfAttributeDefined(builder, element, "scheduled-thread-pool-max-size", "scheduledThreadPoolMaxSize");
             return builder.getBeanDefinition();
         }
     }
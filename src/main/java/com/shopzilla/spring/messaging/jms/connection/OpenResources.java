@@ -0,0 +1,144 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.connection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import javax.jms.ConnectionConsumer;
+import javax.jms.MessageConsumer;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.util.ClassUtils;
+
+/**
+ * The sessions, connection consumers, consumers and browsers a caller created through a connection
+ * or session it was handed, which are closed along with it. Each is handed to the caller as a proxy
+ * that forgets it once the caller closes it, so that a connection or session in use for a long time
+ * does not keep every one it ever created.
+ */
+class OpenResources {
+
+    static final Log log = LogFactory.getLog(OpenResources.class);
+
+    private final Set<Object> open = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()); // guarded by this
+
+    /**
+     * Remembers a resource until it is closed.
+     *
+     * @return the proxy to hand to the caller in place of the resource
+     */
+    Object track(Object resource) {
+        if (resource == null) {
+            return null;
+        }
+        synchronized (this) {
+            this.open.add(resource);
+        }
+
+        final List<Class<?>> interfaces = new ArrayList<Class<?>>();
+        for (Class<?> type : ClassUtils.getAllInterfacesAsSet(resource)) {
+            if (type.getName().startsWith("javax.jms.")) {
+                interfaces.add(type);
+            }
+        }
+        return Proxy.newProxyInstance(getClass().getClassLoader(), interfaces.toArray(new Class<?>[interfaces.size()]),
+            new ResourceHandler(resource));
+    }
+
+    /**
+     * Closes the resources the caller left open.
+     */
+    void close() {
+        final List<Object> closing;
+        synchronized (this) {
+            closing = new ArrayList<Object>(this.open);
+            this.open.clear();
+        }
+        for (Object resource : closing) {
+            try {
+                if (resource instanceof Session) {
+                    ((Session) resource).close();
+                } else if (resource instanceof ConnectionConsumer) {
+                    ((ConnectionConsumer) resource).close();
+                } else if (resource instanceof MessageConsumer) {
+                    ((MessageConsumer) resource).close();
+                } else {
+                    ((QueueBrowser) resource).close();
+                }
+            } catch (Throwable e) {
+                log.debug("Could not close " + resource + " left open", e);
+            }
+        }
+    }
+
+    private synchronized void closed(Object resource) {
+        this.open.remove(resource);
+    }
+
+    /**
+     * A resource handed to the caller, which is forgotten when the caller closes it.
+     */
+    private class ResourceHandler implements InvocationHandler {
+
+        private final Object resource;
+
+        ResourceHandler(Object resource) {
+            this.resource = resource;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "Tracked " + this.resource;
+            } else if (name.equals("close")) {
+                closed(this.resource);
+            }
+
+            final Object result;
+            try {
+                result = method.invoke(this.resource, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+            // XASession.getSession() may return the session itself
+            return (result == this.resource) ? proxy : result;
+        }
+    }
+}
@@ -0,0 +1,802 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.connection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.XAConnection;
+import javax.jms.XASession;
+
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * A {@link UserCredentialsXAConnectionFactoryAdapter} that pools XA connections, and caches the XA
+ * sessions of each connection and the producers of each session, so that a unit of work does not
+ * pay for a TCP connect and authentication with the broker.
+ *
+ * <p>
+ * There is a pool for each user and password XA connections are created with, holding at most
+ * {@link #setMaxConnections(int) maxConnections}. A connection is lent to one caller at a time;
+ * closing it returns it to the pool, closing any of its sessions and connection consumers the caller
+ * left open. Stopping a lent connection has no effect, as the connection is started for the callers
+ * it is lent to later. When every
+ * connection is lent, a caller waits up to {@link #setMaxWait(long) maxWait} for one to be returned.
+ * Connections idle for longer than {@link #setMaxIdleTime(long) maxIdleTime} are closed, and a
+ * connection that reported an exception to its exception listener, or that fails
+ * {@link #setValidateOnBorrow(boolean) validation}, is closed instead of being lent again.
+ * </p>
+ *
+ * <p>
+ * The session of a lent XA session is the XA session itself, so it is cached in the same way.
+ * Closing an XA session returns it to its connection's cache, after closing the consumers and
+ * browsers created on it; its producers are kept, and reset to the default delivery settings. A
+ * session closed within a transaction synchronized by Spring, as with a JtaTransactionManager, is
+ * only returned once the transaction completes, as its XA resource may still be enlisted. Sessions
+ * closed in transactions that Spring does not know about are returned at once, so they must only be
+ * closed once their transaction has completed.
+ * </p>
+ *
+ * <p>
+ * Client IDs cannot be set on pooled connections. Non-XA sessions of a pooled connection are not
+ * cached. Non-XA connections are created by the target connection factory as before, and are not
+ * pooled. The
+ * {@link #setConnectionCacheSize(int) connection cache} of the adapter is not needed, as it would
+ * keep pooled connections lent while they are idle.
+ * </p>
+ */
+public class PooledXAConnectionFactory extends UserCredentialsXAConnectionFactoryAdapter {
+
+    static final org.apache.commons.logging.Log log = LogFactory.getLog(PooledXAConnectionFactory.class);
+
+    /** The default largest number of connections pooled for each user. */
+    static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    /** The default largest number of idle sessions cached for each connection. */
+    static final int DEFAULT_MAX_IDLE_SESSIONS = 10;
+
+    /** The default time, in ms, to wait for a pooled connection. */
+    static final long DEFAULT_MAX_WAIT = 5000;
+
+    /** The default time, in ms, a connection may be idle before it is closed. */
+    static final long DEFAULT_MAX_IDLE_TIME = 5 * 60 * 1000;
+
+    /** The default time, in ms, between checks for idle connections. */
+    static final long DEFAULT_EVICTION_INTERVAL = 30 * 1000;
+
+    int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    int maxIdleSessions = DEFAULT_MAX_IDLE_SESSIONS;
+    long maxWait = DEFAULT_MAX_WAIT;
+    long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+    long evictionInterval = DEFAULT_EVICTION_INTERVAL;
+    boolean validateOnBorrow = true;
+
+    private final Map<Credentials, Pool> pools = new HashMap<Credentials, Pool>(); // guarded by "pools"
+    private boolean active = true; // guarded by "pools"
+    private ThreadPoolTaskScheduler evictor;
+
+    @Override
+    public void afterPropertiesSet() {
+        super.afterPropertiesSet();
+
+        if (maxConnections < 1) {
+            throw new java.lang.IllegalStateException("maxConnections must be at least 1");
+        }
+
+        if (maxIdleSessions < 0) {
+            throw new java.lang.IllegalStateException("maxIdleSessions must not be negative");
+        }
+
+        if ((maxIdleTime > 0) && (evictionInterval > 0)) {
+            ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+            scheduler.setThreadNamePrefix("PooledXAConnectionFactory-");
+            scheduler.setDaemon(true);
+            scheduler.afterPropertiesSet();
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        evictIdleConnections();
+                    }
+                }, this.evictionInterval);
+            this.evictor = scheduler;
+        }
+    }
+
+    /**
+     * Closes the idle connections; connections still lent are closed as they are returned.
+     */
+    @Override
+    public void destroy() {
+        super.destroy();
+
+        final List<Pool> closing;
+        synchronized (this.pools) {
+            this.active = false;
+            closing = new ArrayList<Pool>(this.pools.values());
+            this.pools.clear();
+        }
+        if (this.evictor != null) {
+            this.evictor.shutdown();
+            this.evictor = null;
+        }
+        for (Pool pool : closing) {
+            pool.close();
+        }
+    }
+
+    /**
+     * Lends a pooled connection for the given credentials, creating one if there is no idle one.
+     */
+    @Override
+    protected XAConnection doCreateXAConnection(String user, String pw) throws JMSException {
+        final Credentials credentials = new Credentials(user, pw);
+        Pool pool;
+        synchronized (this.pools) {
+            if (!this.active) {
+                throw new IllegalStateException("PooledXAConnectionFactory has been destroyed");
+            }
+            pool = this.pools.get(credentials);
+            if (pool == null) {
+                pool = new Pool(credentials);
+                this.pools.put(credentials, pool);
+            }
+        }
+        return pool.borrow();
+    }
+
+    /**
+     * Creates a connection for a pool through the target connection factory.
+     */
+    XAConnection createPhysicalXAConnection(Credentials credentials) throws JMSException {
+        return super.doCreateXAConnection(credentials.user, credentials.pw);
+    }
+
+    /**
+     * Closes the connections that have been idle for longer than the maximum idle time.
+     */
+    public void evictIdleConnections() {
+        final long idleSince = System.currentTimeMillis() - this.maxIdleTime;
+        for (Pool pool : getPools()) {
+            pool.evict(idleSince);
+        }
+    }
+
+    /**
+     * Returns the number of connections lent and not yet returned.
+     *
+     * @return the number of connections, over all users
+     */
+    public int getActiveConnectionCount() {
+        int count = 0;
+        for (Pool pool : getPools()) {
+            count += pool.getActiveCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of connections waiting in the pools.
+     *
+     * @return the number of connections, over all users
+     */
+    public int getIdleConnectionCount() {
+        int count = 0;
+        for (Pool pool : getPools()) {
+            count += pool.getIdleCount();
+        }
+        return count;
+    }
+
+    private List<Pool> getPools() {
+        synchronized (this.pools) {
+            return new ArrayList<Pool>(this.pools.values());
+        }
+    }
+
+    boolean isActive() {
+        synchronized (this.pools) {
+            return this.active;
+        }
+    }
+
+    /**
+     * Specifies the largest number of connections pooled for each user, lent or idle.
+     *
+     * @param maxConnections
+     *        the number of connections; the default is 8
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Specifies the largest number of idle sessions cached for each connection. Sessions closed once
+     * the cache is full are closed for real.
+     *
+     * @param maxIdleSessions
+     *        the number of sessions; the default is 10
+     */
+    public void setMaxIdleSessions(int maxIdleSessions) {
+        this.maxIdleSessions = maxIdleSessions;
+    }
+
+    /**
+     * Specifies how long to wait for a connection to be returned when every pooled connection is lent.
+     *
+     * @param maxWait
+     *        the time in ms; the default is 5 seconds
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Specifies how long a connection may be idle in the pool before it is closed.
+     *
+     * @param maxIdleTime
+     *        the time in ms, or 0 to keep idle connections; the default is 5 minutes
+     */
+    public void setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * Specifies how often to check for connections that have been idle for too long.
+     *
+     * @param evictionInterval
+     *        the time in ms, or 0 to only check on {@link #evictIdleConnections()}; the default is 30
+     *        seconds
+     */
+    public void setEvictionInterval(long evictionInterval) {
+        this.evictionInterval = evictionInterval;
+    }
+
+    /**
+     * Specifies whether an idle connection is checked to still be open before it is lent.
+     *
+     * @param validateOnBorrow
+     *        <code>false</code> to only rely on the exception listener; the default is <code>true</code>
+     */
+    public void setValidateOnBorrow(boolean validateOnBorrow) {
+        this.validateOnBorrow = validateOnBorrow;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+
+    private static void close(XAConnection connection) {
+        try {
+            connection.close();
+        } catch (Throwable e) {
+            log.debug("Could not close pooled XA connection", e);
+        }
+    }
+
+    /**
+     * The connections for one user.
+     */
+    class Pool {
+
+        final Credentials credentials;
+
+        // most recently returned first, so that the least recently used are evicted
+        private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>(); // guarded by this
+        private int total = 0; // guarded by this
+        private boolean closed = false; // guarded by this
+
+        Pool(Credentials credentials) {
+            this.credentials = credentials;
+        }
+
+        XAConnection borrow() throws JMSException {
+            final long deadline = System.currentTimeMillis() + PooledXAConnectionFactory.this.maxWait;
+            while (true) {
+                PooledConnection connection = null;
+                synchronized (this) {
+                    while (connection == null) {
+                        if (this.closed) {
+                            throw new IllegalStateException("PooledXAConnectionFactory has been destroyed");
+                        }
+                        if (!this.idle.isEmpty()) {
+                            connection = this.idle.removeFirst();
+                        } else if (this.total < PooledXAConnectionFactory.this.maxConnections) {
+                            this.total++;
+                            break;
+                        } else {
+                            final long remaining = deadline - System.currentTimeMillis();
+                            if (remaining <= 0) {
+                                throw new JMSException("Timed out after " + PooledXAConnectionFactory.this.maxWait
+                                        + " ms waiting for one of " + this.total + " pooled connections");
+                            }
+                            try {
+                                wait(remaining);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new JMSException("Interrupted waiting for a pooled connection");
+                            }
+                        }
+                    }
+                }
+
+                if (connection == null) {
+                    try {
+                        connection = new PooledConnection(this, createPhysicalXAConnection(this.credentials));
+                    } catch (JMSException e) {
+                        released();
+                        throw e;
+                    } catch (RuntimeException e) {
+                        released();
+                        throw e;
+                    }
+                } else if (PooledXAConnectionFactory.this.validateOnBorrow && !connection.isValid()) {
+                    connection.destroy();
+                    continue;
+                }
+                return connection.lend();
+            }
+        }
+
+        /**
+         * Takes back a connection lent by this pool.
+         */
+        void giveBack(PooledConnection connection) {
+            synchronized (this) {
+                if (!this.closed && !connection.broken) {
+                    connection.lastUsed = System.currentTimeMillis();
+                    this.idle.addFirst(connection);
+                    notifyAll();
+                    return;
+                }
+            }
+            connection.destroy();
+        }
+
+        /**
+         * Frees the place of a connection that was closed, or could not be created.
+         */
+        synchronized void released() {
+            this.total--;
+            notifyAll();
+        }
+
+        void evict(long idleSince) {
+            final List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+            synchronized (this) {
+                for (Iterator<PooledConnection> i = this.idle.iterator(); i.hasNext();) {
+                    final PooledConnection connection = i.next();
+                    if ((connection.lastUsed < idleSince) && !connection.hasSessionsInUse()) {
+                        i.remove();
+                        evicted.add(connection);
+                    }
+                }
+            }
+            for (PooledConnection connection : evicted) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Closing pooled XA connection idle since " + connection.lastUsed);
+                }
+                connection.destroy();
+            }
+        }
+
+        void close() {
+            final List<PooledConnection> closing;
+            synchronized (this) {
+                this.closed = true;
+                closing = new ArrayList<PooledConnection>(this.idle);
+                this.idle.clear();
+                notifyAll();
+            }
+            for (PooledConnection connection : closing) {
+                connection.destroy();
+            }
+        }
+
+        synchronized int getActiveCount() {
+            return this.total - this.idle.size();
+        }
+
+        synchronized int getIdleCount() {
+            return this.idle.size();
+        }
+    }
+
+    /**
+     * A physical connection and its cached sessions.
+     */
+    class PooledConnection implements ExceptionListener {
+
+        final Pool pool;
+        final XAConnection connection;
+        volatile boolean broken = false;
+        long lastUsed; // guarded by the pool
+
+        // the exception listener of the caller the connection is lent to
+        volatile ExceptionListener exceptionListener;
+
+        private final LinkedList<PooledSession> idleSessions = new LinkedList<PooledSession>(); // guarded by this
+        private int sessionsInUse = 0; // guarded by this
+        private boolean destroyed = false; // guarded by this
+
+        PooledConnection(Pool pool, XAConnection connection) {
+            this.pool = pool;
+            this.connection = connection;
+            try {
+                connection.setExceptionListener(this);
+            } catch (JMSException e) {
+                log.debug("Could not listen for exceptions on pooled XA connection", e);
+            }
+        }
+
+        public void onException(JMSException e) {
+            this.broken = true;
+            final ExceptionListener listener = this.exceptionListener;
+            if (listener != null) {
+                listener.onException(e);
+            }
+        }
+
+        boolean isValid() {
+            if (this.broken) {
+                return false;
+            }
+            try {
+                this.connection.getMetaData();
+                return true;
+            } catch (JMSException e) {
+                log.debug("Pooled XA connection failed validation", e);
+                return false;
+            } catch (RuntimeException e) {
+                log.debug("Pooled XA connection failed validation", e);
+                return false;
+            }
+        }
+
+        XAConnection lend() {
+            return (XAConnection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { XAConnection.class },
+                new ConnectionHandler(this));
+        }
+
+        XASession lendSession(ConnectionHandler owner) throws JMSException {
+            PooledSession session;
+            synchronized (this) {
+                this.sessionsInUse++;
+                session = this.idleSessions.poll();
+            }
+            if (session == null) {
+                try {
+                    session = new PooledSession(this, this.connection.createXASession());
+                } catch (JMSException e) {
+                    sessionReleased(null);
+                    throw e;
+                } catch (RuntimeException e) {
+                    sessionReleased(null);
+                    throw e;
+                }
+            }
+            return session.lend(owner);
+        }
+
+        /**
+         * Takes back a session, caching it if there is room.
+         */
+        void sessionReleased(PooledSession session) {
+            boolean cached = false;
+            synchronized (this) {
+                this.sessionsInUse--;
+                if ((session != null) && !this.destroyed && !this.broken
+                        && (this.idleSessions.size() < PooledXAConnectionFactory.this.maxIdleSessions)) {
+                    this.idleSessions.addFirst(session);
+                    cached = true;
+                }
+            }
+            if ((session != null) && !cached) {
+                session.destroy();
+            }
+        }
+
+        synchronized boolean hasSessionsInUse() {
+            return this.sessionsInUse > 0;
+        }
+
+        void destroy() {
+            synchronized (this) {
+                if (this.destroyed) {
+                    return;
+                }
+                this.destroyed = true;
+                this.idleSessions.clear();
+            }
+            close(this.connection);
+            this.pool.released();
+        }
+    }
+
+    /**
+     * A physical session and its cached producers.
+     */
+    class PooledSession {
+
+        final PooledConnection connection;
+        final XASession session;
+        final Map<Destination, MessageProducer> producers = new HashMap<Destination, MessageProducer>();
+
+        PooledSession(PooledConnection connection, XASession session) {
+            this.connection = connection;
+            this.session = session;
+        }
+
+        XASession lend(ConnectionHandler owner) {
+            return (XASession) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { XASession.class },
+                new SessionHandler(this, owner));
+        }
+
+        MessageProducer getProducer(Destination destination) throws JMSException {
+            MessageProducer producer = this.producers.get(destination);
+            if (producer == null) {
+                producer = this.session.createProducer(destination);
+                this.producers.put(destination, producer);
+            }
+            return producer;
+        }
+
+        /**
+         * Resets the cached producers to their default settings and returns the session to its
+         * connection.
+         */
+        void release() {
+            try {
+                for (MessageProducer producer : this.producers.values()) {
+                    producer.setDeliveryMode(Message.DEFAULT_DELIVERY_MODE);
+                    producer.setPriority(Message.DEFAULT_PRIORITY);
+                    producer.setTimeToLive(Message.DEFAULT_TIME_TO_LIVE);
+                    producer.setDisableMessageID(false);
+                    producer.setDisableMessageTimestamp(false);
+                }
+            } catch (JMSException e) {
+                log.debug("Could not reset cached producers; closing the session", e);
+                this.connection.sessionReleased(null);
+                destroy();
+                return;
+            }
+            this.connection.sessionReleased(this);
+        }
+
+        void destroy() {
+            try {
+                this.session.close();
+            } catch (Throwable e) {
+                log.debug("Could not close pooled XA session", e);
+            }
+        }
+    }
+
+    /**
+     * The connection lent to a caller, which returns the physical connection when closed.
+     */
+    class ConnectionHandler implements InvocationHandler {
+
+        private final PooledConnection pooled;
+        private final List<SessionHandler> sessions = new ArrayList<SessionHandler>(); // guarded by this
+        private final OpenResources created = new OpenResources(); // non-XA sessions and connection consumers
+        private boolean closed = false; // guarded by this
+
+        ConnectionHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "Pooled " + this.pooled.connection;
+            } else if (name.equals("close")) {
+                close();
+                return null;
+            }
+
+            synchronized (this) {
+                if (this.closed) {
+                    throw new IllegalStateException("Connection is closed");
+                }
+            }
+
+            if (name.equals("setClientID")) {
+                throw new IllegalStateException("The client ID of a pooled connection cannot be set");
+            } else if (name.equals("setExceptionListener")) {
+                this.pooled.exceptionListener = (ExceptionListener) args[0];
+                return null;
+            } else if (name.equals("getExceptionListener")) {
+                return this.pooled.exceptionListener;
+            } else if (name.equals("stop")) {
+                // stopping the physical connection would stop it for the callers it is lent to later
+                return null;
+            } else if (name.equals("createXASession")) {
+                final XASession session = this.pooled.lendSession(this);
+                synchronized (this) {
+                    this.sessions.add((SessionHandler) Proxy.getInvocationHandler(session));
+                }
+                return session;
+            }
+
+            final Object result = PooledXAConnectionFactory.invoke(this.pooled.connection, method, args);
+            if (name.equals("createSession") || name.endsWith("ConnectionConsumer")) {
+                return this.created.track(result);
+            }
+            return result;
+        }
+
+        synchronized void sessionClosed(SessionHandler session) {
+            this.sessions.remove(session);
+        }
+
+        private void close() {
+            final List<SessionHandler> open;
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                open = new ArrayList<SessionHandler>(this.sessions);
+                this.sessions.clear();
+            }
+            this.created.close();
+            for (SessionHandler session : open) {
+                session.close();
+            }
+            this.pooled.exceptionListener = null;
+            if (isActive()) {
+                this.pooled.pool.giveBack(this.pooled);
+            } else {
+                this.pooled.destroy();
+            }
+        }
+    }
+
+    /**
+     * The session lent to a caller, which returns the physical session when closed.
+     */
+    class SessionHandler implements InvocationHandler {
+
+        private final PooledSession pooled;
+        private final ConnectionHandler owner;
+        private final OpenResources created = new OpenResources(); // consumers and browsers
+        private boolean closed = false; // guarded by this
+
+        SessionHandler(PooledSession pooled, ConnectionHandler owner) {
+            this.pooled = pooled;
+            this.owner = owner;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "Pooled " + this.pooled.session;
+            } else if (name.equals("close")) {
+                close();
+                return null;
+            }
+
+            synchronized (this) {
+                if (this.closed) {
+                    throw new IllegalStateException("Session is closed");
+                }
+            }
+
+            if (name.equals("getSession")) {
+                // the physical session would let the caller bypass the cache, or close it for the next borrower
+                return proxy;
+            } else if (name.equals("createProducer")) {
+                final MessageProducer producer = this.pooled.getProducer((Destination) args[0]);
+                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { MessageProducer.class },
+                    new ProducerHandler(producer));
+            }
+
+            final Object result = PooledXAConnectionFactory.invoke(this.pooled.session, method, args);
+            if (name.startsWith("createConsumer") || name.equals("createDurableSubscriber")
+                    || name.equals("createBrowser")) {
+                return this.created.track(result);
+            }
+            return result;
+        }
+
+        void close() {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+            }
+            this.owner.sessionClosed(this);
+            this.created.close();
+
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                // the session's XA resource may still be enlisted in the transaction
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                        @Override
+                        public void afterCompletion(int status) {
+                            SessionHandler.this.pooled.release();
+                        }
+                    });
+            } else {
+                this.pooled.release();
+            }
+        }
+    }
+
+    /**
+     * A cached producer lent to a caller, which stays open when closed.
+     */
+    static class ProducerHandler implements InvocationHandler {
+
+        private final MessageProducer producer;
+
+        ProducerHandler(MessageProducer producer) {
+            this.producer = producer;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "Cached " + this.producer;
+            } else if (name.equals("close")) {
+                return null;
+            }
+            return PooledXAConnectionFactory.invoke(this.producer, method, args);
+        }
+    }
+}
@@ -23,10 +23,29 @@
  */
 package com.shopzilla.spring.messaging.jms.connection;
 
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.jms.connection.UserCredentialsConnectionFactoryAdapter;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jms.ConnectionConsumer;
 import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.IllegalStateException;
 import javax.jms.JMSException;
+import javax.jms.Session;
 import javax.jms.XAConnection;
 import javax.jms.XAConnectionFactory;
 
@@ -34,15 +53,30 @@ import javax.jms.XAConnectionFactory;
  * This works in very much the same fashion as {@link org.springframework.jms.connection.UserCredentialsConnectionFactoryAdapter} from
  * the Spring Framework. This also deals with XA connections, however.
  *
+ * <p>
+ * With a {@link #setConnectionCacheSize(int) connection cache size}, the XA connections are shared:
+ * callers asking for a connection with the same user and password get a handle on the same live
+ * connection, which is only closed once every handle on it has been closed and it is the least
+ * recently used of more connections than the cache holds. Closing a handle closes the sessions
+ * created through it, and stopping one is ignored, as the connection is shared. A connection that
+ * reports an exception is no longer handed out.
+ * </p>
+ *
  * @author Josh Long
  * @since May 11, 2010
  *
  */
 public class UserCredentialsXAConnectionFactoryAdapter
-    extends UserCredentialsConnectionFactoryAdapter implements XAConnectionFactory {
+    extends UserCredentialsConnectionFactoryAdapter implements XAConnectionFactory, DisposableBean {
+    private static final Log log = LogFactory.getLog(UserCredentialsXAConnectionFactoryAdapter.class);
     private String user;
     private String pw;
     private XAConnectionFactory xaConnectionFactory;
+    private int connectionCacheSize = 0;
+
+    // least recently used first; guarded by itself
+    private final LinkedHashMap<Credentials, SharedConnection> connections =
+        new LinkedHashMap<Credentials, SharedConnection>(16, 0.75f, true);
 
     @Override
     public void setTargetConnectionFactory(ConnectionFactory targetConnectionFactory) {
@@ -68,6 +102,36 @@ public class UserCredentialsXAConnectionFactoryAdapter
         this.user = username;
     }
 
+    /**
+     * Specifies how many idle XA connections to keep, one for each user and password. Connections
+     * still in use are never closed, so more may be open while they are.
+     *
+     * @param connectionCacheSize
+     *        the number of connections, or 0 to create a connection for every call; the default is 0
+     */
+    public void setConnectionCacheSize(int connectionCacheSize) {
+        this.connectionCacheSize = connectionCacheSize;
+    }
+
+    /**
+     * Closes the cached connections no longer in use; the others are closed as their last handle is.
+     */
+    public void destroy() {
+        final List<SharedConnection> closing = new ArrayList<SharedConnection>();
+        synchronized (this.connections) {
+            for (SharedConnection shared : this.connections.values()) {
+                shared.cached = false;
+                if (shared.references == 0) {
+                    closing.add(shared);
+                }
+            }
+            this.connections.clear();
+        }
+        for (SharedConnection shared : closing) {
+            shared.close();
+        }
+    }
+
     protected XAConnection doCreateXAConnection(String user, String pw)
         throws JMSException {
         return this.xaConnectionFactory.createXAConnection(user, pw);
@@ -75,12 +139,272 @@ public class UserCredentialsXAConnectionFactoryAdapter
 
     @Override
     public final XAConnection createXAConnection() throws JMSException {
-        return this.doCreateXAConnection(this.user, this.pw);
+        return this.obtainXAConnection(this.user, this.pw);
     }
 
     @Override
     public final XAConnection createXAConnection(String s, String s1)
         throws JMSException {
-        return this.doCreateXAConnection(s, s1);
+        return this.obtainXAConnection(s, s1);
+    }
+
+    private XAConnection obtainXAConnection(String user, String pw)
+        throws JMSException {
+        if (this.connectionCacheSize <= 0) {
+            return this.doCreateXAConnection(user, pw);
+        }
+
+        final Credentials credentials = new Credentials(user, pw);
+        synchronized (this.connections) {
+            final SharedConnection shared = this.connections.get(credentials);
+            if (shared != null) {
+                return shared.newHandle();
+            }
+        }
+
+        // connect and authenticate without holding up callers with other credentials
+        final XAConnection connection = this.doCreateXAConnection(user, pw);
+        final List<SharedConnection> evicted;
+        final XAConnection handle;
+        synchronized (this.connections) {
+            final SharedConnection shared = this.connections.get(credentials);
+            if (shared != null) {
+                handle = shared.newHandle();
+                evicted = null;
+            } else {
+                final SharedConnection created = new SharedConnection(credentials, connection);
+                this.connections.put(credentials, created);
+                handle = created.newHandle();
+                evicted = this.evict();
+            }
+        }
+
+        if (evicted == null) {
+            // another caller connected with the same credentials first
+            closeQuietly(connection);
+        } else {
+            for (SharedConnection shared : evicted) {
+                shared.close();
+            }
+        }
+        return handle;
+    }
+
+    /**
+     * Removes the least recently used connections no longer in use, while there are more than the
+     * cache holds.
+     */
+    private List<SharedConnection> evict() {
+        final List<SharedConnection> evicted = new ArrayList<SharedConnection>();
+        for (Iterator<SharedConnection> i = this.connections.values().iterator();
+                (this.connections.size() > this.connectionCacheSize) && i.hasNext();) {
+            final SharedConnection shared = i.next();
+            if (shared.references == 0) {
+                i.remove();
+                shared.cached = false;
+                evicted.add(shared);
+            }
+        }
+        return evicted;
+    }
+
+    private void released(SharedConnection shared) {
+        final List<SharedConnection> closing;
+        synchronized (this.connections) {
+            shared.references--;
+            if (shared.references > 0) {
+                return;
+            }
+            if (shared.cached) {
+                closing = this.evict();
+            } else {
+                closing = new ArrayList<SharedConnection>();
+                closing.add(shared);
+            }
+        }
+        for (SharedConnection closed : closing) {
+            closed.close();
+        }
+    }
+
+    private void broken(SharedConnection shared) {
+        boolean close = false;
+        synchronized (this.connections) {
+            if (shared.cached) {
+                shared.cached = false;
+                this.connections.remove(shared.credentials);
+                close = (shared.references == 0);
+            }
+        }
+        if (close) {
+            shared.close();
+        }
+    }
+
+    private static void closeQuietly(XAConnection connection) {
+        try {
+            connection.close();
+        } catch (Throwable e) {
+            log.debug("Could not close XA connection", e);
+        }
+    }
+
+    /**
+     * The user and password connections are created with.
+     */
+    static class Credentials {
+        final String user;
+        final String pw;
+
+        Credentials(String user, String pw) {
+            this.user = user;
+            this.pw = pw;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Credentials)) {
+                return false;
+            }
+
+            final Credentials other = (Credentials) o;
+
+            return ObjectUtils.equals(this.user, other.user) && ObjectUtils.equals(this.pw, other.pw);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * ObjectUtils.hashCode(this.user)) + ObjectUtils.hashCode(this.pw);
+        }
+    }
+
+    /**
+     * A cached connection and the number of handles on it.
+     */
+    private class SharedConnection implements ExceptionListener {
+        final Credentials credentials;
+        final XAConnection connection;
+        final List<ConnectionHandle> handles = new CopyOnWriteArrayList<ConnectionHandle>();
+        int references = 0; // guarded by connections
+        boolean cached = true; // guarded by connections
+
+        SharedConnection(Credentials credentials, XAConnection connection) {
+            this.credentials = credentials;
+            this.connection = connection;
+
+            try {
+                connection.setExceptionListener(this);
+            } catch (JMSException e) {
+                log.debug("Could not listen for exceptions on cached XA connection", e);
+            }
+        }
+
+        XAConnection newHandle() {
+            this.references++;
+
+            final ConnectionHandle handle = new ConnectionHandle(this);
+            this.handles.add(handle);
+
+            return (XAConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { XAConnection.class }, handle);
+        }
+
+        public void onException(JMSException e) {
+            broken(this);
+
+            for (ConnectionHandle handle : this.handles) {
+                final ExceptionListener listener = handle.exceptionListener;
+
+                if (listener != null) {
+                    listener.onException(e);
+                }
+            }
+        }
+
+        void close() {
+            if (log.isDebugEnabled()) {
+                log.debug("Closing cached XA connection for user " + this.credentials.user);
+            }
+
+            closeQuietly(this.connection);
+        }
+    }
+
+    /**
+     * A caller's handle on a cached connection, which releases it when closed.
+     */
+    private class ConnectionHandle implements InvocationHandler {
+        private final SharedConnection shared;
+        private final OpenResources created = new OpenResources(); // sessions and connection consumers
+        private boolean closed = false; // guarded by this
+        volatile ExceptionListener exceptionListener;
+
+        ConnectionHandle(SharedConnection shared) {
+            this.shared = shared;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+            final String name = method.getName();
+
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "Shared " + this.shared.connection;
+            } else if (name.equals("close")) {
+                this.close();
+
+                return null;
+            }
+
+            synchronized (this) {
+                if (this.closed) {
+                    throw new IllegalStateException("Connection is closed");
+                }
+            }
+
+            if (name.equals("stop")) {
+                // other handles may still be using the connection
+                return null;
+            } else if (name.equals("setClientID")) {
+                throw new IllegalStateException("The client ID of a shared connection cannot be set");
+            } else if (name.equals("setExceptionListener")) {
+                this.exceptionListener = (ExceptionListener) args[0];
+
+                return null;
+            } else if (name.equals("getExceptionListener")) {
+                return this.exceptionListener;
+            }
+
+            final Object result;
+
+            try {
+                result = method.invoke(this.shared.connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+
+            if ((result instanceof Session) || (result instanceof ConnectionConsumer)) {
+                return this.created.track(result);
+            }
+
+            return result;
+        }
+
+        private void close() {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+
+                this.closed = true;
+            }
+
+            this.created.close();
+            this.shared.handles.remove(this);
+            released(this.shared);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,510 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.core;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import org.springframework.jms.core.MessageCreator;
+import org.springframework.jms.support.JmsUtils;
+import org.springframework.jms.support.converter.MessageConverter;
+import org.springframework.jms.support.converter.SimpleMessageConverter;
+import org.springframework.jms.support.destination.JmsDestinationAccessor;
+
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+/**
+ * Buffers outgoing messages and sends them in batches, so that a producer waits for the broker once
+ * per batch rather than once per message. The counterpart of
+ * {@link com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer}.
+ *
+ * <p>
+ * With a transacted session, the default, each batch is sent in one transaction that is committed
+ * once; sends within a transaction do not wait for the broker, so a batch costs a single round trip.
+ * With a non-transacted session the messages are sent one by one, which only avoids a round trip
+ * per message if the connection factory does not block on sends, as with a
+ * {@link com.shopzilla.spring.messaging.hornetq.HornetQConnectionFactoryFactory} with
+ * blockOnDurableSend turned off.
+ * </p>
+ *
+ * <p>
+ * A batch is sent when {@link #setBatchSize(int) batchSize} messages are buffered, by the thread that
+ * buffers the last of them; {@link #setFlushInterval(int) flushInterval} after the first message of
+ * the batch was buffered; or when {@link #flush()} is called. Messages are created by their
+ * {@link MessageCreator} when their batch is sent. Batches are sent over a single session in the
+ * order their messages were buffered, so messages sent by one thread keep their order.
+ * </p>
+ *
+ * <p>
+ * A batch that cannot be sent is rolled back and not retried, and the session is closed so that the
+ * next batch reconnects. The failure is thrown to the caller of {@link #send(String, MessageCreator)
+ * send} or {@link #flush()} that was sending the batch. A failure of a batch sent on a timer is
+ * thrown by the next call to send or flush; a send that throws it does not buffer its message. Once
+ * flush returns normally, every message buffered before it was called has been sent.
+ * </p>
+ *
+ * <p>
+ * With {@link #setPackMessages(boolean) packMessages} on, consecutive messages of a batch for the
+ * same destination and message group are packed into envelopes of up to {@link #setMaxEnvelopeSize(int)
+ * maxEnvelopeSize} bytes by a {@link MessagePacker}, for consumers that unpack them, such as a
+ * {@link com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer}. Messages that
+ * cannot be packed, or are larger than an envelope, are sent as they are, in order.
+ * </p>
+ */
+public class BatchingMessageSender extends JmsDestinationAccessor implements DisposableBean {
+
+    static final org.apache.commons.logging.Log log = LogFactory.getLog(BatchingMessageSender.class);
+
+    /** The default number of messages sent in one batch. */
+    static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** The default length of time, in ms, a message waits for its batch to fill. */
+    static final int DEFAULT_FLUSH_INTERVAL = 100;
+
+    /** The default largest size, in bytes, of an envelope of packed messages. */
+    static final int DEFAULT_MAX_ENVELOPE_SIZE = 64 * 1024;
+
+    int batchSize = DEFAULT_BATCH_SIZE;
+    int flushInterval = DEFAULT_FLUSH_INTERVAL;
+    String destinationName;
+    MessageConverter messageConverter = new SimpleMessageConverter();
+    int deliveryMode = Message.DEFAULT_DELIVERY_MODE;
+    int priority = Message.DEFAULT_PRIORITY;
+    long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+    boolean packMessages = false;
+    int maxEnvelopeSize = DEFAULT_MAX_ENVELOPE_SIZE;
+
+    private final List<PendingMessage> buffer = new ArrayList<PendingMessage>(); // guarded by "buffer"
+    private boolean flushScheduled = false; // guarded by "buffer"
+    private boolean active = false; // guarded by "buffer"
+    private ThreadPoolTaskScheduler scheduler;
+    private RuntimeException failure; // guarded by "buffer"
+
+    // sends the buffered messages flushInterval after the first of them was buffered
+    final Runnable scheduledFlush = new Runnable() {
+            public void run() {
+                sendBuffered(false);
+            }
+        };
+
+    // the session is only used while holding sendMonitor
+    private final Object sendMonitor = new Object();
+    private Connection connection; // guarded by sendMonitor
+    private Session session; // guarded by sendMonitor
+    private MessageProducer producer; // guarded by sendMonitor
+    private final Map<String, Destination> destinations = new HashMap<String, Destination>(); // guarded by sendMonitor
+
+    public BatchingMessageSender() {
+        setSessionTransacted(true);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        super.afterPropertiesSet();
+
+        if (batchSize < 1) {
+            throw new IllegalStateException("batchSize must be at least 1");
+        }
+
+        if (flushInterval < 0) {
+            throw new IllegalStateException("flushInterval must not be negative");
+        }
+
+        if (packMessages && (maxEnvelopeSize < 1)) {
+            throw new IllegalStateException("maxEnvelopeSize must be at least 1");
+        }
+
+        if (flushInterval > 0) {
+            ThreadPoolTaskScheduler taskScheduler = new ThreadPoolTaskScheduler();
+            taskScheduler.setThreadNamePrefix("BatchingMessageSender-");
+            taskScheduler.setDaemon(true);
+            taskScheduler.afterPropertiesSet();
+            this.scheduler = taskScheduler;
+        }
+
+        synchronized (this.buffer) {
+            this.active = true;
+        }
+    }
+
+    /**
+     * Sends whatever is buffered and closes the connection. Messages can no longer be sent.
+     */
+    public void destroy() {
+        synchronized (this.buffer) {
+            this.active = false;
+        }
+        try {
+            flush();
+        } finally {
+            if (this.scheduler != null) {
+                this.scheduler.shutdown();
+                this.scheduler = null;
+            }
+            synchronized (this.sendMonitor) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Buffers a message for the default destination.
+     *
+     * @param messageCreator
+     *        creates the message when its batch is sent
+     */
+    public void send(MessageCreator messageCreator) {
+        if (this.destinationName == null) {
+            throw new IllegalStateException("No default destinationName specified");
+        }
+        send(this.destinationName, messageCreator);
+    }
+
+    /**
+     * Buffers a message, sending the batch if it is now full.
+     *
+     * @param destinationName
+     *        the name of the destination, resolved when the batch is sent
+     * @param messageCreator
+     *        creates the message when its batch is sent
+     * @throws RuntimeException
+     *         if the batch could not be sent, or a batch sent on a timer failed, in which case the
+     *         message is not buffered
+     */
+    public void send(String destinationName, MessageCreator messageCreator) {
+        boolean full;
+        synchronized (this.buffer) {
+            if (!this.active) {
+                throw new IllegalStateException("BatchingMessageSender is not active");
+            }
+            rethrowFailure();
+            this.buffer.add(new PendingMessage(destinationName, messageCreator));
+            full = this.buffer.size() >= this.batchSize;
+            if (!full && !this.flushScheduled && (this.scheduler != null)) {
+                this.flushScheduled = true;
+                this.scheduler.schedule(this.scheduledFlush, new Date(System.currentTimeMillis() + this.flushInterval));
+            }
+        }
+        if (full) {
+            sendBuffered(true);
+        }
+    }
+
+    /**
+     * Converts an object to a message for the default destination and buffers it.
+     *
+     * @param message
+     *        the object to convert with the {@link #setMessageConverter(MessageConverter) message converter}
+     */
+    public void convertAndSend(Object message) {
+        if (this.destinationName == null) {
+            throw new IllegalStateException("No default destinationName specified");
+        }
+        convertAndSend(this.destinationName, message);
+    }
+
+    /**
+     * Converts an object to a message and buffers it.
+     *
+     * @param destinationName
+     *        the name of the destination, resolved when the batch is sent
+     * @param message
+     *        the object to convert with the {@link #setMessageConverter(MessageConverter) message converter}
+     */
+    public void convertAndSend(String destinationName, final Object message) {
+        send(destinationName, new MessageCreator() {
+                public Message createMessage(Session session) throws JMSException {
+                    return BatchingMessageSender.this.messageConverter.toMessage(message, session);
+                }
+            });
+    }
+
+    /**
+     * Sends the buffered messages, waiting for any batch already being sent.
+     *
+     * @throws RuntimeException
+     *         if the batch could not be sent, or a batch sent on a timer failed since the last send
+     *         or flush
+     */
+    public void flush() {
+        sendBuffered(true);
+    }
+
+    /**
+     * Returns the number of messages buffered and not yet being sent.
+     *
+     * @return the number of messages
+     */
+    public int getBufferedCount() {
+        synchronized (this.buffer) {
+            return this.buffer.size();
+        }
+    }
+
+    private void sendBuffered(boolean rethrow) {
+        synchronized (this.sendMonitor) {
+            // taken while holding sendMonitor so that batches are sent in the order they were buffered
+            final List<PendingMessage> batch;
+            synchronized (this.buffer) {
+                batch = new ArrayList<PendingMessage>(this.buffer);
+                this.buffer.clear();
+                this.flushScheduled = false;
+            }
+
+            if (!batch.isEmpty()) {
+                try {
+                    sendBatch(batch);
+                } catch (JMSException e) {
+                    failed(batch, convertJmsAccessException(e));
+                } catch (RuntimeException e) {
+                    failed(batch, e);
+                }
+            }
+
+            if (rethrow) {
+                synchronized (this.buffer) {
+                    rethrowFailure();
+                }
+            }
+        }
+    }
+
+    /**
+     * Throws, once, the failure of the last batch that could not be sent. Called holding "buffer".
+     */
+    private void rethrowFailure() {
+        if (this.failure != null) {
+            final RuntimeException e = this.failure;
+            this.failure = null;
+            throw e;
+        }
+    }
+
+    private void sendBatch(List<PendingMessage> batch) throws JMSException {
+        if (this.session == null) {
+            this.connection = createConnection();
+            this.session = createSession(this.connection);
+            this.producer = this.session.createProducer(null);
+        }
+
+        // messages packed for the next envelope, all for the same destination and group
+        final List<byte[]> packed = new ArrayList<byte[]>();
+        Destination packedDestination = null;
+        String packedGroupId = null;
+        int packedBytes = 0;
+
+        for (PendingMessage pending : batch) {
+            Destination destination = this.destinations.get(pending.destinationName);
+            if (destination == null) {
+                destination = resolveDestinationName(this.session, pending.destinationName);
+                this.destinations.put(pending.destinationName, destination);
+            }
+            final Message message = pending.messageCreator.createMessage(this.session);
+            final byte[] bytes = this.packMessages ? MessagePacker.pack(message) : null;
+            final String groupId = (bytes != null) ? MessagePacker.getGroupId(message) : null;
+
+            if (!packed.isEmpty() && ((bytes == null) || (destination != packedDestination)
+                    || !ObjectUtils.equals(groupId, packedGroupId)
+                    || (packedBytes + bytes.length > this.maxEnvelopeSize))) {
+                send(packedDestination, MessagePacker.createEnvelope(this.session, packed, packedGroupId));
+                packed.clear();
+                packedBytes = 0;
+            }
+
+            if ((bytes != null) && (bytes.length <= this.maxEnvelopeSize)) {
+                packed.add(bytes);
+                packedDestination = destination;
+                packedGroupId = groupId;
+                packedBytes += bytes.length;
+            } else {
+                send(destination, message);
+            }
+        }
+        if (!packed.isEmpty()) {
+            send(packedDestination, MessagePacker.createEnvelope(this.session, packed, packedGroupId));
+        }
+        if (isSessionTransacted()) {
+            this.session.commit();
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Sent a batch of " + batch.size() + " messages");
+        }
+    }
+
+    private void send(Destination destination, Message message) throws JMSException {
+        this.producer.send(destination, message, this.deliveryMode, this.priority, this.timeToLive);
+    }
+
+    /**
+     * Rolls back a batch that could not be sent and closes the session, keeping the failure to throw.
+     */
+    private void failed(List<PendingMessage> batch, RuntimeException e) {
+        log.error("Could not send a batch of " + batch.size() + " messages", e);
+        if ((this.session != null) && isSessionTransacted()) {
+            try {
+                this.session.rollback();
+            } catch (JMSException rollbackFailure) {
+                log.debug("Could not roll back the failed batch", rollbackFailure);
+            }
+        }
+        close();
+        synchronized (this.buffer) {
+            this.failure = e;
+        }
+    }
+
+    private void close() {
+        JmsUtils.closeMessageProducer(this.producer);
+        JmsUtils.closeSession(this.session);
+        JmsUtils.closeConnection(this.connection);
+        this.producer = null;
+        this.session = null;
+        this.connection = null;
+        this.destinations.clear();
+    }
+
+    /**
+     * Specifies the number of messages to send in one batch.
+     *
+     * @param batchSize
+     *        the number of messages; the default is 100
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Specifies how long, in milliseconds, a message waits for its batch to fill before the batch is
+     * sent anyway.
+     *
+     * @param flushInterval
+     *        the time in ms, or 0 to only send full batches and on {@link #flush()}; the default is
+     *        100 ms
+     */
+    public void setFlushInterval(int flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Specifies the destination messages are sent to if no other is given.
+     *
+     * @param destinationName
+     *        the name of the destination, resolved at runtime
+     */
+    public void setDestinationName(String destinationName) {
+        this.destinationName = destinationName;
+    }
+
+    /**
+     * Specifies the converter used by {@link #convertAndSend(String, Object)}.
+     *
+     * @param messageConverter
+     *        the converter; the default is a {@link SimpleMessageConverter}
+     */
+    public void setMessageConverter(MessageConverter messageConverter) {
+        this.messageConverter = messageConverter;
+    }
+
+    /**
+     * Specifies the delivery mode of sent messages.
+     *
+     * @param deliveryPersistent
+     *        <code>false</code> to send non-persistent messages; the default is <code>true</code>
+     */
+    public void setDeliveryPersistent(boolean deliveryPersistent) {
+        this.deliveryMode = deliveryPersistent ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT;
+    }
+
+    /**
+     * Specifies the priority of sent messages.
+     *
+     * @param priority
+     *        the priority; the default is 4
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Specifies how long sent messages live.
+     *
+     * @param timeToLive
+     *        the time in ms, or 0 for unlimited; the default is 0
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Specifies whether to pack the messages of a batch into envelopes, which only consumers that
+     * unpack them can read.
+     *
+     * @param packMessages
+     *        <code>true</code> to pack messages; the default is <code>false</code>
+     */
+    public void setPackMessages(boolean packMessages) {
+        this.packMessages = packMessages;
+    }
+
+    /**
+     * Specifies the largest envelope, in bytes, messages are packed into.
+     *
+     * @param maxEnvelopeSize
+     *        the size in bytes; the default is 64 KB
+     */
+    public void setMaxEnvelopeSize(int maxEnvelopeSize) {
+        this.maxEnvelopeSize = maxEnvelopeSize;
+    }
+
+    /**
+     * A message waiting for its batch to be sent.
+     */
+    static class PendingMessage {
+
+        final String destinationName;
+        final MessageCreator messageCreator;
+
+        PendingMessage(String destinationName, MessageCreator messageCreator) {
+            this.destinationName = destinationName;
+            this.messageCreator = messageCreator;
+        }
+    }
+}
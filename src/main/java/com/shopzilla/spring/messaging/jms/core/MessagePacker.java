@@ -0,0 +1,395 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+/**
+ * Packs many small messages into a single {@link BytesMessage} envelope, and unpacks them again, so
+ * that the broker's per-message overhead is paid once per envelope.
+ *
+ * <p>
+ * Text and bytes messages can be packed, with their correlation ID, type, message group and
+ * properties of any type but object; other messages, and messages with other JMSX or JMS_ vendor
+ * properties, cannot. Each packed message takes the destination, delivery mode, priority, expiration,
+ * timestamp and redelivered flag of its envelope, and a message ID made from the envelope's and its
+ * position in it, which stays the same if the envelope is redelivered.
+ * </p>
+ *
+ * <p>
+ * Messages of different {@link #GROUP_ID_PROPERTY groups} must not be packed into one envelope, and
+ * an envelope should carry the group of its messages, so that the broker still delivers a group to a
+ * single consumer; {@link #createEnvelope(Session, List, String)} sets it.
+ * </p>
+ *
+ * <p>
+ * An envelope starts with a format version byte, followed by each message in turn: a byte for its
+ * kind, the correlation ID and type, each preceded by a boolean for whether it is set, the number of
+ * properties as a short, each property as its name, a type tag and its value, and finally the length
+ * of the body in bytes as an int, followed by the body, text being encoded as UTF-8. Strings are
+ * written in the same way as a text body, so that their length is not limited. The number of
+ * messages is held in the {@link #PACKED_COUNT_PROPERTY} property. Envelopes of the first format,
+ * which wrote strings with {@link DataOutputStream#writeUTF(String)}, can still be unpacked.
+ * </p>
+ *
+ * @see BatchingMessageSender#setPackMessages(boolean)
+ */
+public final class MessagePacker {
+
+    /** The property holding the number of messages in an envelope, which marks it as one. */
+    public static final String PACKED_COUNT_PROPERTY = "packedMessageCount";
+
+    /** The property holding the message group of a message, which is carried by its envelope. */
+    public static final String GROUP_ID_PROPERTY = "JMSXGroupID";
+
+    static final String GROUP_SEQ_PROPERTY = "JMSXGroupSeq";
+
+    // set by the provider as a message is received, so it is not packed
+    static final String DELIVERY_COUNT_PROPERTY = "JMSXDeliveryCount";
+
+    static final byte FORMAT_VERSION = 2;
+
+    // strings were written with writeUTF, which cannot write more than 65535 bytes
+    static final byte UTF_FORMAT_VERSION = 1;
+
+    static final byte TEXT = 1;
+    static final byte BYTES = 2;
+
+    private static final String UTF_8 = "UTF-8";
+
+    private MessagePacker() {
+    }
+
+    /**
+     * Returns whether a message is an envelope of packed messages.
+     *
+     * @param message
+     *        the message
+     * @return <code>true</code> if it should be unpacked
+     */
+    public static boolean isEnvelope(Message message) throws JMSException {
+        return (message instanceof BytesMessage) && message.propertyExists(PACKED_COUNT_PROPERTY);
+    }
+
+    /**
+     * Returns the message group of a message.
+     *
+     * @param message
+     *        the message
+     * @return the group ID, or <code>null</code> if the message is not in a group
+     */
+    public static String getGroupId(Message message) throws JMSException {
+        return message.getStringProperty(GROUP_ID_PROPERTY);
+    }
+
+    /**
+     * Encodes a message for an envelope.
+     *
+     * @param message
+     *        the message to pack
+     * @return the encoded message, or <code>null</code> if the message cannot be packed
+     */
+    public static byte[] pack(Message message) throws JMSException {
+        final byte kind;
+        final byte[] body;
+        if (message instanceof TextMessage) {
+            kind = TEXT;
+            final String text = ((TextMessage) message).getText();
+            body = (text != null) ? encode(text) : null;
+        } else if (message instanceof BytesMessage) {
+            kind = BYTES;
+            final BytesMessage bytesMessage = (BytesMessage) message;
+            bytesMessage.reset();
+            body = new byte[(int) bytesMessage.getBodyLength()];
+            bytesMessage.readBytes(body);
+        } else {
+            return null;
+        }
+
+        final List<String> names = new ArrayList<String>();
+        for (Enumeration<?> e = message.getPropertyNames(); e.hasMoreElements();) {
+            final String name = (String) e.nextElement();
+            if (name.equals(DELIVERY_COUNT_PROPERTY)) {
+                continue;
+            }
+            if ((name.startsWith("JMSX") && !name.equals(GROUP_ID_PROPERTY) && !name.equals(GROUP_SEQ_PROPERTY))
+                    || name.startsWith("JMS_")) {
+                return null;
+            }
+            names.add(name);
+        }
+        // some providers list the group under a name of their own
+        if ((getGroupId(message) != null) && !names.contains(GROUP_ID_PROPERTY)) {
+            names.add(GROUP_ID_PROPERTY);
+        }
+
+        try {
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 + ((body != null) ? body.length : 0));
+            final DataOutputStream out = new DataOutputStream(buffer);
+            out.writeByte(kind);
+            writeNullableString(out, message.getJMSCorrelationID());
+            writeNullableString(out, message.getJMSType());
+            out.writeShort(names.size());
+            for (String name : names) {
+                writeString(out, name);
+                final Object value = name.equals(GROUP_ID_PROPERTY) ? getGroupId(message)
+                        : message.getObjectProperty(name);
+                if (!writeProperty(out, value)) {
+                    return null;
+                }
+            }
+            if (body != null) {
+                out.writeInt(body.length);
+                out.write(body);
+            } else {
+                out.writeInt(-1);
+            }
+            out.flush();
+            return buffer.toByteArray();
+        } catch (IOException e) {
+            throw packingFailed("Could not pack message", e);
+        }
+    }
+
+    /**
+     * Creates an envelope holding encoded messages that are not in a group.
+     *
+     * @param session
+     *        the session to create the envelope with
+     * @param packed
+     *        the messages, each encoded by {@link #pack(Message)}
+     * @return the envelope
+     */
+    public static BytesMessage createEnvelope(Session session, List<byte[]> packed) throws JMSException {
+        return createEnvelope(session, packed, null);
+    }
+
+    /**
+     * Creates an envelope holding encoded messages of one message group.
+     *
+     * @param session
+     *        the session to create the envelope with
+     * @param packed
+     *        the messages, each encoded by {@link #pack(Message)}
+     * @param groupId
+     *        the group of the messages, or <code>null</code> if they are not in a group
+     * @return the envelope
+     */
+    public static BytesMessage createEnvelope(Session session, List<byte[]> packed, String groupId)
+            throws JMSException {
+        final BytesMessage envelope = session.createBytesMessage();
+        envelope.writeByte(FORMAT_VERSION);
+        for (byte[] message : packed) {
+            envelope.writeBytes(message);
+        }
+        envelope.setIntProperty(PACKED_COUNT_PROPERTY, packed.size());
+        if (groupId != null) {
+            envelope.setStringProperty(GROUP_ID_PROPERTY, groupId);
+        }
+        return envelope;
+    }
+
+    /**
+     * Unpacks the messages in an envelope.
+     *
+     * @param session
+     *        the session to create the messages with
+     * @param envelope
+     *        the envelope, as received
+     * @return the messages, in the order they were packed
+     */
+    public static List<Message> unpack(Session session, Message envelope) throws JMSException {
+        final BytesMessage bytesMessage = (BytesMessage) envelope;
+        final int count = bytesMessage.getIntProperty(PACKED_COUNT_PROPERTY);
+        bytesMessage.reset();
+        final byte[] contents = new byte[(int) bytesMessage.getBodyLength()];
+        bytesMessage.readBytes(contents);
+
+        final String envelopeId = envelope.getJMSMessageID();
+        final List<Message> messages = new ArrayList<Message>(count);
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+            final byte version = in.readByte();
+            if ((version != FORMAT_VERSION) && (version != UTF_FORMAT_VERSION)) {
+                throw new MessageFormatException("Unknown envelope format " + version);
+            }
+            for (int i = 0; i < count; i++) {
+                final byte kind = in.readByte();
+                final String correlationId = readNullableString(in, version);
+                final String type = readNullableString(in, version);
+                final int propertyCount = in.readShort();
+                final String[] names = new String[propertyCount];
+                final Object[] values = new Object[propertyCount];
+                for (int p = 0; p < propertyCount; p++) {
+                    names[p] = readString(in, version);
+                    values[p] = readProperty(in, version);
+                }
+                final int length = in.readInt();
+                byte[] body = null;
+                if (length >= 0) {
+                    body = new byte[length];
+                    in.readFully(body);
+                }
+
+                final Message message;
+                if (kind == TEXT) {
+                    message = session.createTextMessage((body != null) ? new String(body, UTF_8) : null);
+                } else if (kind == BYTES) {
+                    final BytesMessage unpacked = session.createBytesMessage();
+                    unpacked.writeBytes(body);
+                    unpacked.reset();
+                    message = unpacked;
+                } else {
+                    throw new MessageFormatException("Unknown packed message kind " + kind);
+                }
+
+                for (int p = 0; p < propertyCount; p++) {
+                    message.setObjectProperty(names[p], values[p]);
+                }
+                message.setJMSCorrelationID(correlationId);
+                message.setJMSType(type);
+                message.setJMSMessageID((envelopeId != null) ? envelopeId + ":" + i : null);
+                message.setJMSDestination(envelope.getJMSDestination());
+                message.setJMSDeliveryMode(envelope.getJMSDeliveryMode());
+                message.setJMSPriority(envelope.getJMSPriority());
+                message.setJMSExpiration(envelope.getJMSExpiration());
+                message.setJMSTimestamp(envelope.getJMSTimestamp());
+                message.setJMSRedelivered(envelope.getJMSRedelivered());
+                messages.add(message);
+            }
+        } catch (IOException e) {
+            throw packingFailed("Could not unpack envelope " + envelopeId, e);
+        }
+        return messages;
+    }
+
+    private static boolean writeProperty(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof String) {
+            out.writeByte('S');
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte('I');
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte('J');
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte('Z');
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Byte) {
+            out.writeByte('B');
+            out.writeByte((Byte) value);
+        } else if (value instanceof Short) {
+            out.writeByte('H');
+            out.writeShort((Short) value);
+        } else if (value instanceof Float) {
+            out.writeByte('F');
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte('D');
+            out.writeDouble((Double) value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static Object readProperty(DataInputStream in, byte version) throws IOException, JMSException {
+        final byte tag = in.readByte();
+        switch (tag) {
+        case 'S':
+            return readString(in, version);
+        case 'I':
+            return in.readInt();
+        case 'J':
+            return in.readLong();
+        case 'Z':
+            return in.readBoolean();
+        case 'B':
+            return in.readByte();
+        case 'H':
+            return in.readShort();
+        case 'F':
+            return in.readFloat();
+        case 'D':
+            return in.readDouble();
+        default:
+            throw new MessageFormatException("Unknown property type " + (char) tag);
+        }
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeString(out, value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in, byte version) throws IOException {
+        return in.readBoolean() ? readString(in, version) : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in, byte version) throws IOException {
+        if (version == UTF_FORMAT_VERSION) {
+            return in.readUTF();
+        }
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static byte[] encode(String text) throws JMSException {
+        try {
+            return text.getBytes(UTF_8);
+        } catch (IOException e) {
+            throw packingFailed("Could not encode text", e);
+        }
+    }
+
+    private static JMSException packingFailed(String reason, Exception cause) {
+        final JMSException e = new MessageFormatException(reason + ": " + cause);
+        e.setLinkedException(cause);
+        return e;
+    }
+}
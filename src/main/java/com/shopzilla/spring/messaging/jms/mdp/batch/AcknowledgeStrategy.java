@@ -0,0 +1,58 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+/**
+ * How a {@link BatchMessageListenerContainer} acknowledges a batch once the listener has returned.
+ * Transacted sessions are always committed once per batch; the strategy decides the acknowledge
+ * mode of non-transacted sessions and when the acknowledgement is made.
+ */
+public enum AcknowledgeStrategy {
+
+    /**
+     * The session uses the container's sessionAcknowledgeMode. With
+     * <code>CLIENT_ACKNOWLEDGE</code> the last message of the batch is acknowledged once, which
+     * acknowledges the whole batch. Delivery is at-least-once: a batch is redelivered if the listener
+     * fails or the worker dies before acknowledging.
+     */
+    CUMULATIVE,
+
+    /**
+     * The session uses <code>DUPS_OK_ACKNOWLEDGE</code> and the provider acknowledges lazily, in
+     * batches of its own choosing, as messages are received. The container never acknowledges.
+     * Messages the provider has already acknowledged are not redelivered if the listener fails, and
+     * unacknowledged ones may be delivered twice after a failure, so only use this where losing or
+     * repeating messages is acceptable.
+     */
+    DUPS_OK,
+
+    /**
+     * The session uses <code>CLIENT_ACKNOWLEDGE</code> and the batch is acknowledged on a separate
+     * thread while the worker receives the next batch on another session, so each worker opens
+     * maxBatchesInFlight sessions. Delivery is at-least-once, as for {@link #CUMULATIVE}, except that
+     * a batch may be redelivered after the listener has processed it if the worker stops before the
+     * acknowledgement completes. Requires a non-transacted session.
+     */
+    ASYNC
+}
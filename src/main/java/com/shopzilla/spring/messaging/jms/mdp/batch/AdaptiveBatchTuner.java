@@ -0,0 +1,346 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+/**
+ * Tunes the batch size, quiet period and batch timeout of a {@link BatchMessageListenerContainer}
+ * from what it observes about the batches it delivers.
+ *
+ * <p>
+ * The batch size follows an additive-increase, multiplicative-decrease rule. When a batch takes the
+ * listener longer than the {@link #setTargetListenerLatency(int) target listener latency}, the batch
+ * size is multiplied by the {@link #setDecreaseFactor(float) decrease factor}. Otherwise, when a
+ * batch was flushed because it was full, the batch size grows by the
+ * {@link #setBatchSizeIncrement(int) increment}, unless the listener already processed it at the
+ * {@link #setTargetThroughput(int) target throughput}. A batch that was not full says nothing about
+ * whether a larger one would help, so it leaves the batch size alone.
+ * </p>
+ *
+ * <p>
+ * The quiet period follows the arrival rate: it is kept at a
+ * {@link #setQuietPeriodMultiplier(float) multiple} of the moving average time between messages,
+ * so that a gap of several arrival intervals ends the batch. The batch timeout is twice the time a
+ * full batch takes to arrive at that rate. Every tuned value stays within its bounds. A bound that
+ * is not set defaults to a fixed value, widened if needed so that the container's configured value
+ * lies within it; a bound that is set is kept to, so a configured value outside it is clamped.
+ * </p>
+ *
+ * <p>
+ * Instances are thread-safe and may be shared by all the workers of a container, but not between
+ * containers.
+ * </p>
+ *
+ * @see BatchMessageListenerContainer#setAdaptiveBatchTuner(AdaptiveBatchTuner)
+ */
+public class AdaptiveBatchTuner {
+
+    /** Weight given to the latest batch in the moving average time between messages. */
+    private static final double ARRIVAL_INTERVAL_WEIGHT = 0.2;
+
+    /** Default lower bound of the batch size. */
+    public static final int DEFAULT_MIN_BATCH_SIZE = 1;
+
+    /** Default upper bound of the batch size. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+
+    /** Default lower bound of the quiet period, in ms. */
+    public static final int DEFAULT_MIN_QUIET_PERIOD = 10;
+
+    /** Default upper bound of the quiet period, in ms. */
+    public static final int DEFAULT_MAX_QUIET_PERIOD = BatchMessageListenerContainer.DEFAULT_QUIET_PERIOD;
+
+    /** Default lower bound of the batch timeout, in ms. */
+    public static final int DEFAULT_MIN_BATCH_TIMEOUT = 100;
+
+    /** Default upper bound of the batch timeout, in ms. */
+    public static final int DEFAULT_MAX_BATCH_TIMEOUT = BatchMessageListenerContainer.DEFAULT_BATCH_TIMEOUT;
+
+    private int targetListenerLatency = 0;
+    private int targetThroughput = 0;
+    private int batchSizeIncrement = 10;
+    private float decreaseFactor = 0.5f;
+    private float quietPeriodMultiplier = 4;
+
+    // 0 when not set
+    private int minBatchSize = 0;
+    private int maxBatchSize = 0;
+    private int minQuietPeriod = 0;
+    private int maxQuietPeriod = 0;
+    private int minBatchTimeout = 0;
+    private int maxBatchTimeout = 0;
+
+    // the bounds in effect, set by initialize
+    private int batchSizeFloor; // guarded by "this"
+    private int batchSizeCeiling; // guarded by "this"
+    private int quietPeriodFloor; // guarded by "this"
+    private int quietPeriodCeiling; // guarded by "this"
+    private int batchTimeoutFloor; // guarded by "this"
+    private int batchTimeoutCeiling; // guarded by "this"
+
+    private int batchSize; // guarded by "this"
+    private int quietPeriod; // guarded by "this"
+    private int batchTimeout; // guarded by "this"
+    private double arrivalInterval = -1; // guarded by "this"
+
+    /**
+     * Checks that the bounds are consistent.
+     *
+     * @throws IllegalStateException if a bound is negative, or a minimum is greater than the
+     *         corresponding maximum
+     */
+    void validate() {
+        validateBounds("batch size", this.minBatchSize, this.maxBatchSize);
+        validateBounds("quiet period", this.minQuietPeriod, this.maxQuietPeriod);
+        validateBounds("batch timeout", this.minBatchTimeout, this.maxBatchTimeout);
+    }
+
+    /**
+     * Starts tuning from the container's configured values, brought within bounds.
+     *
+     * @param batchSize the configured batch size
+     * @param quietPeriod the configured quiet period in ms
+     * @param batchTimeout the configured batch timeout in ms
+     */
+    synchronized void initialize(int batchSize, int quietPeriod, int batchTimeout) {
+        this.batchSizeFloor = floor(this.minBatchSize, this.maxBatchSize, DEFAULT_MIN_BATCH_SIZE, batchSize);
+        this.batchSizeCeiling = ceiling(this.minBatchSize, this.maxBatchSize, DEFAULT_MAX_BATCH_SIZE, batchSize);
+        this.quietPeriodFloor = floor(this.minQuietPeriod, this.maxQuietPeriod, DEFAULT_MIN_QUIET_PERIOD, quietPeriod);
+        this.quietPeriodCeiling = ceiling(this.minQuietPeriod, this.maxQuietPeriod, DEFAULT_MAX_QUIET_PERIOD,
+                quietPeriod);
+        this.batchTimeoutFloor = floor(this.minBatchTimeout, this.maxBatchTimeout, DEFAULT_MIN_BATCH_TIMEOUT,
+                batchTimeout);
+        this.batchTimeoutCeiling = ceiling(this.minBatchTimeout, this.maxBatchTimeout, DEFAULT_MAX_BATCH_TIMEOUT,
+                batchTimeout);
+
+        this.batchSize = clamp(batchSize, this.batchSizeFloor, this.batchSizeCeiling);
+        this.quietPeriod = clamp(quietPeriod, this.quietPeriodFloor, this.quietPeriodCeiling);
+        this.batchTimeout = clamp(batchTimeout, this.batchTimeoutFloor, this.batchTimeoutCeiling);
+        this.arrivalInterval = -1;
+    }
+
+    /**
+     * Adjusts the tuned values after the listener has processed a batch.
+     *
+     * @param size the number of messages in the batch
+     * @param arrivalSpan the time in ms between receiving the first and the last message
+     * @param listenerTime the time in ms the listener took to process the batch
+     * @param reason why the batch was flushed
+     */
+    synchronized void batchCompleted(int size, long arrivalSpan, long listenerTime, FlushReason reason) {
+        if ((this.targetListenerLatency > 0) && (listenerTime > this.targetListenerLatency)) {
+            this.batchSize = clamp((int) (this.batchSize * this.decreaseFactor), this.batchSizeFloor,
+                    this.batchSizeCeiling);
+        } else if ((reason == FlushReason.SIZE)
+                && ((this.targetThroughput <= 0) || (throughput(size, listenerTime) < this.targetThroughput))) {
+            this.batchSize = clamp(this.batchSize + this.batchSizeIncrement, this.batchSizeFloor,
+                    this.batchSizeCeiling);
+        }
+
+        if (size > 1) {
+            double interval = (double) arrivalSpan / (size - 1);
+            this.arrivalInterval = (this.arrivalInterval < 0) ? interval
+                : (this.arrivalInterval + (ARRIVAL_INTERVAL_WEIGHT * (interval - this.arrivalInterval)));
+            this.quietPeriod = clamp((int) Math.ceil(this.quietPeriodMultiplier * this.arrivalInterval),
+                    this.quietPeriodFloor, this.quietPeriodCeiling);
+            this.batchTimeout = clamp((int) Math.ceil(2 * this.batchSize * this.arrivalInterval),
+                    this.batchTimeoutFloor, this.batchTimeoutCeiling);
+        }
+    }
+
+    public synchronized int getBatchSize() {
+        return this.batchSize;
+    }
+
+    public synchronized int getQuietPeriod() {
+        return this.quietPeriod;
+    }
+
+    public synchronized int getBatchTimeout() {
+        return this.batchTimeout;
+    }
+
+    /**
+     * Specifies the longest time, in milliseconds, the listener should take to process a batch.
+     * Batches that take longer shrink the batch size.
+     *
+     * @param targetListenerLatency
+     *        the latency in ms, or 0 for no latency target; the default is 0
+     */
+    public void setTargetListenerLatency(int targetListenerLatency) {
+        this.targetListenerLatency = targetListenerLatency;
+    }
+
+    /**
+     * Specifies the rate, in messages per second, at which the listener should process a batch. The
+     * batch size stops growing once full batches are processed at this rate.
+     *
+     * @param targetThroughput
+     *        the throughput in messages per second, or 0 for no throughput target; the default is 0
+     */
+    public void setTargetThroughput(int targetThroughput) {
+        this.targetThroughput = targetThroughput;
+    }
+
+    /**
+     * Specifies how fast the batch size grows while full batches are processed within the targets.
+     *
+     * @param batchSizeIncrement
+     *        how many messages the batch size grows by after a full batch; the default is 10
+     */
+    public void setBatchSizeIncrement(int batchSizeIncrement) {
+        this.batchSizeIncrement = batchSizeIncrement;
+    }
+
+    /**
+     * Specifies how sharply the batch size shrinks when a batch misses the latency target.
+     *
+     * @param decreaseFactor
+     *        what the batch size is multiplied by after a batch misses the latency target; the
+     *        default is 0.5
+     */
+    public void setDecreaseFactor(float decreaseFactor) {
+        this.decreaseFactor = decreaseFactor;
+    }
+
+    /**
+     * Specifies how long a gap in arrivals ends a batch, relative to the average time between
+     * messages.
+     *
+     * @param quietPeriodMultiplier
+     *        how many average arrival intervals make up the quiet period; the default is 4
+     */
+    public void setQuietPeriodMultiplier(float quietPeriodMultiplier) {
+        this.quietPeriodMultiplier = quietPeriodMultiplier;
+    }
+
+    /**
+     * Specifies the smallest batch size the tuner may choose. If not set, it is
+     * {@link #DEFAULT_MIN_BATCH_SIZE}, or the container's configured batch size if that is smaller.
+     *
+     * @param minBatchSize
+     *        the lower bound, at least 1, or 0 for the default
+     */
+    public void setMinBatchSize(int minBatchSize) {
+        this.minBatchSize = minBatchSize;
+    }
+
+    /**
+     * Specifies the largest batch size the tuner may choose. If not set, it is
+     * {@link #DEFAULT_MAX_BATCH_SIZE}, or the container's configured batch size if that is larger.
+     *
+     * @param maxBatchSize
+     *        the upper bound, or 0 for the default
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Specifies the shortest quiet period the tuner may choose. If not set, it is
+     * {@link #DEFAULT_MIN_QUIET_PERIOD}, or the container's configured quiet period if that is
+     * shorter.
+     *
+     * @param minQuietPeriod
+     *        the lower bound in ms, or 0 for the default
+     */
+    public void setMinQuietPeriod(int minQuietPeriod) {
+        this.minQuietPeriod = minQuietPeriod;
+    }
+
+    /**
+     * Specifies the longest quiet period the tuner may choose. If not set, it is
+     * {@link #DEFAULT_MAX_QUIET_PERIOD}, or the container's configured quiet period if that is
+     * longer.
+     *
+     * @param maxQuietPeriod
+     *        the upper bound in ms, or 0 for the default
+     */
+    public void setMaxQuietPeriod(int maxQuietPeriod) {
+        this.maxQuietPeriod = maxQuietPeriod;
+    }
+
+    /**
+     * Specifies the shortest batch timeout the tuner may choose. If not set, it is
+     * {@link #DEFAULT_MIN_BATCH_TIMEOUT}, or the container's configured batch timeout if that is
+     * shorter.
+     *
+     * @param minBatchTimeout
+     *        the lower bound in ms, or 0 for the default
+     */
+    public void setMinBatchTimeout(int minBatchTimeout) {
+        this.minBatchTimeout = minBatchTimeout;
+    }
+
+    /**
+     * Specifies the longest batch timeout the tuner may choose. If not set, it is
+     * {@link #DEFAULT_MAX_BATCH_TIMEOUT}, or the container's configured batch timeout if that is
+     * longer.
+     *
+     * @param maxBatchTimeout
+     *        the upper bound in ms, or 0 for the default
+     */
+    public void setMaxBatchTimeout(int maxBatchTimeout) {
+        this.maxBatchTimeout = maxBatchTimeout;
+    }
+
+    private static long throughput(int size, long listenerTime) {
+        return (size * 1000L) / Math.max(1, listenerTime);
+    }
+
+    private static void validateBounds(String name, int min, int max) {
+        if ((min < 0) || (max < 0)) {
+            throw new IllegalStateException("the bounds of the " + name + " must not be negative");
+        }
+        if ((min > 0) && (max > 0) && (min > max)) {
+            throw new IllegalStateException("the minimum " + name + " must not be greater than the maximum");
+        }
+    }
+
+    /**
+     * Returns the lower bound in effect: the one set, or else the default widened to the configured
+     * value, but never above the upper bound set.
+     */
+    private static int floor(int min, int max, int defaultMin, int configured) {
+        if (min > 0) {
+            return min;
+        }
+        int floor = Math.min(defaultMin, configured);
+        return (max > 0) ? Math.min(floor, max) : floor;
+    }
+
+    /**
+     * Returns the upper bound in effect: the one set, or else the default widened to the configured
+     * value, but never below the lower bound set.
+     */
+    private static int ceiling(int min, int max, int defaultMax, int configured) {
+        if (max > 0) {
+            return max;
+        }
+        return Math.max(Math.max(defaultMax, configured), min);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import java.util.Collection;
+import java.util.concurrent.Future;
+
+import javax.jms.Message;
+
+
+/**
+ * A batch listener that processes a batch asynchronously, for listeners that mostly wait on
+ * non-blocking clients.
+ *
+ * <p>
+ * The {@link BatchMessageListenerContainer} keeps receiving while the returned future is pending,
+ * with up to {@link BatchMessageListenerContainer#setMaxBatchesInFlight(int) maxBatchesInFlight}
+ * batches per worker dispatched but not yet acknowledged. Each batch is acknowledged once its
+ * future completes successfully; batches are acknowledged in the order they were received, so a
+ * slow batch holds back those after it. A future that fails or is cancelled, or a listener that
+ * throws, stops the worker without acknowledging, and the unacknowledged batches are redelivered.
+ * The container therefore requires client acknowledgement.
+ * </p>
+ *
+ * <p>
+ * The listener is called on the worker thread, so it must not block, and it may be called again
+ * before earlier futures complete.
+ * </p>
+ *
+ * @see BatchMessageListenerContainer#setAsyncMessageListener(AsyncBatchMessageListener)
+ */
+public interface AsyncBatchMessageListener {
+
+    /**
+     * Invoked when a batch of messages are ready.
+     *
+     * @param  messages  the messages
+     *
+     * @return  a future that completes once the messages have been processed, or <code>null</code>
+     *          if they already have been
+     */
+    Future<?> onMessages(Collection<Message> messages);
+}
@@ -28,26 +28,50 @@ package com.shopzilla.spring.messaging.jms.mdp.batch;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.jms.Connection;
+import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
 import javax.jms.Session;
 
+import com.shopzilla.spring.messaging.jms.core.MessagePacker;
+
 import org.apache.commons.logging.LogFactory;
 
 import org.springframework.beans.factory.DisposableBean;
 
-import org.springframework.context.Lifecycle;
+import org.springframework.context.SmartLifecycle;
 
 import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.core.task.support.TaskExecutorAdapter;
 
 import org.springframework.jms.listener.AbstractMessageListenerContainer;
+import org.springframework.jms.listener.adapter.ListenerExecutionFailedException;
 import org.springframework.jms.support.JmsUtils;
 import org.springframework.jms.support.destination.JmsDestinationAccessor;
 
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
 /**
  * Modelled on Spring's {@link org.springframework.jms.listener.AbstractMessageListenerContainer} this supports the batching of
  * messages before being sent to an {@link com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListener} with a timeout period to ensure
@@ -59,193 +83,1956 @@ import org.springframework.jms.support.destination.JmsDestinationAccessor;
  * </p>
  *
  * <p>
- * This listener currently supports only a single worker thread which polls for messages; this is
- * necessary to ensure that an incomplete batch can be sent when a timeout expires.
+ * Each worker thread polls for messages on its own session and consumer; this is necessary to
+ * ensure that an incomplete batch can be sent when a timeout expires. The number of workers is
+ * controlled by {@link #setConcurrentConsumers(int)}, and all workers share a single connection.
+ * </p>
+ *
+ * <p>
+ * A batch is also flushed once its messages reach {@link #setMaxBatchBytes(long) maxBatchBytes}, as
+ * estimated by a {@link MessageSizeEstimator}, so that a run of large messages does not exhaust the
+ * heap.
+ * </p>
+ *
+ * <p>
+ * If {@link #setMaxConcurrentConsumers(int) maxConcurrentConsumers} is greater than
+ * concurrentConsumers the container scales between the two while running. A worker is added when
+ * most recent batches were flushed because they were full and, if a {@link QueueDepthProvider} is
+ * configured, the queue holds more than a full batch for every active worker. A worker above
+ * concurrentConsumers retires once {@link #setIdleBatchLimit(int) idleBatchLimit} of its batches in a
+ * row were flushed by the quiet period.
+ * </p>
+ *
+ * <p>
+ * By default a worker waits for the listener before receiving the next batch. In
+ * {@link #setPipelined(boolean) pipelined} mode, which requires a non-transacted session, each worker
+ * hands batches to a processing thread and keeps receiving, with up to
+ * {@link #setMaxBatchesInFlight(int) maxBatchesInFlight} batches received but not yet acknowledged.
+ * Each of those batches is received on its own session, and batches are acknowledged in the order
+ * they were received.
+ * </p>
+ *
+ * <p>
+ * A batch is acknowledged according to the {@link #setAcknowledgeStrategy(AcknowledgeStrategy)
+ * acknowledge strategy}: once per batch once the listener has returned, lazily by the provider, or
+ * asynchronously while the next batch is received.
+ * </p>
+ *
+ * <p>
+ * A {@link PartialBatchMessageListener} may be configured instead of a {@link BatchMessageListener}
+ * to report an outcome for each message; only the messages it asks to retry are redelivered, up to
+ * {@link #setMaxRetries(int) maxRetries} times, and those it rejects are dead-lettered. An
+ * {@link AsyncBatchMessageListener} returns a future instead, and each worker keeps receiving with up
+ * to maxBatchesInFlight batches dispatched, acknowledging each when its future completes.
+ * </p>
+ *
+ * <p>
+ * If a {@link #setDeadLetterDestinationName(String) dead-letter destination} is configured, a batch
+ * the listener fails on is redelivered and, if the listener fails on it again, bisected to find the
+ * messages that cause the failure, and those are sent to the dead-letter destination instead of
+ * stalling the worker.
+ * </p>
+ *
+ * <p>
+ * With a {@link #setPartitionCount(int) partition count} above 1, each batch is split by a message
+ * key into sub-batches that are passed to the listener in parallel, keeping the order of messages
+ * with the same key.
+ * </p>
+ *
+ * <p>
+ * A {@link DuplicateMessageFilter} drops messages that were processed recently before they reach
+ * the listener; they are still acknowledged with their batch.
+ * </p>
+ *
+ * <p>
+ * Envelopes of messages packed by a {@link MessagePacker}, as sent by a
+ * {@link com.shopzilla.spring.messaging.jms.core.BatchingMessageSender} that packs messages, are
+ * unpacked as they are received, so the listener sees the packed messages. They count towards the
+ * batch size individually, but an envelope is never split between batches, so a batch may exceed
+ * the batch size by the rest of its last envelope. Envelopes are acknowledged, or redelivered, with
+ * their batch; packed messages keep their message IDs when their envelope is redelivered, so a
+ * duplicate message filter still recognises them.
+ * </p>
+ *
+ * <p>
+ * Batch sizes, fill times, listener and acknowledgement times, reconnects and idle receives are
+ * reported to a {@link #setMetrics(BatchMetrics) metrics} registry if one is configured;
+ * {@link SimpleBatchMetrics} records them for JMX.
+ * </p>
+ *
+ * <p>
+ * Workers run on a {@link #setTaskExecutor(TaskExecutor) task executor}, by default a new thread
+ * each, or on {@link #setVirtualThreads(boolean) virtual threads} where the JVM supports them. A
+ * stopping worker flushes the batch it is receiving after its current receive returns, and an
+ * interrupted worker stops the same way.
+ * </p>
+ *
+ * <p>
+ * As a {@link SmartLifecycle} the container is stopped early in an application context's shutdown,
+ * and {@link #stop(Runnable)} runs its callback once every worker, including any that were retiring,
+ * has processed and acknowledged the batch it was receiving and closed its session. The container
+ * cannot be started again until then.
+ * </p>
+ *
+ * <p>
+ * The batch size, quiet period and batch timeout may be tuned at runtime by an
+ * {@link AdaptiveBatchTuner}, which takes the configured values as its starting point.
  * </p>
  *
  * @author Tim Morrow
  * @since Sep 27, 2006
  */
 public class BatchMessageListenerContainer extends JmsDestinationAccessor implements
-        DisposableBean, Lifecycle {
+        DisposableBean, SmartLifecycle {
 
     static final org.apache.commons.logging.Log log = LogFactory.getLog(BatchMessageListenerContainer.class);
 
     /**
-     * Default length of time to wait after receiving last message before decided to send a batch.
+     * Default length of time to wait after receiving last message before decided to send a batch.
+     */
+    static final int DEFAULT_QUIET_PERIOD = 1000;
+
+    /**
+     * Default length of time to spend batching messages even if quiet period is never reached.
+     *
+     * <p>
+     * After this time, all received messages will be passed to the listener. This ensures that even
+     * if messages are continuously received such that there is never a quiet period, we may still
+     * send the batch of messages before receiving a complete batch if it is taking too long.
+     * </p>
+     */
+    static final int DEFAULT_BATCH_TIMEOUT = 5000;
+
+    /**
+     * Default length of time to spend waiting for a single message. Used to block until a message
+     * is received or timeout so that we can evaluate whether to send the batch or check if this
+     * container has been requested to be stopped. A receive never waits past the time the batch is
+     * due to be sent.
+     */
+    static final int DEFAULT_RECEIVE_TIMEOUT = 1000;
+
+    /** Default length of time a worker waits before reconnecting after an error. */
+    static final int DEFAULT_RECOVERY_INTERVAL = 5000;
+
+    private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /** The default batch size. */
+    private static final int DEFAULT_BATCH_SIZE = 1;
+
+    /** The default number of concurrent consumers. */
+    private static final int DEFAULT_CONCURRENT_CONSUMERS = 1;
+
+    /** Default number of consecutive quiet-period batches after which a surplus worker retires. */
+    static final int DEFAULT_IDLE_BATCH_LIMIT = 10;
+
+    /** Default fraction of recent batches that must be full before another worker is started. */
+    static final float DEFAULT_SCALE_UP_FULL_BATCH_RATIO = 0.8f;
+
+    /** Default minimum length of time between starting workers. */
+    static final int DEFAULT_SCALE_UP_INTERVAL = 5000;
+
+    /** Default number of batches a pipelined worker may have received but not acknowledged. */
+    static final int DEFAULT_MAX_BATCHES_IN_FLIGHT = 2;
+
+    /** The message property messages are partitioned by if no other is specified. */
+    static final String DEFAULT_PARTITION_KEY_PROPERTY = "JMSXGroupID";
+
+    /** The property the provider sets to the number of times a message has been delivered. */
+    static final String DELIVERY_COUNT_PROPERTY = "JMSXDeliveryCount";
+
+    /** Default number of times a failed batch must have been delivered before it is bisected. */
+    static final int DEFAULT_BISECT_DELIVERY_COUNT = 2;
+
+    /** Default number of times a message a partial batch listener asks to retry is resent. */
+    static final int DEFAULT_MAX_RETRIES = 5;
+
+    /** The property holding the number of times a message was resent for a retry. */
+    public static final String RETRY_COUNT_PROPERTY = "batchRetryCount";
+
+    /** Weight given to the latest batch in the moving full-batch ratio. */
+    private static final float FULL_BATCH_RATIO_WEIGHT = 0.25f;
+
+    int batchSize = DEFAULT_BATCH_SIZE;
+    long maxBatchBytes = 0;
+    MessageSizeEstimator messageSizeEstimator = new BodyMessageSizeEstimator();
+    int batchTimeout = DEFAULT_BATCH_TIMEOUT;
+    int concurrentConsumers = DEFAULT_CONCURRENT_CONSUMERS;
+    int maxConcurrentConsumers = DEFAULT_CONCURRENT_CONSUMERS;
+    int idleBatchLimit = DEFAULT_IDLE_BATCH_LIMIT;
+    float scaleUpFullBatchRatio = DEFAULT_SCALE_UP_FULL_BATCH_RATIO;
+    int scaleUpInterval = DEFAULT_SCALE_UP_INTERVAL;
+    QueueDepthProvider queueDepthProvider;
+    boolean pipelined = false;
+    int maxBatchesInFlight = DEFAULT_MAX_BATCHES_IN_FLIGHT;
+    AdaptiveBatchTuner adaptiveBatchTuner;
+
+    String destinationName;
+    BatchMessageListener messageListener;
+    PartialBatchMessageListener partialBatchMessageListener;
+    AsyncBatchMessageListener asyncMessageListener;
+    String deadLetterDestinationName;
+    int bisectDeliveryCount = DEFAULT_BISECT_DELIVERY_COUNT;
+    int maxRetries = DEFAULT_MAX_RETRIES;
+    int partitionCount = 0;
+    String partitionKeyProperty = DEFAULT_PARTITION_KEY_PROPERTY;
+    TaskExecutor partitionTaskExecutor;
+    DuplicateMessageFilter duplicateMessageFilter;
+    BatchMetrics metrics;
+    int quietPeriod = DEFAULT_QUIET_PERIOD;
+    int receiveTimeout = DEFAULT_RECEIVE_TIMEOUT;
+    int recoveryInterval = DEFAULT_RECOVERY_INTERVAL;
+    int maxBatchLatency = 0;
+    boolean greedyDrain = false;
+    AcknowledgeStrategy acknowledgeStrategy = AcknowledgeStrategy.CUMULATIVE;
+    boolean virtualThreads = false;
+    boolean autoStartup = true;
+    int phase = Integer.MAX_VALUE;
+    private volatile boolean running = false;
+    private TaskExecutor taskExecutor;
+    private ExecutorService virtualThreadExecutor;
+    private ThreadPoolTaskExecutor defaultPartitionTaskExecutor;
+
+    // workers that have been started and have not retired; a worker that died with a failure stays
+    // here until the container is restarted so that the failure can be reported
+    private final List<Worker> workers = new ArrayList<Worker>(); // guarded by "workers"
+    private int activeWorkers = 0; // guarded by "workers"
+    // workers whose run loop has not exited yet, including those retiring or stopping
+    private int liveWorkers = 0; // guarded by "workers"
+    private float fullBatchRatio = 0; // guarded by "workers"
+    private boolean scaledUp = false; // guarded by "workers"
+    private long lastScaleUp; // in nanoseconds; guarded by "workers"
+    private final List<Runnable> stopCallbacks = new ArrayList<Runnable>(); // guarded by "workers"
+
+    private final Object connectionMonitor = new Object();
+    private Connection sharedConnection; // guarded by connectionMonitor
+
+    @Override
+    public void afterPropertiesSet() {
+        super.afterPropertiesSet();
+
+        if (destinationName == null) {
+            throw new IllegalStateException("destinationName is required");
+        }
+
+        if (concurrentConsumers < 1) {
+            throw new IllegalStateException("concurrentConsumers must be at least 1");
+        }
+
+        if (maxConcurrentConsumers < concurrentConsumers) {
+            throw new IllegalStateException(
+                    "maxConcurrentConsumers must not be less than concurrentConsumers");
+        }
+
+        if (pipelined && isSessionTransacted()) {
+            throw new IllegalStateException("pipelined mode requires a non-transacted session");
+        }
+
+        if (pipelined && (maxBatchesInFlight < 2)) {
+            throw new IllegalStateException("pipelined mode requires maxBatchesInFlight of at least 2");
+        }
+
+        if (((messageListener != null) ? 1 : 0) + ((partialBatchMessageListener != null) ? 1 : 0)
+                + ((asyncMessageListener != null) ? 1 : 0) > 1) {
+            throw new IllegalStateException("only one of messageListener, partialBatchMessageListener and "
+                    + "asyncMessageListener may be specified");
+        }
+
+        if ((partialBatchMessageListener != null) && isPubSubDomain()) {
+            throw new IllegalStateException("a partialBatchMessageListener requires a queue, as a retry "
+                    + "would be resent to every subscriber of a topic");
+        }
+
+        if (bisectDeliveryCount < 1) {
+            throw new IllegalStateException("bisectDeliveryCount must be at least 1");
+        }
+
+        if (maxRetries < 0) {
+            throw new IllegalStateException("maxRetries must not be negative");
+        }
+
+        if (asyncMessageListener != null) {
+            if (pipelined) {
+                throw new IllegalStateException("pipelined mode does not apply to an asyncMessageListener");
+            }
+            if (isSessionTransacted()) {
+                throw new IllegalStateException("an asyncMessageListener requires a non-transacted session");
+            }
+            if (getWorkerAcknowledgeMode() != Session.CLIENT_ACKNOWLEDGE) {
+                throw new IllegalStateException("an asyncMessageListener requires CLIENT_ACKNOWLEDGE or the "
+                        + "ASYNC acknowledge strategy, or messages are acknowledged before they are processed");
+            }
+            if (maxBatchesInFlight < 2) {
+                throw new IllegalStateException("an asyncMessageListener requires maxBatchesInFlight of at least 2");
+            }
+            if (partitionCount > 1) {
+                throw new IllegalStateException("an asyncMessageListener cannot be partitioned");
+            }
+        }
+
+        if (maxBatchBytes < 0) {
+            throw new IllegalStateException("maxBatchBytes must not be negative");
+        }
+
+        if ((maxBatchBytes > 0) && (messageSizeEstimator == null)) {
+            throw new IllegalStateException("maxBatchBytes requires a messageSizeEstimator");
+        }
+
+        if (receiveTimeout < 1) {
+            throw new IllegalStateException("receiveTimeout must be at least 1");
+        }
+
+        if (recoveryInterval < 1) {
+            throw new IllegalStateException("recoveryInterval must be at least 1");
+        }
+
+        if (adaptiveBatchTuner != null) {
+            adaptiveBatchTuner.validate();
+        }
+
+        if (partitionCount < 0) {
+            throw new IllegalStateException("partitionCount must not be negative");
+        }
+
+        if (acknowledgeStrategy == null) {
+            throw new IllegalStateException("acknowledgeStrategy is required");
+        }
+
+        if ((acknowledgeStrategy == AcknowledgeStrategy.ASYNC) && isSessionTransacted()) {
+            throw new IllegalStateException("asynchronous acknowledgement requires a non-transacted session");
+        }
+
+        if ((acknowledgeStrategy == AcknowledgeStrategy.ASYNC) && (maxBatchesInFlight < 2)) {
+            throw new IllegalStateException(
+                    "asynchronous acknowledgement requires maxBatchesInFlight of at least 2");
+        }
+
+        if (virtualThreads && (taskExecutor != null) && (virtualThreadExecutor == null)) {
+            throw new IllegalStateException("only one of taskExecutor and virtualThreads may be specified");
+        }
+
+        initExecutors();
+
+        if (autoStartup) {
+            start();
+        }
+    }
+
+    /**
+     * Creates the executors the container owns, or creates them again if {@link #destroy()} shut
+     * them down.
+     */
+    private void initExecutors() {
+        if ((partitionCount > 1) && (partitionTaskExecutor == null) && ((defaultPartitionTaskExecutor == null)
+                || defaultPartitionTaskExecutor.getThreadPoolExecutor().isShutdown())) {
+            // the calling worker processes one partition itself
+            ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+            executor.setCorePoolSize((partitionCount - 1) * maxConcurrentConsumers);
+            executor.setThreadNamePrefix("BatchMessageListenerContainer-partition-");
+            executor.afterPropertiesSet();
+            defaultPartitionTaskExecutor = executor;
+        }
+
+        if (virtualThreads && ((virtualThreadExecutor == null) || virtualThreadExecutor.isShutdown())) {
+            virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+            taskExecutor = new TaskExecutorAdapter(virtualThreadExecutor);
+        } else if (taskExecutor == null) {
+            taskExecutor = new SimpleAsyncTaskExecutor();
+        }
+    }
+
+    /**
+     * Stops the container and shuts down the executors it created. Workers that are still finishing
+     * their batch keep running, and a partitioned batch they pass to the listener then runs its
+     * partitions on the worker's thread. The executors are created again if the container is
+     * restarted.
+     */
+    public void destroy() {
+        stop();
+        destroyListener();
+        if (this.defaultPartitionTaskExecutor != null) {
+            this.defaultPartitionTaskExecutor.shutdown();
+        }
+        if (this.virtualThreadExecutor != null) {
+            this.virtualThreadExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread for each task, using reflection so that the
+     * container still runs on JVMs without virtual threads; overridden by tests.
+     */
+    ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("virtualThreads requires a JVM with virtual threads (Java 21 or later)");
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not create a virtual thread executor", e);
+        }
+    }
+
+    /**
+     * Returns the current value of the clock that batch deadlines and timings are measured by, in
+     * nanoseconds; overridden by tests to control time.
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Returns the failure of the first worker that died, if any.
+     *
+     * @return the failure, or <code>null</code> if no worker has failed
+     */
+    public Throwable getFailure() {
+        for (Worker worker : getWorkers()) {
+            Throwable failure = worker.getFailure();
+            if (failure != null) {
+                return failure;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of workers currently polling for messages.
+     *
+     * @return the number of active workers
+     */
+    public int getActiveConsumerCount() {
+        synchronized (this.workers) {
+            return this.activeWorkers;
+        }
+    }
+
+    public boolean isFailure() {
+        for (Worker worker : getWorkers()) {
+            if (worker.isFailure()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean isAutoStartup() {
+        return autoStartup;
+    }
+
+    /**
+     * Specifies whether the container starts once it is configured and when its application context
+     * is refreshed.
+     *
+     * @param autoStartup
+     *        <code>false</code> to wait for {@link #start()}; the default is <code>true</code>
+     */
+    public void setAutoStartup(boolean autoStartup) {
+        this.autoStartup = autoStartup;
+    }
+
+    public int getPhase() {
+        return phase;
+    }
+
+    /**
+     * Specifies the lifecycle phase the container is started and stopped in.
+     *
+     * @param phase
+     *        the phase; the default is <code>Integer.MAX_VALUE</code>, so the container starts last
+     *        and stops first, before the resources its listener uses
+     */
+    public void setPhase(int phase) {
+        this.phase = phase;
+    }
+
+    /**
+     * Specifies the executor workers run on. Each worker occupies a thread of the executor until it
+     * stops, and pipelined or asynchronously acknowledging workers occupy two, so a pooled executor
+     * must have at least that many threads for every consumer.
+     *
+     * @param taskExecutor
+     *        the executor, or <code>null</code> to start a new thread for each worker
+     */
+    public void setTaskExecutor(TaskExecutor taskExecutor) {
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Specifies whether workers run on virtual threads instead of a {@link #setTaskExecutor(TaskExecutor)
+     * task executor}.
+     *
+     * <p>
+     * A worker spends most of its time blocked in a receive, so virtual threads let a JVM host many
+     * containers, for example one per queue, without a platform thread for each worker. This requires
+     * a Java 21 or later runtime. Providers that block in a receive while holding a monitor, as
+     * HornetQ does, pin the carrier thread for the length of the receive on JVMs before Java 24, so
+     * there keep the {@link #setReceiveTimeout(int) receive timeout} short or use a task executor.
+     * </p>
+     *
+     * @param virtualThreads
+     *        <code>true</code> to start a virtual thread for each worker; the default is
+     *        <code>false</code>
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Specifies how batches are acknowledged. Transacted sessions are committed once per batch
+     * whatever the strategy.
+     *
+     * @param acknowledgeStrategy
+     *        the strategy; the default is {@link AcknowledgeStrategy#CUMULATIVE}
+     *
+     * @see AcknowledgeStrategy
+     */
+    public void setAcknowledgeStrategy(AcknowledgeStrategy acknowledgeStrategy) {
+        this.acknowledgeStrategy = acknowledgeStrategy;
+    }
+
+    /**
+     * Specifies how many partitions each batch is split into.
+     *
+     * <p>
+     * With more than one partition, messages are assigned to a partition by the hash of their
+     * {@link #setPartitionKeyProperty(String) partition key}, and the partitions of a batch are passed
+     * to the listener in parallel, so the listener must be thread-safe. The batch is acknowledged
+     * once every partition is done. Messages with the same key keep their order within a batch, and
+     * a worker finishes a batch before starting the next. Messages of one key are only kept in order
+     * across workers if the broker delivers them to a single consumer, as it does for
+     * <code>JMSXGroupID</code> message groups; otherwise use one concurrent consumer.
+     * </p>
+     *
+     * @param partitionCount
+     *        the number of partitions, or 0 or 1 to pass each batch to the listener whole; the
+     *        default is 0
+     */
+    public void setPartitionCount(int partitionCount) {
+        this.partitionCount = partitionCount;
+    }
+
+    /**
+     * Specifies the message property batches are partitioned by.
+     *
+     * @param partitionKeyProperty
+     *        the property name; the default is <code>JMSXGroupID</code>
+     */
+    public void setPartitionKeyProperty(String partitionKeyProperty) {
+        this.partitionKeyProperty = partitionKeyProperty;
+    }
+
+    /**
+     * Specifies the executor partitions are processed on. A worker processes the first partition of
+     * each batch itself.
+     *
+     * @param partitionTaskExecutor
+     *        the executor, or <code>null</code> to use a thread pool owned by the container with
+     *        partitionCount - 1 threads per consumer
+     */
+    public void setPartitionTaskExecutor(TaskExecutor partitionTaskExecutor) {
+        this.partitionTaskExecutor = partitionTaskExecutor;
+    }
+
+    /**
+     * Specifies a filter to drop messages that were processed recently. Dropped messages are
+     * acknowledged with the rest of their batch, and a batch of only duplicates is not passed to the
+     * listener.
+     *
+     * @param duplicateMessageFilter
+     *        the filter, or <code>null</code> to pass every message to the listener
+     */
+    public void setDuplicateMessageFilter(DuplicateMessageFilter duplicateMessageFilter) {
+        this.duplicateMessageFilter = duplicateMessageFilter;
+    }
+
+    /**
+     * Specifies where to report measurements of batches and the listener.
+     *
+     * @param metrics
+     *        the metrics registry, or <code>null</code> to measure nothing
+     *
+     * @see SimpleBatchMetrics
+     */
+    public void setMetrics(BatchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Specifies a tuner to adjust the batch size, quiet period and batch timeout as the container
+     * runs. The configured values are used as the starting point.
+     *
+     * @param adaptiveBatchTuner
+     *        the tuner, or <code>null</code> to use the configured values throughout
+     */
+    public void setAdaptiveBatchTuner(AdaptiveBatchTuner adaptiveBatchTuner) {
+        this.adaptiveBatchTuner = adaptiveBatchTuner;
+    }
+
+    /**
+     * Specifies the batch size.
+     *
+     * @param batchSize
+     *        the number of messages to receive in a batch; the default is 1
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Specifies the size in bytes at which a batch is flushed, whatever its number of messages. The
+     * batch is flushed once it reaches the limit, so it may exceed it by one message.
+     *
+     * @param maxBatchBytes
+     *        the size in bytes, as estimated by the {@link #setMessageSizeEstimator(MessageSizeEstimator)
+     *        message size estimator}, or 0 for no limit; the default is 0
+     */
+    public void setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Specifies how the size of a message is estimated, for {@link #setMaxBatchBytes(long)
+     * maxBatchBytes} and the byte totals reported to the {@link #setMetrics(BatchMetrics) metrics}.
+     *
+     * @param messageSizeEstimator
+     *        the estimator, or <code>null</code> to not estimate sizes; the default is a
+     *        {@link BodyMessageSizeEstimator}
+     */
+    public void setMessageSizeEstimator(MessageSizeEstimator messageSizeEstimator) {
+        this.messageSizeEstimator = messageSizeEstimator;
+    }
+
+    /**
+     * Specifies the greatest length of time, in milliseconds, that should be spent accumulating a
+     * batch of messages.
+     *
+     * <p>
+     * After this time, any received messages will be sent to the listener, regardless of whether it
+     * makes a full batch.
+     * </p>
+     *
+     * @param batchTimeout
+     *        the timeout in ms; the default is 5000 ms (5 seconds)
+     */
+    public void setBatchTimeout(int batchTimeout) {
+        this.batchTimeout = batchTimeout;
+    }
+
+    /**
+     * Specifies the number of workers to run, each with its own session and consumer.
+     *
+     * <p>
+     * This may be changed while the container is running, in which case workers are started or
+     * retired to match, up to {@link #setMaxConcurrentConsumers(int) maxConcurrentConsumers}.
+     * </p>
+     *
+     * @param concurrentConsumers
+     *        the number of concurrent consumers; the default is 1
+     */
+    public void setConcurrentConsumers(int concurrentConsumers) {
+        synchronized (this.workers) {
+            this.concurrentConsumers = concurrentConsumers;
+            if (this.maxConcurrentConsumers < concurrentConsumers) {
+                this.maxConcurrentConsumers = concurrentConsumers;
+            }
+        }
+        if (running) {
+            adjustWorkers();
+        }
+    }
+
+    /**
+     * Specifies the greatest number of workers that may be run.
+     *
+     * <p>
+     * This bounds any later change to {@link #setConcurrentConsumers(int) concurrentConsumers} made
+     * while the container is running.
+     * </p>
+     *
+     * @param maxConcurrentConsumers
+     *        the maximum number of concurrent consumers; the default is 1
+     */
+    public void setMaxConcurrentConsumers(int maxConcurrentConsumers) {
+        synchronized (this.workers) {
+            this.maxConcurrentConsumers = maxConcurrentConsumers;
+        }
+    }
+
+    /**
+     * Specifies how many batches in a row a worker must flush on the quiet period before it is
+     * retired. Only workers above {@link #setConcurrentConsumers(int) concurrentConsumers} are
+     * retired.
+     *
+     * @param idleBatchLimit
+     *        the number of idle batches; the default is 10
+     */
+    public void setIdleBatchLimit(int idleBatchLimit) {
+        this.idleBatchLimit = idleBatchLimit;
+    }
+
+    /**
+     * Specifies a source for the number of messages waiting on the queue. When set, a worker is only
+     * added if the backlog exceeds one full batch per active worker; otherwise the decision rests on
+     * the full-batch ratio alone.
+     *
+     * @param queueDepthProvider
+     *        the queue depth provider, or <code>null</code> for none
+     */
+    public void setQueueDepthProvider(QueueDepthProvider queueDepthProvider) {
+        this.queueDepthProvider = queueDepthProvider;
+    }
+
+    /**
+     * Specifies the fraction of recent batches, as a moving average, that must have been flushed
+     * because they were full before another worker is started.
+     *
+     * @param scaleUpFullBatchRatio
+     *        a ratio between 0 and 1; the default is 0.8
+     */
+    public void setScaleUpFullBatchRatio(float scaleUpFullBatchRatio) {
+        this.scaleUpFullBatchRatio = scaleUpFullBatchRatio;
+    }
+
+    /**
+     * Specifies the least length of time, in milliseconds, between starting workers. This also
+     * limits how often the {@link QueueDepthProvider} is asked for the queue depth.
+     *
+     * @param scaleUpInterval
+     *        the interval in ms; the default is 5000 ms (5 seconds)
+     */
+    public void setScaleUpInterval(int scaleUpInterval) {
+        this.scaleUpInterval = scaleUpInterval;
+    }
+
+    /**
+     * Specifies a destination name to listen on.
+     *
+     * <p>
+     * This is resolved at runtime.
+     * </p>
+     *
+     * @param destinationName
+     *        the name of the destination to listen on
+     *
+     * @see #resolveDestinationName(Session, String)
+     */
+    public void setDestinationName(String destinationName) {
+        this.destinationName = destinationName;
+    }
+
+    /**
+     * Specifies a destination to send messages to that the listener fails on.
+     *
+     * <p>
+     * When the listener throws on a batch that has not yet been delivered
+     * {@link #setBisectDeliveryCount(int) bisectDeliveryCount} times, the session is rolled back, or
+     * recovered if it uses client acknowledgement, so that the batch is redelivered; a transient
+     * failure then costs no more than a second attempt. When it throws on a batch that has, the batch
+     * is split in half and each half passed to the listener again, recursively splitting every half
+     * that fails, until the messages that fail on their own are found. Those are sent to the
+     * dead-letter destination, in the session's transaction if it is transacted, and the batch is
+     * acknowledged. If the listener fails on every message on its own, the failure is taken to be
+     * unrelated to the messages, such as an unavailable database, and is rethrown without sending
+     * anything to the dead-letter destination; the provider's own redelivery limit is then what ends
+     * the attempts. Finding that out takes one call for every message, and one for every part split
+     * on the way down to them.
+     * </p>
+     *
+     * <p>
+     * With automatic or lazy acknowledgement a failed batch cannot be redelivered to the container,
+     * so it is bisected on the first failure.
+     * </p>
+     *
+     * <p>
+     * Messages in parts that succeeded are not passed to the listener again, but those that were
+     * processed before the listener failed on the whole batch are.
+     * </p>
+     *
+     * <p>
+     * Messages a {@link PartialBatchMessageListener} rejects, or asks to retry more than
+     * {@link #setMaxRetries(int) maxRetries} times, are also sent to the dead-letter destination;
+     * without one they are discarded.
+     * </p>
+     *
+     * @param deadLetterDestinationName
+     *        the name of the dead-letter destination, resolved at runtime, or <code>null</code> to
+     *        redeliver the whole batch when the listener fails; the default is <code>null</code>
+     */
+    public void setDeadLetterDestinationName(String deadLetterDestinationName) {
+        this.deadLetterDestinationName = deadLetterDestinationName;
+    }
+
+    /**
+     * Specifies how many times a batch the listener fails on must have been delivered before it is
+     * bisected, if there is a {@link #setDeadLetterDestinationName(String) dead-letter destination}.
+     * A batch has been delivered as many times as the message in it delivered most often, as told by
+     * the <code>JMSXDeliveryCount</code> property, or by the redelivered flag if the provider does not
+     * set that property.
+     *
+     * @param bisectDeliveryCount
+     *        the number of deliveries, or 1 to bisect a batch the first time the listener fails on
+     *        it; the default is 2
+     */
+    public void setBisectDeliveryCount(int bisectDeliveryCount) {
+        this.bisectDeliveryCount = bisectDeliveryCount;
+    }
+
+    /**
+     * Specifies how many times a message a {@link PartialBatchMessageListener} asks to retry is
+     * resent. Each resend increments the message's {@link #RETRY_COUNT_PROPERTY} property; once that
+     * reaches the limit, a further retry is sent to the
+     * {@link #setDeadLetterDestinationName(String) dead-letter destination} instead, or discarded if
+     * there is none.
+     *
+     * @param maxRetries
+     *        the number of retries, or 0 for no limit; the default is 5
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Specifies how many batches a pipelined or asynchronous worker may have received but not yet
+     * acknowledged, including the batch being filled. Each worker opens this many sessions.
+     *
+     * @param maxBatchesInFlight
+     *        the number of batches; the default is 2
+     */
+    public void setMaxBatchesInFlight(int maxBatchesInFlight) {
+        this.maxBatchesInFlight = maxBatchesInFlight;
+    }
+
+    /**
+     * Specifies whether workers take every message the consumer already holds, with
+     * {@link MessageConsumer#receiveNoWait()}, before blocking in a timed receive.
+     *
+     * <p>
+     * On a busy queue this fills a batch without a timed receive and clock read per message. When
+     * the consumer's buffer is empty the worker blocks as usual.
+     * </p>
+     *
+     * @param greedyDrain
+     *        <code>true</code> to drain greedily; the default is <code>false</code>
+     */
+    public void setGreedyDrain(boolean greedyDrain) {
+        this.greedyDrain = greedyDrain;
+    }
+
+    /**
+     * Specifies the greatest length of time, in milliseconds, between receiving the first message of
+     * a batch and passing the batch to the listener.
+     *
+     * <p>
+     * Unlike the batch timeout, which starts when the worker begins waiting for a batch, this bounds
+     * how long any received message waits for its batch to fill.
+     * </p>
+     *
+     * @param maxBatchLatency
+     *        the latency in ms, or 0 for no limit beyond the batch timeout; the default is 0
+     */
+    public void setMaxBatchLatency(int maxBatchLatency) {
+        this.maxBatchLatency = maxBatchLatency;
+    }
+
+    /**
+     * Specifies the message listener to pass batches of messages to.
+     *
+     * @param messageListener
+     *        the message listener
+     */
+    public void setMessageListener(BatchMessageListener messageListener) {
+        this.messageListener = messageListener;
+    }
+
+    /**
+     * Specifies a listener that reports an outcome for each message, to use instead of a
+     * {@link #setMessageListener(BatchMessageListener) message listener}. The destination must be a
+     * queue.
+     *
+     * @param partialBatchMessageListener
+     *        the listener
+     *
+     * @see PartialBatchMessageListener
+     */
+    public void setPartialBatchMessageListener(PartialBatchMessageListener partialBatchMessageListener) {
+        this.partialBatchMessageListener = partialBatchMessageListener;
+    }
+
+    /**
+     * Specifies a listener that processes batches asynchronously, to use instead of a
+     * {@link #setMessageListener(BatchMessageListener) message listener}. Each worker has up to
+     * {@link #setMaxBatchesInFlight(int) maxBatchesInFlight} batches dispatched to it, and the session
+     * must not be transacted. The session acknowledge mode must be <code>CLIENT_ACKNOWLEDGE</code>,
+     * or the {@link #setAcknowledgeStrategy(AcknowledgeStrategy) acknowledge strategy}
+     * {@link AcknowledgeStrategy#ASYNC}, which uses it; in any other mode messages would be
+     * acknowledged as they are received, and lost if the future fails.
+     *
+     * @param asyncMessageListener
+     *        the listener
+     *
+     * @see AsyncBatchMessageListener
+     */
+    public void setAsyncMessageListener(AsyncBatchMessageListener asyncMessageListener) {
+        this.asyncMessageListener = asyncMessageListener;
+    }
+
+    /**
+     * Specifies whether workers keep receiving while the listener processes earlier batches.
+     *
+     * <p>
+     * The listener is invoked on a separate thread obtained from the task executor, one per
+     * worker, and is never invoked concurrently for the same worker. Only supported for
+     * non-transacted sessions; use <code>CLIENT_ACKNOWLEDGE</code> for batches to be redelivered if the
+     * listener fails.
+     * </p>
+     *
+     * @param pipelined
+     *        <code>true</code> to pipeline; the default is <code>false</code>
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Specifies the quiet period.
+     *
+     * <p>
+     * If no message is received for this length of time, the batch is sent.
+     * </p>
+     *
+     * @param quietPeriod
+     *        the quiet period; the default is 1000 ms (1 second)
+     */
+    public void setQuietPeriod(int quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+
+    /**
+     * Specifies the longest a worker waits in a single receive. A stopping worker notices the request
+     * once its current receive returns, so this bounds how long {@link #stop()} takes to reach an
+     * idle worker.
+     *
+     * @param receiveTimeout
+     *        the timeout in ms; the default is 1000 ms (1 second)
+     */
+    public void setReceiveTimeout(int receiveTimeout) {
+        this.receiveTimeout = receiveTimeout;
+    }
+
+    /**
+     * Specifies how long a worker waits before reconnecting after an error, such as the broker
+     * becoming unavailable. A stop request ends the wait.
+     *
+     * @param recoveryInterval
+     *        the interval in ms; the default is 5000 ms (5 seconds)
+     */
+    public void setRecoveryInterval(int recoveryInterval) {
+        this.recoveryInterval = recoveryInterval;
+    }
+
+    /**
+     * Starts the workers.
+     *
+     * @throws IllegalStateException
+     *         if workers of an earlier {@link #stop()} are still finishing their batches
+     */
+    public void start() {
+        synchronized (this.workers) {
+            if (running) {
+                return;
+            }
+            if (this.liveWorkers != 0) {
+                throw new IllegalStateException("Cannot start until the " + this.liveWorkers
+                        + " workers of the previous stop have finished");
+            }
+            running = true;
+            initExecutors();
+            registerListener();
+        }
+        if (log.isInfoEnabled()) {
+            log.info("listener container  started");
+        }
+    }
+
+    public void stop() {
+        try {
+            doStop();
+            if (log.isInfoEnabled()) {
+                log.info("listener container stopped");
+            }
+        } catch (JMSException e) {
+            throw convertJmsAccessException(e);
+        }
+    }
+
+    /**
+     * Stops the container and runs the callback once every worker has finished. Each worker passes
+     * the batch it is receiving to the listener as soon as its current receive returns, without
+     * waiting for the batch to fill or go quiet, acknowledges it and closes its session. Stopping
+     * therefore takes at most the {@link #setReceiveTimeout(int) receive timeout} plus the time the
+     * listener and the acknowledgement take.
+     *
+     * @param callback
+     *        run when the last worker has finished and the shared connection is closed, on the
+     *        thread of that worker or on the calling thread if no worker is running
+     */
+    public void stop(Runnable callback) {
+        synchronized (this.workers) {
+            this.stopCallbacks.add(callback);
+        }
+        stop();
+    }
+
+    void doStop() throws JMSException {
+        running = false;
+        destroyListener();
+    }
+
+    private void destroyListener() {
+        for (Worker worker : getWorkers()) {
+            worker.stop();
+        }
+
+        finishStopIfIdle();
+    }
+
+    /**
+     * Closes the shared connection and runs the stop callbacks once the container is stopped and the
+     * last worker has finished.
+     */
+    private void finishStopIfIdle() {
+        List<Runnable> callbacks;
+        synchronized (this.workers) {
+            if (running || (this.liveWorkers != 0)) {
+                return;
+            }
+            closeSharedConnection();
+            callbacks = new ArrayList<Runnable>(this.stopCallbacks);
+            this.stopCallbacks.clear();
+        }
+
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    private void registerListener() {
+        if (this.adaptiveBatchTuner != null) {
+            this.adaptiveBatchTuner.initialize(this.batchSize, this.quietPeriod, this.batchTimeout);
+        }
+
+        synchronized (this.workers) {
+            this.workers.clear();
+            this.activeWorkers = 0;
+        }
+        adjustWorkers();
+    }
+
+    /**
+     * Starts or retires workers until the number of active workers matches concurrentConsumers.
+     */
+    private void adjustWorkers() {
+        synchronized (this.workers) {
+            int target = Math.min(this.concurrentConsumers, this.maxConcurrentConsumers);
+            while (running && this.activeWorkers < target) {
+                execute(new Worker());
+            }
+            for (int i = this.workers.size() - 1; (i >= 0) && (this.activeWorkers > target); i--) {
+                Worker worker = this.workers.get(i);
+                if (worker.retire()) {
+                    this.activeWorkers--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts a new worker as active and live and runs it. Must be called while holding the lock on
+     * the workers.
+     */
+    private void execute(Worker worker) {
+        this.workers.add(worker);
+        this.activeWorkers++;
+        this.liveWorkers++;
+        taskExecutor.execute(worker);
+    }
+
+    /**
+     * Records how a batch was flushed and, if the batch was full, decides whether to add a worker.
+     */
+    private void scaleUpIfBacklogged(Worker worker, FlushReason reason) {
+        long backlogThreshold;
+        synchronized (this.workers) {
+            boolean full = reason == FlushReason.SIZE;
+            this.fullBatchRatio += FULL_BATCH_RATIO_WEIGHT * ((full ? 1 : 0) - this.fullBatchRatio);
+            if (!full || !running || (this.activeWorkers >= this.maxConcurrentConsumers)
+                    || (this.fullBatchRatio < this.scaleUpFullBatchRatio)
+                    || (this.scaledUp
+                            && ((nanoTime() - this.lastScaleUp) < TimeUnit.MILLISECONDS.toNanos(this.scaleUpInterval)))) {
+                return;
+            }
+            this.scaledUp = true;
+            this.lastScaleUp = nanoTime();
+            backlogThreshold = (long) this.activeWorkers * currentBatchSize();
+        }
+
+        if ((this.queueDepthProvider != null) && (worker.destination instanceof Queue)) {
+            try {
+                long depth = this.queueDepthProvider.getQueueDepth(worker.connection, (Queue) worker.destination);
+                if (depth <= backlogThreshold) {
+                    return;
+                }
+            } catch (JMSException e) {
+                log.warn("Could not determine queue depth; not adding a worker", e);
+                return;
+            }
+        }
+
+        synchronized (this.workers) {
+            if (running && (this.activeWorkers < this.maxConcurrentConsumers)) {
+                execute(new Worker());
+                if (log.isInfoEnabled()) {
+                    log.info("Added a worker; " + this.activeWorkers + " now active");
+                }
+            }
+        }
+    }
+
+    /**
+     * Retires the worker if the container has more workers than concurrentConsumers.
+     *
+     * @return <code>true</code> if the worker was retired
+     */
+    private boolean retireIfSurplus(Worker worker) {
+        synchronized (this.workers) {
+            if ((this.activeWorkers > this.concurrentConsumers) && worker.retire()) {
+                this.activeWorkers--;
+                if (log.isInfoEnabled()) {
+                    log.info("Retired an idle worker; " + this.activeWorkers + " now active");
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    int currentBatchSize() {
+        return (this.adaptiveBatchTuner != null) ? this.adaptiveBatchTuner.getBatchSize() : this.batchSize;
+    }
+
+    int currentQuietPeriod() {
+        return (this.adaptiveBatchTuner != null) ? this.adaptiveBatchTuner.getQuietPeriod() : this.quietPeriod;
+    }
+
+    int currentBatchTimeout() {
+        return (this.adaptiveBatchTuner != null) ? this.adaptiveBatchTuner.getBatchTimeout() : this.batchTimeout;
+    }
+
+    /**
+     * Passes a batch to the listener, less any duplicates, timing it for the tuner if there is one.
+     * If the listener fails and there is a dead-letter destination, the batch is redelivered or
+     * bisected.
+     *
+     * @return the messages to resend before the batch is acknowledged, or <code>null</code> if there
+     *         are none
+     */
+    BatchOutcome invokeListener(Collection<Message> batch, long arrivalSpan, FlushReason reason) {
+        final Collection<Message> messages = removeDuplicates(batch);
+        if (messages.isEmpty()) {
+            return null;
+        }
+
+        final long start = nanoTime();
+        BatchOutcome outcome = null;
+        RuntimeException failure = null;
+        try {
+            outcome = callListener(messages);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        return listenerCompleted(messages, outcome, failure, start, arrivalSpan, reason);
+    }
+
+    /**
+     * Passes a batch to the asynchronous listener without waiting for it to be processed.
+     */
+    PendingBatch dispatch(Session session, Collection<Message> batch, long arrivalSpan, FlushReason reason) {
+        final PendingBatch pending = new PendingBatch(session, batch, null, arrivalSpan, reason);
+        pending.dispatched = removeDuplicates(batch);
+        if (!pending.dispatched.isEmpty()) {
+            pending.start = nanoTime();
+            try {
+                pending.future = this.asyncMessageListener.onMessages(pending.dispatched);
+            } catch (RuntimeException e) {
+                pending.dispatchFailure = e;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Waits for the asynchronous listener to process a dispatched batch.
+     */
+    BatchOutcome awaitListener(PendingBatch batch) {
+        if (batch.dispatched.isEmpty()) {
+            return null;
+        }
+
+        RuntimeException failure = batch.dispatchFailure;
+        if (failure == null) {
+            try {
+                await(batch.future);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+        return listenerCompleted(batch.dispatched, null, failure, batch.start, batch.arrivalSpan, batch.reason);
+    }
+
+    /**
+     * Redelivers or bisects the batch if the listener failed on it, and reports the batch to the
+     * metrics and, unless it is to be redelivered, the tuner and the duplicate filter.
+     *
+     * @return the messages to send elsewhere, or <code>null</code> if there are none
+     */
+    private BatchOutcome listenerCompleted(Collection<Message> messages, BatchOutcome listenerOutcome,
+            RuntimeException failure, long start, long arrivalSpan, FlushReason reason) {
+        BatchOutcome outcome = new BatchOutcome();
+        boolean failed = true;
+        try {
+            if (failure == null) {
+                outcome.add(listenerOutcome);
+            } else {
+                if ((this.deadLetterDestinationName == null) || (messages.size() < 2)) {
+                    throw failure;
+                }
+                if (canRedeliver() && (getDeliveryCount(messages) < this.bisectDeliveryCount)) {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Listener failed on a batch of " + messages.size()
+                                + " messages; redelivering it before bisecting it", failure);
+                    }
+                    outcome.redeliver = true;
+                    return outcome;
+                }
+                if (log.isWarnEnabled()) {
+                    log.warn("Listener failed on a batch of " + messages.size() + " messages; bisecting it",
+                            failure);
+                }
+                final List<Message> poison = new ArrayList<Message>();
+                isolate(new ArrayList<Message>(messages), failure, outcome, poison);
+                if (poison.size() == messages.size()) {
+                    // failing on every message on its own is not down to the messages
+                    throw failure;
+                }
+                if (log.isWarnEnabled()) {
+                    log.warn("Listener failed on " + poison.size() + " of " + messages.size()
+                            + " messages on their own; sending them to " + this.deadLetterDestinationName);
+                }
+                outcome.deadLetters.addAll(poison);
+            }
+            failed = false;
+        } finally {
+            if (this.metrics != null) {
+                this.metrics.listenerInvoked(messages.size(), nanoTime() - start, failed);
+            }
+        }
+        if (this.adaptiveBatchTuner != null) {
+            this.adaptiveBatchTuner.batchCompleted(messages.size(), arrivalSpan,
+                    TimeUnit.NANOSECONDS.toMillis(nanoTime() - start), reason);
+        }
+        addProcessed(messages, outcome);
+        return outcome.isEmpty() ? null : outcome;
+    }
+
+    private Collection<Message> removeDuplicates(Collection<Message> messages) {
+        if (this.duplicateMessageFilter == null) {
+            return messages;
+        }
+        try {
+            final List<Message> unique = this.duplicateMessageFilter.removeDuplicates(messages);
+            if ((unique.size() < messages.size()) && log.isDebugEnabled()) {
+                log.debug("Dropped " + (messages.size() - unique.size()) + " duplicate messages");
+            }
+            return unique;
+        } catch (JMSException e) {
+            throw convertJmsAccessException(e);
+        }
+    }
+
+    /**
+     * Tells the duplicate filter about the messages the listener processed, which excludes those to
+     * be retried or dead-lettered. A failure here only means duplicates may get through, so it does
+     * not fail the batch.
+     */
+    private void addProcessed(Collection<Message> messages, BatchOutcome outcome) {
+        if (this.duplicateMessageFilter == null) {
+            return;
+        }
+        Collection<Message> processed = messages;
+        if (!outcome.isEmpty()) {
+            processed = new ArrayList<Message>(messages);
+            processed.removeAll(outcome.retries);
+            processed.removeAll(outcome.deadLetters);
+        }
+        try {
+            this.duplicateMessageFilter.addProcessed(processed);
+        } catch (JMSException e) {
+            log.warn("Could not remember processed messages for duplicate detection", e);
+        }
+    }
+
+    /**
+     * Finds the messages the listener fails on in part of a batch it failed on, by passing each half
+     * of it to the listener and splitting every half that fails in turn.
+     *
+     * @param messages
+     *        the part, of at least one message
+     * @param failure
+     *        what the listener threw on the part
+     * @param poison
+     *        the messages the listener fails on on their own, in the order of the batch
+     */
+    private void isolate(List<Message> messages, RuntimeException failure, BatchOutcome outcome,
+            List<Message> poison) {
+        if (messages.size() == 1) {
+            if (log.isDebugEnabled()) {
+                log.debug("Listener failed on a single message", failure);
+            }
+            poison.addAll(messages);
+            return;
+        }
+
+        final int half = messages.size() / 2;
+        final List<Message> first = messages.subList(0, half);
+        final List<Message> second = messages.subList(half, messages.size());
+        final RuntimeException firstFailure = tryListener(first, outcome);
+        final RuntimeException secondFailure = tryListener(second, outcome);
+        if (firstFailure != null) {
+            isolate(first, firstFailure, outcome, poison);
+        }
+        if (secondFailure != null) {
+            isolate(second, secondFailure, outcome, poison);
+        }
+    }
+
+    /**
+     * Passes part of a failed batch to the listener.
+     *
+     * @return what the listener threw, or <code>null</code> if it processed the part
+     */
+    private RuntimeException tryListener(List<Message> messages, BatchOutcome outcome) {
+        try {
+            outcome.add(callListener(messages));
+            return null;
+        } catch (RuntimeException e) {
+            return e;
+        }
+    }
+
+    /**
+     * Returns whether a batch the listener failed on can be redelivered to the container.
+     */
+    private boolean canRedeliver() {
+        return isSessionTransacted() || (getWorkerAcknowledgeMode() == Session.CLIENT_ACKNOWLEDGE);
+    }
+
+    /**
+     * Returns how many times the message of a batch delivered most often has been delivered.
+     */
+    private int getDeliveryCount(Collection<Message> messages) {
+        int deliveryCount = 1;
+        try {
+            for (Message message : messages) {
+                if (message.propertyExists(DELIVERY_COUNT_PROPERTY)) {
+                    deliveryCount = Math.max(deliveryCount,
+                            message.getIntProperty(DELIVERY_COUNT_PROPERTY));
+                } else if (message.getJMSRedelivered()) {
+                    deliveryCount = Math.max(deliveryCount, 2);
+                }
+            }
+        } catch (JMSException e) {
+            throw convertJmsAccessException(e);
+        }
+        return deliveryCount;
+    }
+
+    /**
+     * Passes messages to the listener, in parallel partitions if the container is partitioned.
+     *
+     * @return the messages to resend or dead-letter, or <code>null</code> if there are none
+     */
+    private BatchOutcome callListener(Collection<Message> messages) {
+        if ((this.partitionCount > 1) && (messages.size() > 1)) {
+            final List<List<Message>> partitions;
+            try {
+                partitions = partition(messages);
+            } catch (JMSException e) {
+                throw convertJmsAccessException(e);
+            }
+            if (partitions.size() > 1) {
+                return callPartitions(partitions);
+            }
+        }
+        return deliver(messages);
+    }
+
+    /**
+     * Splits a batch into at most partitionCount sub-batches by the partition key, keeping the order
+     * of the messages. Messages without a key are spread across the partitions.
+     *
+     * @return the sub-batches that are not empty
+     */
+    List<List<Message>> partition(Collection<Message> messages) throws JMSException {
+        final List<List<Message>> partitions = new ArrayList<List<Message>>(this.partitionCount);
+        for (int i = 0; i < this.partitionCount; i++) {
+            partitions.add(new ArrayList<Message>());
+        }
+
+        int unkeyed = 0;
+        for (Message message : messages) {
+            final Object key = message.getObjectProperty(this.partitionKeyProperty);
+            final int partition = (key != null) ? ((key.hashCode() & Integer.MAX_VALUE) % this.partitionCount)
+                    : (unkeyed++ % this.partitionCount);
+            partitions.get(partition).add(message);
+        }
+
+        for (Iterator<List<Message>> i = partitions.iterator(); i.hasNext();) {
+            if (i.next().isEmpty()) {
+                i.remove();
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Passes each partition to the listener, the first on the calling thread and the rest on the
+     * partition task executor, and waits for all of them. If the listener fails on any partition the
+     * first failure is rethrown once all partitions are finished.
+     *
+     * @return the messages to resend or dead-letter, or <code>null</code> if there are none
+     */
+    private BatchOutcome callPartitions(final List<List<Message>> partitions) {
+        final TaskExecutor executor = (this.partitionTaskExecutor != null) ? this.partitionTaskExecutor
+                : this.defaultPartitionTaskExecutor;
+        final List<BatchOutcome> outcomes = new ArrayList<BatchOutcome>(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            outcomes.add(null);
+        }
+        final CountDownLatch done = new CountDownLatch(partitions.size() - 1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        for (int i = 1; i < partitions.size(); i++) {
+            final int partition = i;
+            final Runnable task = new Runnable() {
+                    public void run() {
+                        try {
+                            outcomes.set(partition, deliver(partitions.get(partition)));
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                };
+            try {
+                executor.execute(task);
+            } catch (TaskRejectedException e) {
+                task.run();
+            }
+        }
+
+        try {
+            outcomes.set(0, deliver(partitions.get(0)));
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for partitions", e);
+        }
+
+        final Throwable e = failure.get();
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        }
+
+        BatchOutcome all = null;
+        for (BatchOutcome outcome : outcomes) {
+            if (outcome != null) {
+                if (all == null) {
+                    all = new BatchOutcome();
+                }
+                all.add(outcome);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Passes messages to whichever listener is configured.
+     *
+     * @return the messages to resend or dead-letter, or <code>null</code> if there are none
+     */
+    private BatchOutcome deliver(Collection<Message> messages) {
+        if (this.partialBatchMessageListener != null) {
+            try {
+                return getOutcome(messages, this.partialBatchMessageListener.onMessages(messages));
+            } catch (JMSException e) {
+                throw convertJmsAccessException(e);
+            }
+        }
+        if (this.asyncMessageListener != null) {
+            await(this.asyncMessageListener.onMessages(messages));
+            return null;
+        }
+        this.messageListener.onMessages(messages);
+        return null;
+    }
+
+    /**
+     * Waits for an asynchronous listener's future, rethrowing the failure it completed with.
+     */
+    private static void await(Future<?> future) {
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new ListenerExecutionFailedException("Asynchronous batch listener failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the listener", e);
+        }
+    }
+
+    /**
+     * Matches the outcomes reported by a {@link PartialBatchMessageListener} to the batch. Messages
+     * to retry that were already resent maxRetries times, and rejected messages, are dead-lettered,
+     * or discarded if there is no dead-letter destination.
+     *
+     * @return the messages to resend or dead-letter, or <code>null</code> if there are none
      */
-    static final int DEFAULT_QUIET_PERIOD = 1000;
+    BatchOutcome getOutcome(Collection<Message> messages, List<MessageOutcome> outcomes) throws JMSException {
+        if (outcomes == null) {
+            return null;
+        }
+        if (outcomes.size() != messages.size()) {
+            throw new IllegalStateException("Listener returned " + outcomes.size()
+                    + " outcomes for a batch of " + messages.size() + " messages");
+        }
+
+        BatchOutcome result = new BatchOutcome();
+        int rejected = 0;
+        int exhausted = 0;
+        Iterator<MessageOutcome> outcome = outcomes.iterator();
+        for (Message message : messages) {
+            MessageOutcome next = outcome.next();
+            if (next == MessageOutcome.RETRY) {
+                if ((this.maxRetries > 0) && (getRetryCount(message) >= this.maxRetries)) {
+                    exhausted++;
+                    if (this.deadLetterDestinationName != null) {
+                        result.deadLetters.add(message);
+                    }
+                } else {
+                    result.retries.add(message);
+                }
+            } else if (next == MessageOutcome.REJECT) {
+                rejected++;
+                if (this.deadLetterDestinationName != null) {
+                    result.deadLetters.add(message);
+                }
+            }
+        }
+
+        if (((rejected > 0) || (exhausted > 0)) && log.isWarnEnabled()) {
+            log.warn("Listener rejected " + rejected + " of " + messages.size() + " messages, and "
+                    + exhausted + " more were retried " + this.maxRetries + " times; "
+                    + ((this.deadLetterDestinationName != null) ? "sending them to " + this.deadLetterDestinationName
+                            : "discarding them"));
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    private static int getRetryCount(Message message) throws JMSException {
+        return message.propertyExists(RETRY_COUNT_PROPERTY) ? message.getIntProperty(RETRY_COUNT_PROPERTY) : 0;
+    }
 
     /**
-     * Default length of time to spend batching messages even if quiet period is never reached.
-     *
-     * <p>
-     * After this time, all received messages will be passed to the listener. This ensures that even
-     * if messages are continuously received such that there is never a quiet period, we may still
-     * send the batch of messages before receiving a complete batch if it is taking too long.
-     * </p>
+     * Returns whether workers hand batches to a {@link BatchProcessor}, to invoke the listener or to
+     * acknowledge them.
      */
-    static final int DEFAULT_BATCH_TIMEOUT = 5000;
+    boolean usesProcessor() {
+        return this.pipelined || (this.asyncMessageListener != null) || acknowledgesOnProcessor();
+    }
 
     /**
-     * Default length of time to spend waiting for a single message. Used to block until a message
-     * is received or timeout so that we can evaluate whether to send the batch or check if this
-     * container has been requested to be stopped.
+     * Returns whether a {@link BatchProcessor} acknowledges batches, rather than the worker that
+     * received them.
      */
-    static final int DEFAULT_RECEIVE_TIMEOUT = 1000;
+    boolean acknowledgesOnProcessor() {
+        return (this.acknowledgeStrategy == AcknowledgeStrategy.ASYNC) || (this.asyncMessageListener != null);
+    }
 
-    /** The default batch size. */
-    private static final int DEFAULT_BATCH_SIZE = 1;
+    /**
+     * Returns the acknowledge mode of the sessions workers create, which depends on the acknowledge
+     * strategy.
+     */
+    int getWorkerAcknowledgeMode() {
+        switch (this.acknowledgeStrategy) {
+        case DUPS_OK:
+            return Session.DUPS_OK_ACKNOWLEDGE;
+        case ASYNC:
+            return Session.CLIENT_ACKNOWLEDGE;
+        default:
+            return getSessionAcknowledgeMode();
+        }
+    }
 
-    int batchSize = DEFAULT_BATCH_SIZE;
-    int batchTimeout = DEFAULT_BATCH_TIMEOUT;
+    /**
+     * Acknowledges a batch received on the given session: commits a transacted session, otherwise
+     * acknowledges the last message once, which acknowledges the whole batch. Any messages to retry
+     * are sent back to their destination first, and any dead letters to the dead-letter destination.
+     * A batch to be redelivered is rolled back, or recovered, instead.
+     */
+    void acknowledge(Session session, Collection<Message> messages, BatchOutcome outcome)
+            throws JMSException {
+        if ((outcome != null) && outcome.redeliver) {
+            if (isSessionTransacted()) {
+                session.rollback();
+            } else {
+                session.recover();
+            }
+            return;
+        }
 
-    String destinationName;
-    BatchMessageListener messageListener;
-    int quietPeriod = DEFAULT_QUIET_PERIOD;
-    int receiveTimeout = DEFAULT_RECEIVE_TIMEOUT;
-    private boolean running = false;
-    private TaskExecutor taskExecutor = new SimpleAsyncTaskExecutor();
+        final long start = nanoTime();
+        if (outcome != null) {
+            for (Message message : outcome.retries) {
+                countRetry(message);
+            }
+            resend(session, outcome.retries, null);
+            if (!outcome.deadLetters.isEmpty()) {
+                resend(session, outcome.deadLetters,
+                        resolveDestinationName(session, this.deadLetterDestinationName));
+            }
+        }
 
-    private Worker worker;
+        if (isSessionTransacted()) {
+            session.commit();
+        } else if (getWorkerAcknowledgeMode() == Session.CLIENT_ACKNOWLEDGE) {
+            // messages unpacked from an envelope were not received, so acknowledge the envelope
+            Message last = (messages instanceof ReceivedMessages) ? ((ReceivedMessages) messages).lastReceived : null;
+            if (last == null) {
+                for (Message message : messages) {
+                    last = message;
+                }
+            }
+            if (last != null) {
+                last.acknowledge();
+            }
+        }
 
-    @Override
-    public void afterPropertiesSet() {
-        super.afterPropertiesSet();
+        if (this.metrics != null) {
+            this.metrics.batchAcknowledged(nanoTime() - start);
+        }
+    }
 
-        if (destinationName == null) {
-            throw new IllegalStateException("destinationName is required");
+    /**
+     * Increments the {@link #RETRY_COUNT_PROPERTY} of a message about to be resent. The properties of
+     * a received message are read-only, so they are cleared and set again; those set by the provider
+     * as the message was received or with values of types a client cannot set are dropped, except
+     * the message group.
+     */
+    private static void countRetry(Message message) throws JMSException {
+        final int retries = getRetryCount(message);
+        final String groupId = MessagePacker.getGroupId(message);
+        final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        for (Enumeration<?> e = message.getPropertyNames(); e.hasMoreElements();) {
+            final String name = (String) e.nextElement();
+            final Object value = message.getObjectProperty(name);
+            if (!name.startsWith("JMSX") && !name.startsWith("JMS_") && !name.equals(RETRY_COUNT_PROPERTY)
+                    && ((value instanceof String) || (value instanceof Number) || (value instanceof Boolean))) {
+                properties.put(name, value);
+            }
         }
 
-        start();
+        message.clearProperties();
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            message.setObjectProperty(property.getKey(), property.getValue());
+        }
+        if (groupId != null) {
+            message.setStringProperty(MessagePacker.GROUP_ID_PROPERTY, groupId);
+        }
+        message.setIntProperty(RETRY_COUNT_PROPERTY, retries + 1);
     }
 
-    public void destroy() {
-        stop();
-        destroyListener();
+    /**
+     * Sends messages to the given destination, or back to the one they were received from, keeping
+     * their delivery mode, priority and expiration.
+     */
+    private void resend(Session session, Collection<Message> messages, Destination destination)
+            throws JMSException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        MessageProducer producer = session.createProducer(null);
+        try {
+            for (Message message : messages) {
+                long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+                if (message.getJMSExpiration() != 0) {
+                    timeToLive = Math.max(1, message.getJMSExpiration() - System.currentTimeMillis());
+                }
+                producer.send((destination != null) ? destination : message.getJMSDestination(), message,
+                        message.getJMSDeliveryMode(), message.getJMSPriority(), timeToLive);
+            }
+        } finally {
+            JmsUtils.closeMessageProducer(producer);
+        }
     }
 
-    public Throwable getFailure() {
-        return worker.getFailure();
+    private List<Worker> getWorkers() {
+        synchronized (this.workers) {
+            return new ArrayList<Worker>(this.workers);
+        }
     }
 
-    public boolean isFailure() {
-        return worker.isFailure();
+    /**
+     * Called by a worker when its run loop has exited. A retired worker was no longer counted as
+     * active, but is live until now.
+     */
+    void workerFinished(Worker worker, boolean retired) {
+        synchronized (this.workers) {
+            if (!worker.isFailure()) {
+                this.workers.remove(worker);
+            }
+            if (!retired) {
+                this.activeWorkers--;
+            }
+            this.liveWorkers--;
+        }
+        finishStopIfIdle();
     }
 
-    public boolean isRunning() {
-        return running;
+    /**
+     * Returns the connection shared by all workers, creating and starting it if necessary.
+     */
+    Connection getSharedConnection() throws JMSException {
+        synchronized (this.connectionMonitor) {
+            if (this.sharedConnection == null) {
+                Connection connection = null;
+                try {
+                    connection = getConnectionFactory().createConnection();
+                    connection.start();
+                } catch (JMSException e) {
+                    JmsUtils.closeConnection(connection);
+                    throw e;
+                }
+                this.sharedConnection = connection;
+            }
+            return this.sharedConnection;
+        }
     }
 
     /**
-     * Specifies the batch size.
-     *
-     * @param batchSize
-     *        the number of messages to receive in a batch; the default is 1
+     * Closes the shared connection after a worker hit an error using it, so that the next worker to
+     * initialize obtains a fresh one. Does nothing if the connection has already been replaced.
      */
-    public void setBatchSize(int batchSize) {
-        this.batchSize = batchSize;
+    void refreshSharedConnection(Connection failed) {
+        synchronized (this.connectionMonitor) {
+            if ((failed != null) && (failed == this.sharedConnection)) {
+                closeSharedConnection();
+            }
+        }
+    }
+
+    private void closeSharedConnection() {
+        synchronized (this.connectionMonitor) {
+            if (this.sharedConnection != null) {
+                JmsUtils.closeConnection(this.sharedConnection);
+                this.sharedConnection = null;
+            }
+        }
     }
 
     /**
-     * Specifies the greatest length of time, in milliseconds, that should be spent accumulating a
-     * batch of messages.
-     *
-     * <p>
-     * After this time, any received messages will be sent to the listener, regardless of whether it
-     * makes a full batch.
-     * </p>
-     *
-     * @param batchTimeout
-     *        the timeout in ms; the default is 5000 ms (5 seconds)
+     * The messages of a batch to send elsewhere before the batch is acknowledged, or whether the
+     * batch is to be redelivered instead.
      */
-    public void setBatchTimeout(int batchTimeout) {
-        this.batchTimeout = batchTimeout;
+    static class BatchOutcome {
+
+        final List<Message> retries = new ArrayList<Message>();
+        final List<Message> deadLetters = new ArrayList<Message>();
+        boolean redeliver = false;
+
+        void add(BatchOutcome outcome) {
+            if (outcome != null) {
+                this.retries.addAll(outcome.retries);
+                this.deadLetters.addAll(outcome.deadLetters);
+            }
+        }
+
+        boolean isEmpty() {
+            return this.retries.isEmpty() && this.deadLetters.isEmpty() && !this.redeliver;
+        }
     }
 
     /**
-     * Specifies a destination name to listen on.
-     *
-     * <p>
-     * This is resolved at runtime.
-     * </p>
-     *
-     * @param destinationName
-     *        the name of the destination to listen on
-     *
-     * @see #resolveDestinationName(Session, String)
+     * The messages of a batch and the last message received for it, which is an envelope if the last
+     * messages were unpacked from one.
      */
-    public void setDestinationName(String destinationName) {
-        this.destinationName = destinationName;
+    static class ReceivedMessages extends ArrayList<Message> {
+
+        private static final long serialVersionUID = 1L;
+
+        Message lastReceived;
+
+        /**
+         * Adds a received message, or the messages packed in it if it is an envelope.
+         */
+        void received(Session session, Message message) throws JMSException {
+            this.lastReceived = message;
+            if (MessagePacker.isEnvelope(message)) {
+                addAll(MessagePacker.unpack(session, message));
+            } else {
+                add(message);
+            }
+        }
     }
 
     /**
-     * Specifies the message listener to pass batches of messages to.
-     *
-     * @param messageListener
-     *        the message listener
+     * A batch handed to a worker's {@link BatchProcessor} in pipelined mode, or for asynchronous
+     * acknowledgement.
      */
-    public void setMessageListener(BatchMessageListener messageListener) {
-        this.messageListener = messageListener;
+    static class PendingBatch {
+
+        final Session session;
+        final Collection<Message> messages;
+        final long arrivalSpan;
+        final FlushReason reason;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile BatchOutcome outcome;
+        volatile Throwable failure;
+
+        // set when the batch was dispatched to an asynchronous listener
+        Collection<Message> dispatched;
+        Future<?> future;
+        RuntimeException dispatchFailure;
+        long start;
+
+        PendingBatch(Session session, Collection<Message> messages, BatchOutcome outcome,
+                long arrivalSpan, FlushReason reason) {
+            this.session = session;
+            this.messages = messages;
+            this.outcome = outcome;
+            this.arrivalSpan = arrivalSpan;
+            this.reason = reason;
+        }
     }
 
     /**
-     * Specifies the quiet period.
-     *
-     * <p>
-     * If no message is received for this length of time, the batch is sent.
-     * </p>
-     *
-     * @param quietPeriod
-     *        the quiet period; the default is 1000 ms (1 second)
+     * Passes batches to the listener, in the order they were submitted, on behalf of a pipelined
+     * worker, or waits for an asynchronous listener to process them, and acknowledges them if
+     * acknowledgement is asynchronous. Once the listener fails, later
+     * batches are skipped so that they are redelivered; a failed acknowledgement only fails its own
+     * batch.
      */
-    public void setQuietPeriod(int quietPeriod) {
-        this.quietPeriod = quietPeriod;
-    }
+    class BatchProcessor implements Runnable {
 
-    public void start() {
-        running = true;
-        registerListener();
-        if (log.isInfoEnabled()) {
-            log.info("listener container  started");
+        private final BlockingQueue<PendingBatch> batches;
+        private final PendingBatch stop = new PendingBatch(null, null, null, 0, null);
+
+        BatchProcessor(int capacity) {
+            this.batches = new ArrayBlockingQueue<PendingBatch>(capacity + 1);
         }
-    }
 
-    public void stop() {
-        try {
-            doStop();
-            if (log.isInfoEnabled()) {
-                log.info("listener container stopped");
+        public void run() {
+            Throwable failed = null;
+            try {
+                PendingBatch batch;
+                while ((batch = this.batches.take()) != this.stop) {
+                    if (failed == null) {
+                        try {
+                            if (batch.dispatched != null) {
+                                batch.outcome = awaitListener(batch);
+                            } else if (pipelined) {
+                                batch.outcome = invokeListener(batch.messages, batch.arrivalSpan, batch.reason);
+                            }
+                        } catch (Throwable e) {
+                            failed = e;
+                            batch.failure = e;
+                        }
+                        if ((batch.failure == null) && acknowledgesOnProcessor()) {
+                            try {
+                                acknowledge(batch.session, batch.messages, batch.outcome);
+                            } catch (Throwable e) {
+                                batch.failure = e;
+                            }
+                        }
+                    } else {
+                        batch.failure = new IllegalStateException("Skipped after an earlier batch failed", failed);
+                    }
+                    batch.done.countDown();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } catch (JMSException e) {
-            throw convertJmsAccessException(e);
         }
-    }
 
-    void doStop() throws JMSException {
-        destroyListener();
-        running = false;
-    }
+        PendingBatch submit(Session session, Collection<Message> messages, BatchOutcome outcome,
+                long arrivalSpan, FlushReason reason) throws InterruptedException {
+            return submit(new PendingBatch(session, messages, outcome, arrivalSpan, reason));
+        }
 
-    private void destroyListener() {
-        worker.stop();
-    }
+        PendingBatch submit(PendingBatch batch) throws InterruptedException {
+            this.batches.put(batch);
+            return batch;
+        }
 
-    private void registerListener() {
-        worker = new Worker();
-        taskExecutor.execute(worker);
+        void shutdown() {
+            this.batches.offer(this.stop);
+        }
     }
 
     class Worker implements Runnable {
 
-        // connection, session, and consumer are effectively thread-confined to the thread calling
-        // run()
+        // sessions and consumers are effectively thread-confined to the thread calling run(); the
+        // connection is shared with the other workers. There is one session per batch that may be
+        // in flight, so that acknowledging one batch never acknowledges messages of another.
         private Connection connection;
-        private Session session;
-        private MessageConsumer consumer;
+        private Session[] sessions;
+        private MessageConsumer[] consumers;
+        private PendingBatch[] pending;
+        private int nextSlot = 0;
+        private Destination destination;
+        private BatchProcessor processor;
+        private int idleBatches = 0;
 
         private Throwable failure; // guarded by "this"
         private volatile boolean stopRequested = false;
+        private final CountDownLatch stopSignal = new CountDownLatch(1);
+        private boolean interrupted = false;
+        private boolean retired = false; // guarded by BatchMessageListenerContainer.this.workers
+
+        Worker() {
+            int slots = usesProcessor() ? BatchMessageListenerContainer.this.maxBatchesInFlight : 1;
+            this.sessions = new Session[slots];
+            this.consumers = new MessageConsumer[slots];
+            this.pending = new PendingBatch[slots];
+        }
 
         public void run() {
 
@@ -253,7 +2040,12 @@ public class BatchMessageListenerContainer extends JmsDestinationAccessor implem
 
                 try {
 
-                    while (!this.stopRequested) {
+                    if (usesProcessor()) {
+                        this.processor = new BatchProcessor(this.pending.length);
+                        taskExecutor.execute(this.processor);
+                    }
+
+                    while (!isStopRequested()) {
 
                         boolean error = false;
 
@@ -261,57 +2053,188 @@ public class BatchMessageListenerContainer extends JmsDestinationAccessor implem
 
                             initJms();
 
-                            final Collection<Message> messages = new ArrayList<Message>();
+                            // the batch last received on this slot must be finished before the
+                            // slot's consumer receives again
+                            final int slot = this.nextSlot;
+                            this.nextSlot = (this.nextSlot + 1) % this.sessions.length;
+                            completeBatch(slot);
+
+                            final ReceivedMessages messages = new ReceivedMessages();
                             Message msg;
 
-                            // Loop until we have a batch or we have taken long enough
-                            final long start = System.currentTimeMillis();
-                            long lastMessageReceived = System.currentTimeMillis();
-                            while ((messages.size() < BatchMessageListenerContainer.this.batchSize)
-                                    && ((System.currentTimeMillis() - lastMessageReceived) < BatchMessageListenerContainer.this.quietPeriod)
-                                    && ((System.currentTimeMillis() - start) < BatchMessageListenerContainer.this.batchTimeout)) {
-                                msg = this.consumer.receive(BatchMessageListenerContainer.this.receiveTimeout);
+                            final int batchSize = currentBatchSize();
+                            final long maxBatchBytes = BatchMessageListenerContainer.this.maxBatchBytes;
+                            final MessageSizeEstimator sizeEstimator = ((maxBatchBytes > 0)
+                                    || (BatchMessageListenerContainer.this.metrics != null))
+                                    ? BatchMessageListenerContainer.this.messageSizeEstimator : null;
+                            final long quietPeriod = TimeUnit.MILLISECONDS.toNanos(currentQuietPeriod());
+                            final long maxBatchLatency = TimeUnit.MILLISECONDS.toNanos(BatchMessageListenerContainer.this.maxBatchLatency);
+
+                            // Loop until we have a batch or the nearest deadline passes; each receive
+                            // waits no longer than that deadline, so the batch is sent on time
+                            final long start = nanoTime();
+                            final long timeoutDeadline = start + TimeUnit.MILLISECONDS.toNanos(currentBatchTimeout());
+                            long firstMessageReceived = 0;
+                            long lastMessageReceived = start;
+                            FlushReason reason = null;
+                            int receives = 0;
+                            int idleReceives = 0;
+                            long bytes = 0;
+                            while (reason == null) {
+                                if (isStopRequested()) {
+                                    reason = FlushReason.STOP;
+                                    break;
+                                }
+
+                                if (BatchMessageListenerContainer.this.greedyDrain) {
+                                    // take whatever the consumer has buffered before blocking
+                                    final int drained = messages.size();
+                                    while ((messages.size() < batchSize)
+                                            && ((maxBatchBytes == 0) || (bytes < maxBatchBytes))
+                                            && ((msg = this.consumers[slot].receiveNoWait()) != null)) {
+                                        messages.received(this.sessions[slot], msg);
+                                        if (sizeEstimator != null) {
+                                            bytes += sizeEstimator.estimateSize(msg);
+                                        }
+                                    }
+                                    if (messages.size() > drained) {
+                                        lastMessageReceived = nanoTime();
+                                        if (drained == 0) {
+                                            firstMessageReceived = lastMessageReceived;
+                                        }
+                                    }
+                                }
+
+                                if (messages.size() >= batchSize) {
+                                    reason = FlushReason.SIZE;
+                                    break;
+                                }
+
+                                if ((maxBatchBytes > 0) && (bytes >= maxBatchBytes)) {
+                                    reason = FlushReason.BYTES;
+                                    break;
+                                }
+
+                                long deadline = timeoutDeadline;
+                                FlushReason deadlineReason = FlushReason.TIMEOUT;
+                                if ((lastMessageReceived + quietPeriod) - deadline <= 0) {
+                                    deadline = lastMessageReceived + quietPeriod;
+                                    deadlineReason = FlushReason.QUIET_PERIOD;
+                                }
+                                if ((maxBatchLatency > 0) && !messages.isEmpty()
+                                        && ((firstMessageReceived + maxBatchLatency) - deadline <= 0)) {
+                                    deadline = firstMessageReceived + maxBatchLatency;
+                                    deadlineReason = FlushReason.MAX_LATENCY;
+                                }
+
+                                final long remaining = deadline - nanoTime();
+                                if (remaining <= 0) {
+                                    reason = deadlineReason;
+                                    break;
+                                }
+
+                                // round up, as a timeout of 0 would block indefinitely
+                                final long wait = Math.min(BatchMessageListenerContainer.this.receiveTimeout,
+                                        (remaining + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI);
+                                msg = this.consumers[slot].receive(wait);
+                                receives++;
                                 if (msg != null) {
-                                    messages.add(msg);
-                                    lastMessageReceived = System.currentTimeMillis();
+                                    final boolean first = messages.isEmpty();
+                                    messages.received(this.sessions[slot], msg);
+                                    if (sizeEstimator != null) {
+                                        bytes += sizeEstimator.estimateSize(msg);
+                                    }
+                                    lastMessageReceived = nanoTime();
+                                    if (first) {
+                                        firstMessageReceived = lastMessageReceived;
+                                    }
+                                } else {
+                                    idleReceives++;
                                 }
                             }
 
+                            final long fillTime = nanoTime() - start;
+                            if (BatchMessageListenerContainer.this.metrics != null) {
+                                BatchMessageListenerContainer.this.metrics.batchReceived(reason, messages.size(),
+                                        bytes, fillTime, receives, idleReceives);
+                            }
+
                             if (!messages.isEmpty()) {
-                                final long elapsed = System.currentTimeMillis() - start;
                                 if (BatchMessageListenerContainer.log.isDebugEnabled()) {
                                     BatchMessageListenerContainer.log.debug("Received a total of " + messages.size() + " in "
-                                            + elapsed + " ms");
+                                            + TimeUnit.NANOSECONDS.toMillis(fillTime) + " ms");
                                 }
 
-                                BatchMessageListenerContainer.this.messageListener.onMessages(messages);
-
-                                if (isSessionTransacted()) {
-                                    this.session.commit();
-                                } else if (getSessionAcknowledgeMode() == Session.CLIENT_ACKNOWLEDGE) {
-                                    for (Message message : messages) {
-                                        message.acknowledge();
+                                final long arrivalSpan = TimeUnit.NANOSECONDS.toMillis(lastMessageReceived - firstMessageReceived);
+                                if (BatchMessageListenerContainer.this.asyncMessageListener != null) {
+                                    this.pending[slot] = this.processor.submit(dispatch(this.sessions[slot],
+                                            messages, arrivalSpan, reason));
+                                } else {
+                                    BatchOutcome outcome = null;
+                                    if (!BatchMessageListenerContainer.this.pipelined) {
+                                        outcome = invokeListener(messages, arrivalSpan, reason);
+                                    }
+                                    if (this.processor != null) {
+                                        this.pending[slot] = this.processor.submit(this.sessions[slot], messages,
+                                                outcome, arrivalSpan, reason);
+                                    } else {
+                                        acknowledge(this.sessions[slot], messages, outcome);
                                     }
                                 }
 
                             }
 
+                            if (reason == FlushReason.QUIET_PERIOD) {
+                                this.idleBatches++;
+                            } else {
+                                this.idleBatches = 0;
+                            }
+
+                            if ((this.idleBatches < BatchMessageListenerContainer.this.idleBatchLimit)
+                                    || !retireIfSurplus(this)) {
+                                scaleUpIfBacklogged(this, reason);
+                            }
+
                         } catch (JMSException e) {
+                            if (isStopRequested()) {
+                                // not worth reconnecting for; the shared connection is left to
+                                // the workers that are still finishing their batches
+                                BatchMessageListenerContainer.log.debug("Error while stopping", e);
+                                break;
+                            }
                             error = true;
                             BatchMessageListenerContainer.log.error("Error listening for logging messages",
                                     e);
                         }
 
                         if (error) {
+                            if (BatchMessageListenerContainer.this.metrics != null) {
+                                BatchMessageListenerContainer.this.metrics.reconnecting();
+                            }
+                            refreshSharedConnection(this.connection);
                             closeJms();
                             // if we're down, don't spin in a tight loop, but sleep in between
-                            // checking
-                            Thread.sleep(BatchMessageListenerContainer.this.batchTimeout);
+                            // checking; a stop request ends the sleep
+                            try {
+                                this.stopSignal.await(BatchMessageListenerContainer.this.recoveryInterval,
+                                        TimeUnit.MILLISECONDS);
+                            } catch (InterruptedException e) {
+                                this.interrupted = true;
+                                this.stopRequested = true;
+                            }
                         }
 
                     }
 
+                    // acknowledge whatever is still in flight, oldest first
+                    for (int i = 0; i < this.sessions.length; i++) {
+                        completeBatch((this.nextSlot + i) % this.sessions.length);
+                    }
+
                 } finally {
+                    if (this.processor != null) {
+                        this.processor.shutdown();
+                    }
                     closeJms();
                 }
 
@@ -332,53 +2255,124 @@ public class BatchMessageListenerContainer extends JmsDestinationAccessor implem
                 }
 
                 BatchMessageListenerContainer.log.error("Error in Worker thread", e);
+            } finally {
+                boolean wasRetired;
+                synchronized (BatchMessageListenerContainer.this.workers) {
+                    wasRetired = this.retired;
+                }
+                workerFinished(this, wasRetired);
+                if (this.interrupted) {
+                    // restore the interrupt that stopped this worker for the executor
+                    Thread.currentThread().interrupt();
+                }
             }
 
         }
 
-        private void initJms() throws JMSException {
+        /**
+         * Returns whether this worker has been asked to stop. An interrupt of the worker thread is
+         * taken as a request to stop; the interrupt status is cleared so that the batch in progress can
+         * still be processed and acknowledged, and restored once the worker has finished. Some
+         * providers swallow an interrupt that arrives during a receive, so it may only be noticed
+         * when the next receive returns.
+         */
+        private boolean isStopRequested() {
+            if (Thread.interrupted()) {
+                this.interrupted = true;
+                this.stopRequested = true;
+            }
+            return this.stopRequested;
+        }
 
-            if (this.connection == null) {
-                try {
-                    this.connection = getConnectionFactory().createConnection();
-                    this.connection.start();
-                } catch (JMSException e) {
-                    JmsUtils.closeConnection(this.connection);
-                    this.connection = null;
-                    throw e;
-                }
+        /**
+         * Waits for the batch in flight on the given slot, if any, and acknowledges it unless that
+         * is done asynchronously. If the listener failed, the failure is rethrown so that this worker
+         * stops without acknowledging; a failed asynchronous acknowledgement is rethrown as is, so
+         * that the worker reconnects.
+         */
+        private void completeBatch(int slot) throws JMSException, InterruptedException {
+            PendingBatch batch = this.pending[slot];
+            if (batch == null) {
+                return;
             }
 
-            if (this.session == null && this.connection != null) {
-                this.session = this.connection.createSession(isSessionTransacted(),
-                        getSessionAcknowledgeMode());
+            batch.done.await();
+            this.pending[slot] = null;
+
+            if (batch.failure instanceof JMSException) {
+                throw (JMSException) batch.failure;
+            } else if (batch.failure instanceof RuntimeException) {
+                throw (RuntimeException) batch.failure;
+            } else if (batch.failure instanceof Error) {
+                throw (Error) batch.failure;
+            } else if (batch.failure != null) {
+                throw new IllegalStateException("Batch listener failed", batch.failure);
             }
 
-            if (this.consumer == null && this.session != null) {
-                this.consumer = this.session.createConsumer(resolveDestinationName(this.session,
-                        BatchMessageListenerContainer.this.destinationName));
+            if (!acknowledgesOnProcessor()) {
+                acknowledge(this.sessions[slot], batch.messages, batch.outcome);
             }
         }
 
-        private void closeJms() {
-            if (consumer != null) {
-                JmsUtils.closeMessageConsumer(consumer);
-                this.consumer = null;
+        private void initJms() throws JMSException {
+
+            if (this.connection == null) {
+                this.connection = getSharedConnection();
             }
 
-            if (this.session != null) {
-                JmsUtils.closeSession(session);
-                this.session = null;
+            for (int i = 0; i < this.sessions.length; i++) {
+                if (this.sessions[i] == null && this.connection != null) {
+                    this.sessions[i] = this.connection.createSession(isSessionTransacted(),
+                            getWorkerAcknowledgeMode());
+                }
+
+                if (this.consumers[i] == null && this.sessions[i] != null) {
+                    this.destination = resolveDestinationName(this.sessions[i],
+                            BatchMessageListenerContainer.this.destinationName);
+                    this.consumers[i] = this.sessions[i].createConsumer(this.destination);
+                }
             }
+        }
+
+        private void closeJms() {
+            for (int i = 0; i < this.sessions.length; i++) {
+                // anything still in flight is redelivered once its session is closed
+                this.pending[i] = null;
 
-            if (this.connection != null) {
-                JmsUtils.closeConnection(connection);
-                this.connection = null;
+                if (this.consumers[i] != null) {
+                    JmsUtils.closeMessageConsumer(this.consumers[i]);
+                    this.consumers[i] = null;
+                }
+
+                if (this.sessions[i] != null) {
+                    JmsUtils.closeSession(this.sessions[i]);
+                    this.sessions[i] = null;
+                }
             }
+
+            // the shared connection is closed by the container
+            this.connection = null;
         }
 
         public void stop() {
             this.stopRequested = true;
+            this.stopSignal.countDown();
+        }
+
+        /**
+         * Asks this worker to stop because the container has more workers than it needs. Must be
+         * called while holding the lock on the container's workers.
+         *
+         * @return <code>true</code> if the worker was active and is now retiring
+         */
+        boolean retire() {
+            if (this.retired || this.stopRequested) {
+                return false;
+            }
+            this.retired = true;
+            this.stopRequested = true;
+            this.stopSignal.countDown();
+            return true;
         }
 
         synchronized Throwable getFailure() {
@@ -0,0 +1,82 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+/**
+ * Receives measurements from a {@link BatchMessageListenerContainer}, so that they can be recorded
+ * in whichever metrics registry an application uses.
+ *
+ * <p>
+ * Methods are called by worker and processing threads, so implementations must be thread-safe,
+ * and should be cheap as they are called for every batch. Times are in nanoseconds.
+ * </p>
+ *
+ * @see SimpleBatchMetrics
+ * @see BatchMessageListenerContainer#setMetrics(BatchMetrics)
+ */
+public interface BatchMetrics {
+
+    /**
+     * Called when a worker stops accumulating a batch, including when it received nothing.
+     *
+     * @param reason
+     *        why the batch was flushed
+     * @param size
+     *        the number of messages received, which may be 0
+     * @param bytes
+     *        the estimated size of the messages in bytes, or 0 if sizes are not estimated
+     * @param fillTime
+     *        the time spent accumulating the batch
+     * @param receives
+     *        the number of timed receives made while accumulating the batch
+     * @param idleReceives
+     *        how many of those receives returned no message
+     */
+    void batchReceived(FlushReason reason, int size, long bytes, long fillTime, int receives, int idleReceives);
+
+    /**
+     * Called when the listener has been passed a batch.
+     *
+     * @param size
+     *        the number of messages passed to the listener
+     * @param latency
+     *        the time the listener took, including any bisection of a failed batch
+     * @param failed
+     *        <code>true</code> if the batch failed and will be redelivered
+     */
+    void listenerInvoked(int size, long latency, boolean failed);
+
+    /**
+     * Called when a batch has been acknowledged or committed.
+     *
+     * @param time
+     *        the time taken, including sending any retried or dead-lettered messages
+     */
+    void batchAcknowledged(long time);
+
+    /**
+     * Called when a worker discards its session after an error and will reconnect.
+     */
+    void reconnecting();
+}
@@ -0,0 +1,61 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+/**
+ * A {@link MessageSizeEstimator} that counts the body of a message: the body length of a
+ * {@link BytesMessage}, and two bytes per character of a {@link TextMessage}, as the text is held on
+ * the heap. Other messages, and the headers and properties of every message, count as
+ * {@link #setDefaultSize(long) defaultSize}.
+ */
+public class BodyMessageSizeEstimator implements MessageSizeEstimator {
+
+    private long defaultSize = 0;
+
+    public long estimateSize(Message message) throws JMSException {
+        if (message instanceof BytesMessage) {
+            return this.defaultSize + ((BytesMessage) message).getBodyLength();
+        } else if (message instanceof TextMessage) {
+            final String text = ((TextMessage) message).getText();
+            return this.defaultSize + ((text != null) ? (2L * text.length()) : 0);
+        }
+        return this.defaultSize;
+    }
+
+    /**
+     * Specifies the size added for every message, to account for headers and properties, and taken
+     * as the size of messages whose body is not counted.
+     *
+     * @param defaultSize
+     *        the size in bytes; the default is 0
+     */
+    public void setDefaultSize(long defaultSize) {
+        this.defaultSize = defaultSize;
+    }
+}
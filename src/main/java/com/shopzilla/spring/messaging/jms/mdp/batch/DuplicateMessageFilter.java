@@ -0,0 +1,310 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+
+/**
+ * Remembers the keys of recently processed messages so that a {@link BatchMessageListenerContainer}
+ * can drop messages that are delivered again, such as redeliveries after a failover or repeated
+ * sends by a producer.
+ *
+ * <p>
+ * A message's key is its <code>JMSMessageID</code> or, if a {@link #setKeyProperty(String) key
+ * property} is specified, the value of that property; a message without a key is never taken to
+ * be a duplicate. Only a 64-bit hash of each key is kept, in a ring buffer ordered by when the key
+ * was added and in an open-addressing hash table, so memory use is fixed by the
+ * {@link #setWindowSize(int) window size} and there is no object per key. Two keys with the same
+ * hash are taken to be the same key, which is unlikely for fewer than billions of keys.
+ * </p>
+ *
+ * <p>
+ * A key is forgotten once the window holds windowSize newer keys or, if a
+ * {@link #setWindowDuration(long) window duration} is specified, once it was added longer ago
+ * than that. Keys are only added once the listener has processed their messages, so a message
+ * that is redelivered because its batch failed is not dropped. Messages delivered to two workers
+ * at the same time may both be processed.
+ * </p>
+ *
+ * @see BatchMessageListenerContainer#setDuplicateMessageFilter(DuplicateMessageFilter)
+ */
+public class DuplicateMessageFilter {
+
+    /** The default number of keys remembered. */
+    static final int DEFAULT_WINDOW_SIZE = 100000;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private String keyProperty;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private long windowDuration = 0;
+
+    // the hashes in the order they were added, with the time each was added
+    private long[] hashes; // guarded by "this"
+    private long[] added; // guarded by "this"
+    private int oldest = 0; // guarded by "this"
+    private int count = 0; // guarded by "this"
+
+    // open-addressing hash table of the same hashes, with linear probing; 0 marks an empty slot
+    private long[] table; // guarded by "this"
+    private int mask; // guarded by "this"
+
+    /**
+     * Returns the messages of a batch that have not been processed within the window, dropping
+     * any that repeat a key earlier in the same batch.
+     *
+     * @param messages
+     *        the batch
+     *
+     * @return the messages to pass to the listener, in the order they were received
+     *
+     * @throws JMSException
+     *         if a key cannot be read
+     */
+    public List<Message> removeDuplicates(Collection<Message> messages) throws JMSException {
+        final List<Message> unique = new ArrayList<Message>(messages.size());
+        final long[] batch = new long[tableSize(messages.size())];
+        synchronized (this) {
+            evict(now());
+            for (Message message : messages) {
+                final long hash = getKeyHash(message);
+                if ((hash == 0) || (!contains(hash) && insert(batch, batch.length - 1, hash))) {
+                    unique.add(message);
+                }
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * Remembers the keys of messages the listener has processed.
+     *
+     * @param messages
+     *        the processed messages
+     *
+     * @throws JMSException
+     *         if a key cannot be read
+     */
+    public void addProcessed(Collection<Message> messages) throws JMSException {
+        final long[] batch = new long[messages.size()];
+        int keys = 0;
+        for (Message message : messages) {
+            final long hash = getKeyHash(message);
+            if (hash != 0) {
+                batch[keys++] = hash;
+            }
+        }
+
+        synchronized (this) {
+            final long now = now();
+            evict(now);
+            for (int i = 0; i < keys; i++) {
+                add(batch[i], now);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of keys currently remembered.
+     *
+     * @return the number of keys
+     */
+    public synchronized int size() {
+        return this.count;
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of the message's key, or 0 if it has none.
+     */
+    long getKeyHash(Message message) throws JMSException {
+        final Object key = (this.keyProperty != null) ? message.getObjectProperty(this.keyProperty)
+                : message.getJMSMessageID();
+        if (key == null) {
+            return 0;
+        }
+
+        final String value = key.toString();
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        // 0 marks an empty slot
+        return (hash != 0) ? hash : 1;
+    }
+
+    long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Returns a power of two table size that keeps the given number of hashes at most half full.
+     */
+    private static int tableSize(int hashes) {
+        int size = 2;
+        while (size < (hashes * 2)) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * Inserts a hash into an open-addressing table.
+     *
+     * @return <code>false</code> if the table already held the hash
+     */
+    private static boolean insert(long[] table, int mask, long hash) {
+        int i = slot(hash, mask);
+        while (table[i] != 0) {
+            if (table[i] == hash) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = hash;
+        return true;
+    }
+
+    private static int slot(long hash, int mask) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void add(long hash, long now) {
+        if (this.table == null) {
+            this.hashes = new long[this.windowSize];
+            this.added = new long[this.windowSize];
+            this.table = new long[tableSize(this.windowSize)];
+            this.mask = this.table.length - 1;
+        }
+
+        if (contains(hash)) {
+            return;
+        }
+        if (this.count == this.hashes.length) {
+            removeOldest();
+        }
+
+        final int newest = (this.oldest + this.count) % this.hashes.length;
+        this.hashes[newest] = hash;
+        this.added[newest] = now;
+        this.count++;
+        insert(this.table, this.mask, hash);
+    }
+
+    private void evict(long now) {
+        if (this.windowDuration > 0) {
+            final long duration = TimeUnit.MILLISECONDS.toNanos(this.windowDuration);
+            while ((this.count > 0) && ((now - this.added[this.oldest]) > duration)) {
+                removeOldest();
+            }
+        }
+    }
+
+    private void removeOldest() {
+        remove(this.hashes[this.oldest]);
+        this.oldest = (this.oldest + 1) % this.hashes.length;
+        this.count--;
+    }
+
+    private boolean contains(long hash) {
+        if (this.table == null) {
+            return false;
+        }
+        for (int i = slot(hash); this.table[i] != 0; i = (i + 1) & this.mask) {
+            if (this.table[i] == hash) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes a hash from the table, moving later entries of its probe sequence back so that no
+     * lookup stops early at the emptied slot.
+     */
+    private void remove(long hash) {
+        int i = slot(hash);
+        while (this.table[i] != hash) {
+            i = (i + 1) & this.mask;
+        }
+
+        int j = i;
+        while (true) {
+            j = (j + 1) & this.mask;
+            if (this.table[j] == 0) {
+                break;
+            }
+            // an entry may move back to i unless its home slot lies cyclically in (i, j]
+            final int home = slot(this.table[j]);
+            if ((i <= j) ? ((home <= i) || (home > j)) : ((home <= i) && (home > j))) {
+                this.table[i] = this.table[j];
+                i = j;
+            }
+        }
+        this.table[i] = 0;
+    }
+
+    private int slot(long hash) {
+        return slot(hash, this.mask);
+    }
+
+    /**
+     * Specifies the message property to use as the key instead of <code>JMSMessageID</code>.
+     *
+     * @param keyProperty
+     *        the property name, or <code>null</code> to use the message ID
+     */
+    public void setKeyProperty(String keyProperty) {
+        this.keyProperty = keyProperty;
+    }
+
+    /**
+     * Specifies how many keys are remembered. Must be set before the filter is used.
+     *
+     * @param windowSize
+     *        the number of keys; the default is 100000
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Specifies how long, in milliseconds, a key is remembered for.
+     *
+     * @param windowDuration
+     *        the duration in ms, or 0 to forget keys only when the window is full; the default is 0
+     */
+    public void setWindowDuration(long windowDuration) {
+        this.windowDuration = windowDuration;
+    }
+}
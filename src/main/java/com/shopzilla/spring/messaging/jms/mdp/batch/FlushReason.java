@@ -0,0 +1,49 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+/**
+ * The reason a {@link BatchMessageListenerContainer} worker stopped accumulating a batch and passed
+ * it to the listener.
+ */
+public enum FlushReason {
+
+    /** The batch reached the configured batch size. */
+    SIZE,
+
+    /** The estimated size of the batch in bytes reached the configured maximum. */
+    BYTES,
+
+    /** No message was received for the quiet period; this includes polls that received nothing. */
+    QUIET_PERIOD,
+
+    /** The batch timeout expired while messages were still arriving. */
+    TIMEOUT,
+
+    /** The first message in the batch was received the maximum batch latency ago. */
+    MAX_LATENCY,
+
+    /** The worker was asked to stop, or was interrupted, while receiving the batch. */
+    STOP
+}
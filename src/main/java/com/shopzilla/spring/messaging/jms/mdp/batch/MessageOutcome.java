@@ -0,0 +1,47 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+/**
+ * The outcome of a single message in a batch passed to a {@link PartialBatchMessageListener}.
+ */
+public enum MessageOutcome {
+
+    /** The message was processed and is acknowledged with the batch. */
+    PROCESSED,
+
+    /**
+     * The message could not be processed this time; it is sent back to the destination it was
+     * received from and the rest of the batch is acknowledged. A message already retried
+     * {@link BatchMessageListenerContainer#setMaxRetries(int) maxRetries} times is treated as rejected.
+     */
+    RETRY,
+
+    /**
+     * The message can never be processed; it is sent to the container's
+     * {@link BatchMessageListenerContainer#setDeadLetterDestinationName(String) dead-letter destination},
+     * or discarded if there is none, and is acknowledged with the batch.
+     */
+    REJECT
+}
@@ -0,0 +1,49 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Estimates how much memory a received message takes. Used by {@link BatchMessageListenerContainer}
+ * to bound batches by size in bytes as well as by number of messages.
+ *
+ * @see BatchMessageListenerContainer#setMaxBatchBytes(long)
+ * @see BatchMessageListenerContainer#setMessageSizeEstimator(MessageSizeEstimator)
+ */
+public interface MessageSizeEstimator {
+
+    /**
+     * Returns the estimated size of a message. Called on the worker thread for every message
+     * received, so it should be cheap.
+     *
+     * @param  message  a received message
+     *
+     * @return  the size in bytes
+     *
+     * @throws  JMSException  if the message could not be read
+     */
+    long estimateSize(Message message) throws JMSException;
+}
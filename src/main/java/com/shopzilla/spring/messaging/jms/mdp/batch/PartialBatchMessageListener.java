@@ -0,0 +1,68 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.jms.Message;
+
+
+/**
+ * A batch listener that reports an outcome for each message, so that one bad message does not cause
+ * the whole batch to be redelivered.
+ *
+ * <p>
+ * The {@link BatchMessageListenerContainer} acknowledges the batch, or commits its transaction,
+ * once the listener returns. Messages with a {@link MessageOutcome#RETRY} outcome are first sent
+ * back to the destination they were received from, in the same transaction if the session is
+ * transacted. A resent message is a new message to the provider: it joins the back of the queue,
+ * is not flagged as redelivered and usually has a new message ID. Its
+ * {@link BatchMessageListenerContainer#RETRY_COUNT_PROPERTY retry count} is incremented, and once it
+ * reaches the container's {@link BatchMessageListenerContainer#setMaxRetries(int) maxRetries} the
+ * message is handled as if it were rejected. {@link MessageOutcome#REJECT Rejected} messages are sent
+ * to the dead-letter destination, in the same transaction, or discarded if the container has none.
+ * A listener that throws still causes the whole batch to be redelivered.
+ * </p>
+ *
+ * <p>
+ * Because a retry is resent to the destination, it must be a queue: on a topic every subscriber
+ * would receive it again.
+ * </p>
+ *
+ * @see BatchMessageListenerContainer#setPartialBatchMessageListener(PartialBatchMessageListener)
+ */
+public interface PartialBatchMessageListener {
+
+    /**
+     * Invoked when a batch of messages are ready.
+     *
+     * @param  messages  the messages
+     *
+     * @return  the outcome of each message, in the order the messages were iterated, or
+     *          <code>null</code> if every message was processed; a <code>null</code> element is
+     *          taken as {@link MessageOutcome#PROCESSED}
+     */
+    List<MessageOutcome> onMessages(Collection<Message> messages);
+}
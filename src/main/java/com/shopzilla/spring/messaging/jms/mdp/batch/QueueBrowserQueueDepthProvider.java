@@ -0,0 +1,76 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import java.util.Enumeration;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+
+import org.springframework.jms.support.JmsUtils;
+
+/**
+ * A {@link QueueDepthProvider} that counts messages with a {@link javax.jms.QueueBrowser}. This works
+ * with any JMS provider, but browsing is not free, so the count stops at {@link #setMaxCount(int)
+ * maxCount}.
+ */
+public class QueueBrowserQueueDepthProvider implements QueueDepthProvider {
+
+    /** The default number of messages to count before giving up. */
+    static final int DEFAULT_MAX_COUNT = 10000;
+
+    private int maxCount = DEFAULT_MAX_COUNT;
+
+    public long getQueueDepth(Connection connection, Queue queue) throws JMSException {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        QueueBrowser browser = null;
+        try {
+            browser = session.createBrowser(queue);
+            long count = 0;
+            Enumeration<?> messages = browser.getEnumeration();
+            while ((count < this.maxCount) && messages.hasMoreElements()) {
+                messages.nextElement();
+                count++;
+            }
+            return count;
+        } finally {
+            JmsUtils.closeQueueBrowser(browser);
+            JmsUtils.closeSession(session);
+        }
+    }
+
+    /**
+     * Specifies the greatest number of messages to count. A backlog larger than this is reported as
+     * this number.
+     *
+     * @param maxCount
+     *        the maximum count; the default is 10000
+     */
+    public void setMaxCount(int maxCount) {
+        this.maxCount = maxCount;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+
+/**
+ * Reports the number of messages waiting on a queue. Used by {@link BatchMessageListenerContainer}
+ * to decide whether starting another worker would help drain a backlog.
+ *
+ * @see BatchMessageListenerContainer#setQueueDepthProvider(QueueDepthProvider)
+ */
+public interface QueueDepthProvider {
+
+    /**
+     * Returns the number of messages waiting on the given queue.
+     *
+     * <p>
+     * Implementations should create whatever session they need from the connection and close it
+     * before returning; the connection is shared with the container's workers and must not be
+     * closed.
+     * </p>
+     *
+     * @param  connection  a started connection to the broker
+     * @param  queue  the queue to inspect
+     *
+     * @return  the number of messages waiting, or -1 if it could not be determined
+     *
+     * @throws  JMSException  if the broker could not be queried
+     */
+    long getQueueDepth(Connection connection, Queue queue) throws JMSException;
+}
@@ -0,0 +1,217 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Records the measurements of a {@link BatchMessageListenerContainer} in memory, in histograms, and
+ * exposes them as a JMX standard MBean. Register it with Spring's
+ * {@link org.springframework.jmx.export.MBeanExporter}, or any MBean server, to see how batches are
+ * flushing and how long the listener takes.
+ *
+ * <p>
+ * Batch sizes, byte totals and fill times are only recorded for batches that received messages,
+ * while the idle-receive ratio counts every timed receive. Byte totals are as estimated by the
+ * container's {@link MessageSizeEstimator}. Times are kept with microsecond resolution.
+ * </p>
+ */
+public class SimpleBatchMetrics implements BatchMetrics, SimpleBatchMetricsMBean {
+
+    private final Histogram batchSizes = new Histogram();
+    private final Histogram batchBytes = new Histogram();
+    private final Map<FlushReason, Histogram> fillTimes = new EnumMap<FlushReason, Histogram>(FlushReason.class);
+    private final Histogram listenerLatencies = new Histogram();
+    private final Histogram acknowledgeTimes = new Histogram();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong listenerFailures = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong receives = new AtomicLong();
+    private final AtomicLong idleReceives = new AtomicLong();
+
+    public SimpleBatchMetrics() {
+        for (FlushReason reason : FlushReason.values()) {
+            this.fillTimes.put(reason, new Histogram());
+        }
+    }
+
+    public void batchReceived(FlushReason reason, int size, long bytes, long fillTime, int receives,
+            int idleReceives) {
+        this.receives.addAndGet(receives);
+        this.idleReceives.addAndGet(idleReceives);
+        if (size > 0) {
+            this.batchSizes.record(size);
+            this.batchBytes.record(bytes);
+            this.messages.addAndGet(size);
+            this.bytes.addAndGet(bytes);
+            this.fillTimes.get(reason).record(TimeUnit.NANOSECONDS.toMicros(fillTime));
+        }
+    }
+
+    public void listenerInvoked(int size, long latency, boolean failed) {
+        this.listenerLatencies.record(TimeUnit.NANOSECONDS.toMicros(latency));
+        if (failed) {
+            this.listenerFailures.incrementAndGet();
+        }
+    }
+
+    public void batchAcknowledged(long time) {
+        this.acknowledgeTimes.record(TimeUnit.NANOSECONDS.toMicros(time));
+    }
+
+    public void reconnecting() {
+        this.reconnects.incrementAndGet();
+    }
+
+    public long getBatchCount() {
+        return this.batchSizes.getCount();
+    }
+
+    public long getMessageCount() {
+        return this.messages.get();
+    }
+
+    public double getBatchSizeMean() {
+        return this.batchSizes.getMean();
+    }
+
+    public long getBatchSizeMedian() {
+        return this.batchSizes.getPercentile(0.5);
+    }
+
+    public long getBatchSizeMax() {
+        return this.batchSizes.getMax();
+    }
+
+    public long getBatchSizePercentile(double percentile) {
+        return this.batchSizes.getPercentile(percentile);
+    }
+
+    public long getByteCount() {
+        return this.bytes.get();
+    }
+
+    public double getBatchBytesMean() {
+        return this.batchBytes.getMean();
+    }
+
+    public long getBatchBytesMax() {
+        return this.batchBytes.getMax();
+    }
+
+    public long getBatchBytesPercentile(double percentile) {
+        return this.batchBytes.getPercentile(percentile);
+    }
+
+    /**
+     * Returns the number of batches flushed for the given reason.
+     *
+     * @param flushReason
+     *        the name of a {@link FlushReason}
+     *
+     * @return the number of batches
+     */
+    public long getFlushCount(String flushReason) {
+        return getFillTimes(flushReason).getCount();
+    }
+
+    public double getFillTimeMean(String flushReason) {
+        return getFillTimes(flushReason).getMean();
+    }
+
+    public long getFillTimePercentile(String flushReason, double percentile) {
+        return getFillTimes(flushReason).getPercentile(percentile);
+    }
+
+    public long getListenerLatencyMedian() {
+        return this.listenerLatencies.getPercentile(0.5);
+    }
+
+    public long getListenerLatency99thPercentile() {
+        return this.listenerLatencies.getPercentile(0.99);
+    }
+
+    public long getListenerLatencyMax() {
+        return this.listenerLatencies.getMax();
+    }
+
+    public long getListenerLatencyPercentile(double percentile) {
+        return this.listenerLatencies.getPercentile(percentile);
+    }
+
+    public long getListenerFailureCount() {
+        return this.listenerFailures.get();
+    }
+
+    public double getAcknowledgeTimeMean() {
+        return this.acknowledgeTimes.getMean();
+    }
+
+    public long getAcknowledgeTime99thPercentile() {
+        return this.acknowledgeTimes.getPercentile(0.99);
+    }
+
+    public long getReconnectCount() {
+        return this.reconnects.get();
+    }
+
+    /**
+     * Returns the fraction of timed receives that returned no message. A ratio near 1 means workers
+     * mostly wait for messages, and one near 0 that messages are waiting for workers.
+     *
+     * @return the ratio, or 0 if nothing has been received
+     */
+    public double getIdleReceiveRatio() {
+        final long total = this.receives.get();
+        return (total == 0) ? 0 : ((double) this.idleReceives.get() / total);
+    }
+
+    /**
+     * Discards everything recorded so far. Measurements recorded while resetting may be partly lost.
+     */
+    public void reset() {
+        this.batchSizes.reset();
+        this.batchBytes.reset();
+        for (Histogram histogram : this.fillTimes.values()) {
+            histogram.reset();
+        }
+        this.listenerLatencies.reset();
+        this.acknowledgeTimes.reset();
+        this.messages.set(0);
+        this.bytes.set(0);
+        this.listenerFailures.set(0);
+        this.reconnects.set(0);
+        this.receives.set(0);
+        this.idleReceives.set(0);
+    }
+
+    private Histogram getFillTimes(String flushReason) {
+        return this.fillTimes.get(FlushReason.valueOf(flushReason));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+/**
+ * The JMX management interface of {@link SimpleBatchMetrics}. Times are in microseconds, sizes in
+ * bytes, and percentiles are fractions between 0 and 1.
+ */
+public interface SimpleBatchMetricsMBean {
+
+    long getBatchCount();
+
+    long getMessageCount();
+
+    double getBatchSizeMean();
+
+    long getBatchSizeMedian();
+
+    long getBatchSizeMax();
+
+    long getBatchSizePercentile(double percentile);
+
+    long getByteCount();
+
+    double getBatchBytesMean();
+
+    long getBatchBytesMax();
+
+    long getBatchBytesPercentile(double percentile);
+
+    long getFlushCount(String flushReason);
+
+    double getFillTimeMean(String flushReason);
+
+    long getFillTimePercentile(String flushReason, double percentile);
+
+    long getListenerLatencyMedian();
+
+    long getListenerLatency99thPercentile();
+
+    long getListenerLatencyMax();
+
+    long getListenerLatencyPercentile(double percentile);
+
+    long getListenerFailureCount();
+
+    double getAcknowledgeTimeMean();
+
+    long getAcknowledgeTime99thPercentile();
+
+    long getReconnectCount();
+
+    double getIdleReceiveRatio();
+
+    void reset();
+}
@@ -0,0 +1,45 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import java.util.List;
+
+
+/**
+ * Similar to a {@link BatchMessageListener}, but receives the objects converted from a batch of
+ * messages.
+ *
+ * @param <T> the type of the converted messages
+ *
+ * @see TypedBatchMessageListenerAdapter
+ */
+public interface TypedBatchMessageListener<T> {
+
+    /**
+     * Invoked when a batch of messages are ready.
+     *
+     * @param  objects  the converted messages, in the order they were received
+     */
+    void onMessages(List<T> objects);
+}
@@ -0,0 +1,200 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+
+import org.springframework.jms.support.JmsUtils;
+import org.springframework.jms.support.converter.MessageConverter;
+import org.springframework.jms.support.converter.SimpleMessageConverter;
+
+
+/**
+ * A {@link BatchMessageListener} that converts each message with a {@link MessageConverter} and
+ * passes the results to a {@link TypedBatchMessageListener}.
+ *
+ * <p>
+ * Messages are converted on the thread invoking the listener unless a
+ * {@link #setTaskExecutor(TaskExecutor) task executor} is configured and the batch holds at least
+ * {@link #setParallelConversionThreshold(int) parallelConversionThreshold} messages. The batch is
+ * then split into {@link #setConversionParallelism(int) conversionParallelism} contiguous parts, one
+ * converted by the calling thread and the rest by the executor, and the listener is invoked once
+ * all parts are converted. The converter must then be thread-safe and must not need the session,
+ * as for a provider's streamed large messages.
+ * </p>
+ *
+ * @param <T> the type of the converted messages
+ */
+public class TypedBatchMessageListenerAdapter<T> implements BatchMessageListener {
+
+    /** Default number of messages in a batch from which conversion is split across threads. */
+    static final int DEFAULT_PARALLEL_CONVERSION_THRESHOLD = 1000;
+
+    private TypedBatchMessageListener<T> delegate;
+    private MessageConverter messageConverter = new SimpleMessageConverter();
+    private TaskExecutor taskExecutor;
+    private int parallelConversionThreshold = DEFAULT_PARALLEL_CONVERSION_THRESHOLD;
+    private int conversionParallelism = Runtime.getRuntime().availableProcessors();
+
+    public TypedBatchMessageListenerAdapter() {
+    }
+
+    public TypedBatchMessageListenerAdapter(TypedBatchMessageListener<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void onMessages(Collection<Message> messages) {
+        final List<Message> batch = (messages instanceof List) ? (List<Message>) messages
+                : new ArrayList<Message>(messages);
+        final Object[] objects = new Object[batch.size()];
+
+        if ((this.taskExecutor != null) && (this.conversionParallelism > 1)
+                && (batch.size() >= this.parallelConversionThreshold)) {
+            convertInParallel(batch, objects);
+        } else {
+            convert(batch, objects, 0, batch.size());
+        }
+
+        this.delegate.onMessages((List<T>) (List<?>) Arrays.asList(objects));
+    }
+
+    private void convertInParallel(final List<Message> batch, final Object[] objects) {
+        final int partSize = (batch.size() + this.conversionParallelism - 1) / this.conversionParallelism;
+        final CountDownLatch done = new CountDownLatch((batch.size() - 1) / partSize);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        for (int from = partSize; from < batch.size(); from += partSize) {
+            final int start = from;
+            final int end = Math.min(from + partSize, batch.size());
+            final Runnable part = new Runnable() {
+                    public void run() {
+                        try {
+                            convert(batch, objects, start, end);
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                };
+            try {
+                this.taskExecutor.execute(part);
+            } catch (TaskRejectedException e) {
+                part.run();
+            }
+        }
+
+        try {
+            convert(batch, objects, 0, partSize);
+        } finally {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while converting messages", e);
+            }
+        }
+
+        Throwable e = failure.get();
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        }
+    }
+
+    private void convert(List<Message> batch, Object[] objects, int start, int end) {
+        try {
+            for (int i = start; i < end; i++) {
+                objects[i] = this.messageConverter.fromMessage(batch.get(i));
+            }
+        } catch (JMSException e) {
+            throw JmsUtils.convertJmsAccessException(e);
+        }
+    }
+
+    /**
+     * Specifies the listener to pass converted batches to.
+     *
+     * @param delegate
+     *        the listener
+     */
+    public void setDelegate(TypedBatchMessageListener<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Specifies the converter used to convert each message.
+     *
+     * @param messageConverter
+     *        the converter; the default is a {@link SimpleMessageConverter}
+     */
+    public void setMessageConverter(MessageConverter messageConverter) {
+        this.messageConverter = messageConverter;
+    }
+
+    /**
+     * Specifies an executor to convert parts of large batches on.
+     *
+     * @param taskExecutor
+     *        the executor, or <code>null</code> to convert every batch on the calling thread; the
+     *        default is <code>null</code>
+     */
+    public void setTaskExecutor(TaskExecutor taskExecutor) {
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Specifies the number of messages in a batch from which conversion is split across threads.
+     *
+     * @param parallelConversionThreshold
+     *        the number of messages; the default is 1000
+     */
+    public void setParallelConversionThreshold(int parallelConversionThreshold) {
+        this.parallelConversionThreshold = parallelConversionThreshold;
+    }
+
+    /**
+     * Specifies how many parts a large batch is split into for conversion, including the part
+     * converted by the calling thread.
+     *
+     * @param conversionParallelism
+     *        the number of parts; the default is the number of available processors
+     */
+    public void setConversionParallelism(int conversionParallelism) {
+        this.conversionParallelism = conversionParallelism;
+    }
+}
@@ -23,6 +23,13 @@
  */
 package com.shopzilla.spring.messaging.hornetq;
 
+import org.hornetq.api.core.Pair;
+import org.hornetq.api.core.TransportConfiguration;
+import org.hornetq.api.core.client.loadbalance.FirstElementConnectionLoadBalancingPolicy;
+import org.hornetq.api.core.client.loadbalance.RandomConnectionLoadBalancingPolicy;
+import org.hornetq.core.remoting.impl.invm.InVMConnectorFactory;
+import org.hornetq.integration.transports.netty.NettyConnectorFactory;
+import org.hornetq.integration.transports.netty.TransportConstants;
 import org.hornetq.jms.client.HornetQConnectionFactory;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
@@ -32,6 +39,8 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.List;
+
 
 /**
  *
@@ -125,6 +134,113 @@ public class HornetQConnectionFactoryFactoryTest {
         Assert.assertNotNull(hornetQConnectionFactoryFactory);
     }
 
+    @Test
+    public void testStipulatingAsynchronousSends() throws Throwable {
+        this.hornetQConnectionFactoryFactory.setBlockOnDurableSend(false);
+        this.hornetQConnectionFactoryFactory.setBlockOnNonDurableSend(true);
+
+        HornetQConnectionFactory hornetQConnectionFactory = this.hornetQConnectionFactoryFactory.createInstance();
+        Assert.assertFalse(hornetQConnectionFactory.isBlockOnDurableSend());
+        Assert.assertTrue(hornetQConnectionFactory.isBlockOnNonDurableSend());
+    }
+
+    @Test
+    public void testStipulatingFlowControl() throws Throwable {
+        this.hornetQConnectionFactoryFactory.setConsumerWindowSize(0);
+        this.hornetQConnectionFactoryFactory.setProducerWindowSize(-1);
+        this.hornetQConnectionFactoryFactory.setConfirmationWindowSize(1024);
+        this.hornetQConnectionFactoryFactory.setBlockOnAcknowledge(true);
+        this.hornetQConnectionFactoryFactory.setDupsOKBatchSize(2048);
+        this.hornetQConnectionFactoryFactory.setTransactionBatchSize(4096);
+        this.hornetQConnectionFactoryFactory.setMinLargeMessageSize(8192);
+        this.hornetQConnectionFactoryFactory.setCacheLargeMessagesClient(true);
+        this.hornetQConnectionFactoryFactory.setUseGlobalPools(false);
+        this.hornetQConnectionFactoryFactory.setThreadPoolMaxSize(8);
+        this.hornetQConnectionFactoryFactory.setScheduledThreadPoolMaxSize(2);
+
+        HornetQConnectionFactory hornetQConnectionFactory = this.hornetQConnectionFactoryFactory.createInstance();
+        Assert.assertEquals(0, hornetQConnectionFactory.getConsumerWindowSize());
+        Assert.assertEquals(-1, hornetQConnectionFactory.getProducerWindowSize());
+        Assert.assertEquals(1024, hornetQConnectionFactory.getConfirmationWindowSize());
+        Assert.assertTrue(hornetQConnectionFactory.isBlockOnAcknowledge());
+        Assert.assertEquals(2048, hornetQConnectionFactory.getDupsOKBatchSize());
+        Assert.assertEquals(4096, hornetQConnectionFactory.getTransactionBatchSize());
+        Assert.assertEquals(8192, hornetQConnectionFactory.getMinLargeMessageSize());
+        Assert.assertTrue(hornetQConnectionFactory.isCacheLargeMessagesClient());
+        Assert.assertFalse(hornetQConnectionFactory.isUseGlobalPools());
+        Assert.assertEquals(8, hornetQConnectionFactory.getThreadPoolMaxSize());
+        Assert.assertEquals(2, hornetQConnectionFactory.getScheduledThreadPoolMaxSize());
+    }
+
+    @Test
+    public void testStipulatingNettyParameters() throws Throwable {
+        this.hornetQConnectionFactoryFactory.setTcpNoDelay(false);
+        this.hornetQConnectionFactoryFactory.setTcpSendBufferSize(65536);
+        this.hornetQConnectionFactoryFactory.setTcpReceiveBufferSize(131072);
+        this.hornetQConnectionFactoryFactory.setUseNio(true);
+
+        HornetQConnectionFactory hornetQConnectionFactory = this.hornetQConnectionFactoryFactory.createInstance();
+        TransportConfiguration main = hornetQConnectionFactory.getStaticConnectors().get(0).a;
+        Assert.assertEquals(NettyConnectorFactory.class.getName(), main.getFactoryClassName());
+        Assert.assertEquals(this.host, main.getParams().get(TransportConstants.HOST_PROP_NAME));
+        Assert.assertEquals(false, main.getParams().get(TransportConstants.TCP_NODELAY_PROPNAME));
+        Assert.assertEquals(65536, main.getParams().get(TransportConstants.TCP_SENDBUFFER_SIZE_PROPNAME));
+        Assert.assertEquals(131072, main.getParams().get(TransportConstants.TCP_RECEIVEBUFFER_SIZE_PROPNAME));
+        Assert.assertEquals(true, main.getParams().get(TransportConstants.USE_NIO_PROP_NAME));
+    }
+
+    @Test
+    public void testStipulatingInVm() throws Throwable {
+        this.hornetQConnectionFactoryFactory.setHost(null);
+        this.hornetQConnectionFactoryFactory.setPort(0);
+        this.hornetQConnectionFactoryFactory.setInVm(true);
+        this.hornetQConnectionFactoryFactory.setServerId(2);
+
+        HornetQConnectionFactory hornetQConnectionFactory = this.hornetQConnectionFactoryFactory.createInstance();
+        Assert.assertEquals(1, hornetQConnectionFactory.getStaticConnectors().size());
+        Pair<TransportConfiguration, TransportConfiguration> connector = hornetQConnectionFactory.getStaticConnectors().get(0);
+        Assert.assertEquals(InVMConnectorFactory.class.getName(), connector.a.getFactoryClassName());
+        Assert.assertEquals(2, connector.a.getParams().get("server-id"));
+        Assert.assertNull(connector.b);
+    }
+
+    @Test
+    public void testStipulatingServers() throws Throwable {
+        this.hornetQConnectionFactoryFactory.setServers(new String[] { "host1:5445/backup1:5446, host2:5447 " });
+        this.hornetQConnectionFactoryFactory.setLoadBalancingPolicy("sticky");
+
+        HornetQConnectionFactory hornetQConnectionFactory = this.hornetQConnectionFactoryFactory.createInstance();
+        List<Pair<TransportConfiguration, TransportConfiguration>> connectors = hornetQConnectionFactory.getStaticConnectors();
+        Assert.assertEquals(2, connectors.size());
+        Assert.assertEquals("host1", connectors.get(0).a.getParams().get(TransportConstants.HOST_PROP_NAME));
+        Assert.assertEquals(5445, connectors.get(0).a.getParams().get(TransportConstants.PORT_PROP_NAME));
+        Assert.assertEquals("backup1", connectors.get(0).b.getParams().get(TransportConstants.HOST_PROP_NAME));
+        Assert.assertEquals(5446, connectors.get(0).b.getParams().get(TransportConstants.PORT_PROP_NAME));
+        Assert.assertEquals("host2", connectors.get(1).a.getParams().get(TransportConstants.HOST_PROP_NAME));
+        Assert.assertNull(connectors.get(1).b);
+        Assert.assertEquals(FirstElementConnectionLoadBalancingPolicy.class.getName(),
+            hornetQConnectionFactory.getConnectionLoadBalancingPolicyClassName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStipulatingServerWithoutPort() throws Throwable {
+        this.hornetQConnectionFactoryFactory.setServers(new String[] { "host1" });
+        this.hornetQConnectionFactoryFactory.createInstance();
+    }
+
+    @Test
+    public void testStipulatingDiscovery() throws Throwable {
+        this.hornetQConnectionFactoryFactory.setDiscoveryAddress("231.7.7.7");
+        this.hornetQConnectionFactoryFactory.setDiscoveryPort(9876);
+        this.hornetQConnectionFactoryFactory.setLoadBalancingPolicy("random");
+
+        HornetQConnectionFactory hornetQConnectionFactory = this.hornetQConnectionFactoryFactory.createInstance();
+        Assert.assertEquals("231.7.7.7", hornetQConnectionFactory.getDiscoveryAddress());
+        Assert.assertEquals(9876, hornetQConnectionFactory.getDiscoveryPort());
+        Assert.assertEquals(RandomConnectionLoadBalancingPolicy.class.getName(),
+            hornetQConnectionFactory.getConnectionLoadBalancingPolicyClassName());
+    }
+
     @Test
     public void testClassTypeRetreival() throws Throwable {
         Assert.assertEquals(this.hornetQConnectionFactoryFactory.getObjectType(), HornetQConnectionFactory.class);
@@ -0,0 +1,170 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.hornetq;
+
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.api.core.management.ManagementHelper;
+import org.hornetq.api.jms.HornetQJMSClient;
+import org.hornetq.core.client.impl.ClientMessageImpl;
+import org.hornetq.jms.client.HornetQMessage;
+import org.hornetq.jms.client.HornetQTemporaryQueue;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+
+/**
+ * Unit tests for {@link com.shopzilla.spring.messaging.hornetq.HornetQManagementQueueDepthProvider}
+ */
+public class HornetQManagementQueueDepthProviderTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private HornetQManagementQueueDepthProvider queueDepthProvider;
+    private Connection connection;
+    private Session session;
+    private Queue queue;
+    private HornetQTemporaryQueue replyQueue;
+    private MessageConsumer consumer;
+    private MessageProducer producer;
+    private HornetQMessage request;
+
+    @Before
+    public void before() throws Throwable {
+        this.queueDepthProvider = new HornetQManagementQueueDepthProvider();
+        this.queueDepthProvider.setReplyTimeout(100);
+        this.connection = this.context.mock(Connection.class);
+        this.session = this.context.mock(Session.class);
+        this.queue = this.context.mock(Queue.class);
+        this.replyQueue = this.context.mock(HornetQTemporaryQueue.class);
+        this.consumer = this.context.mock(MessageConsumer.class);
+        this.producer = this.context.mock(MessageProducer.class);
+        this.request = createMessage();
+        this.context.checking(new Expectations() {
+            {
+                allowing(queue).getQueueName();
+                will(returnValue("orders"));
+                allowing(replyQueue).getSimpleAddress();
+                will(returnValue(new SimpleString("jms.tempqueue.reply")));
+                one(connection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+                will(returnValue(session));
+                one(session).createTemporaryQueue();
+                will(returnValue(replyQueue));
+                one(session).createConsumer(replyQueue);
+                will(returnValue(consumer));
+                one(session).createMessage();
+                will(returnValue(request));
+                one(session).createProducer(HornetQJMSClient.createQueue("hornetq.management"));
+                will(returnValue(producer));
+                one(producer).send(request);
+                one(producer).close();
+                one(consumer).close();
+                one(replyQueue).delete();
+                one(session).close();
+            }
+        });
+    }
+
+    @After
+    public void after() throws Throwable {
+        this.context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testReadsMessageCountFromReply() throws Throwable {
+        final HornetQMessage reply = createReply(true, 42L);
+        this.context.checking(new Expectations() {
+            {
+                one(consumer).receive(100);
+                will(returnValue(reply));
+            }
+        });
+        Assert.assertEquals(42, this.queueDepthProvider.getQueueDepth(connection, queue));
+        Assert.assertSame(this.replyQueue, this.request.getJMSReplyTo());
+        Assert.assertEquals("jms.queue.orders",
+                            this.request.getStringProperty(ManagementHelper.HDR_RESOURCE_NAME.toString()));
+        Assert.assertEquals("messageCount", this.request.getStringProperty(ManagementHelper.HDR_ATTRIBUTE.toString()));
+    }
+
+    @Test
+    public void testErrorReplyMeansUnknownDepth() throws Throwable {
+        final HornetQMessage reply = createReply(false, "jms.queue.orders not found");
+        this.context.checking(new Expectations() {
+            {
+                one(consumer).receive(100);
+                will(returnValue(reply));
+            }
+        });
+        Assert.assertEquals(-1, this.queueDepthProvider.getQueueDepth(connection, queue));
+    }
+
+    @Test
+    public void testMissingReplyMeansUnknownDepth() throws Throwable {
+        this.context.checking(new Expectations() {
+            {
+                one(consumer).receive(100);
+                will(returnValue(null));
+            }
+        });
+        Assert.assertEquals(-1, this.queueDepthProvider.getQueueDepth(connection, queue));
+    }
+
+    @Test(expected = JMSException.class)
+    public void testUnreadableReplyIsReported() throws Throwable {
+        final HornetQMessage reply = createReply(true, "not a number");
+        this.context.checking(new Expectations() {
+            {
+                one(consumer).receive(100);
+                will(returnValue(reply));
+            }
+        });
+        this.queueDepthProvider.getQueueDepth(connection, queue);
+    }
+
+    private static HornetQMessage createMessage() {
+        return new HornetQMessage(new ClientMessageImpl(HornetQMessage.TYPE, true, 0, System.currentTimeMillis(),
+                                                        (byte) 4, 1024), null);
+    }
+
+    private static HornetQMessage createReply(final boolean succeeded, final Object result) throws Exception {
+        HornetQMessage reply = createMessage();
+        ManagementHelper.storeResult(reply.getCoreMessage(), result);
+        reply.getCoreMessage().putBooleanProperty(ManagementHelper.HDR_OPERATION_SUCCEEDED, succeeded);
+        return reply;
+    }
+}
@@ -54,6 +54,11 @@ public class HornetQNamespaceHandlerTest {
     private String backupPort = "" + 10;
     private String reconnectAttempts = "10";
     private String failover = "true";
+    private String servers = "host1:5445/backup1:5445,host2:5445";
+    private String loadBalancingPolicy = "random";
+    private String tcpNoDelay = "false";
+    private String blockOnDurableSend = "false";
+    private String consumerWindowSize = "" + 65536;
 
     @Before
     public void before() throws Throwable {
@@ -75,10 +80,56 @@ public class HornetQNamespaceHandlerTest {
                 will(returnValue(port));
                 one(elem).getAttribute("backup-port");
                 will(returnValue(backupPort));
+                one(elem).getAttribute("servers");
+                will(returnValue(servers));
+                one(elem).getAttribute("discovery-address");
+                will(returnValue(""));
+                one(elem).getAttribute("discovery-port");
+                will(returnValue(""));
+                one(elem).getAttribute("load-balancing-policy");
+                will(returnValue(loadBalancingPolicy));
                 one(elem).getAttribute("reconnect-attempts");
                 will(returnValue(reconnectAttempts));
                 one(elem).getAttribute("failover-on-server-shutdown");
                 will(returnValue(failover));
+                one(elem).getAttribute("in-vm");
+                will(returnValue(""));
+                one(elem).getAttribute("server-id");
+                will(returnValue(""));
+                one(elem).getAttribute("tcp-no-delay");
+                will(returnValue(tcpNoDelay));
+                one(elem).getAttribute("tcp-send-buffer-size");
+                will(returnValue(""));
+                one(elem).getAttribute("tcp-receive-buffer-size");
+                will(returnValue(""));
+                one(elem).getAttribute("use-nio");
+                will(returnValue(""));
+                one(elem).getAttribute("block-on-durable-send");
+                will(returnValue(blockOnDurableSend));
+                one(elem).getAttribute("block-on-non-durable-send");
+                will(returnValue(""));
+                one(elem).getAttribute("block-on-acknowledge");
+                will(returnValue(""));
+                one(elem).getAttribute("consumer-window-size");
+                will(returnValue(consumerWindowSize));
+                one(elem).getAttribute("producer-window-size");
+                will(returnValue(""));
+                one(elem).getAttribute("confirmation-window-size");
+                will(returnValue(""));
+                one(elem).getAttribute("dups-ok-batch-size");
+                will(returnValue(""));
+                one(elem).getAttribute("transaction-batch-size");
+                will(returnValue(""));
+                one(elem).getAttribute("min-large-message-size");
+                will(returnValue(""));
+                one(elem).getAttribute("cache-large-messages-client");
+                will(returnValue(""));
+                one(elem).getAttribute("use-global-pools");
+                will(returnValue(""));
+                one(elem).getAttribute("thread-pool-max-size");
+                will(returnValue(""));
+                one(elem).getAttribute("scheduled-thread-pool-max-size");
+                will(returnValue(""));
             }
         });
         hornetQConnectionFactoryFactoryBeanDefinitionParser.parseInternal(elem, parserContext);
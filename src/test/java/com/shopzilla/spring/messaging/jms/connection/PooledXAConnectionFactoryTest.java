@@ -0,0 +1,351 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.connection;
+
+import static org.junit.Assert.assertEquals;
+
+import javax.jms.ConnectionConsumer;
+import javax.jms.ConnectionMetaData;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.ServerSessionPool;
+import javax.jms.Session;
+import javax.jms.XAConnection;
+import javax.jms.XASession;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+/**
+ * Tests {@link PooledXAConnectionFactory}.
+ */
+public class PooledXAConnectionFactoryTest {
+
+    private Mockery context = new Mockery() {
+
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private String user = "user";
+    private String pw = "pw";
+    private TargetConnectionFactory xaConnectionFactory;
+    private XAConnection xaConnection;
+    private XASession xaSession;
+    private ExceptionListener poolListener;
+    private PooledXAConnectionFactory pooledXAConnectionFactory;
+
+    @Before
+    public void before() throws Throwable {
+        this.xaConnectionFactory = this.context.mock(TargetConnectionFactory.class);
+        this.xaConnection = this.context.mock(XAConnection.class);
+        this.xaSession = this.context.mock(XASession.class);
+        this.pooledXAConnectionFactory = new PooledXAConnectionFactory();
+        this.pooledXAConnectionFactory.setUsername(user);
+        this.pooledXAConnectionFactory.setPassword(pw);
+        this.pooledXAConnectionFactory.setTargetConnectionFactory(this.xaConnectionFactory);
+        this.pooledXAConnectionFactory.setEvictionInterval(0);
+        this.pooledXAConnectionFactory.afterPropertiesSet();
+
+        this.context.checking(new Expectations() {
+            {
+                allowing(xaConnection).setExceptionListener(with(any(ExceptionListener.class)));
+                will(new CustomAction("remember the exception listener") {
+                        public Object invoke(Invocation invocation) {
+                            poolListener = (ExceptionListener) invocation.getParameter(0);
+                            return null;
+                        }
+                    });
+                allowing(xaConnection).getMetaData();
+                will(returnValue(context.mock(ConnectionMetaData.class)));
+            }
+        });
+    }
+
+    @After
+    public void after() throws Throwable {
+        this.pooledXAConnectionFactory.destroy();
+        this.context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testConnectionsSessionsAndProducersAreReused() throws Throwable {
+        final Queue queue = this.context.mock(Queue.class);
+        final MessageProducer producer = this.context.mock(MessageProducer.class);
+        final MessageConsumer consumer = this.context.mock(MessageConsumer.class);
+        this.context.checking(new Expectations() {
+            {
+                one(xaConnectionFactory).createXAConnection(user, pw);
+                will(returnValue(xaConnection));
+                one(xaConnection).createXASession();
+                will(returnValue(xaSession));
+                one(xaSession).createProducer(queue);
+                will(returnValue(producer));
+                exactly(2).of(xaSession).createConsumer(queue);
+                will(returnValue(consumer));
+                exactly(2).of(consumer).close();
+                exactly(2).of(producer).setDeliveryMode(with(any(int.class)));
+                exactly(2).of(producer).setPriority(with(any(int.class)));
+                exactly(2).of(producer).setTimeToLive(with(any(long.class)));
+                exactly(2).of(producer).setDisableMessageID(false);
+                exactly(2).of(producer).setDisableMessageTimestamp(false);
+                one(xaConnection).close();
+            }
+        });
+
+        for (int i = 0; i < 2; i++) {
+            final XAConnection connection = this.pooledXAConnectionFactory.createXAConnection();
+            final XASession session = connection.createXASession();
+            session.createProducer(queue).close();
+            session.createConsumer(queue);
+            connection.close();
+        }
+        assertEquals(1, this.pooledXAConnectionFactory.getIdleConnectionCount());
+        assertEquals(0, this.pooledXAConnectionFactory.getActiveConnectionCount());
+    }
+
+    @Test(expected = java.lang.IllegalStateException.class)
+    public void testInvalidMaxConnectionsIsRejected() throws Throwable {
+        final PooledXAConnectionFactory factory = new PooledXAConnectionFactory();
+        factory.setTargetConnectionFactory(this.xaConnectionFactory);
+        factory.setMaxConnections(0);
+        factory.afterPropertiesSet();
+    }
+
+    @Test(expected = JMSException.class)
+    public void testWaitingForAConnectionTimesOut() throws Throwable {
+        this.pooledXAConnectionFactory.setMaxConnections(1);
+        this.pooledXAConnectionFactory.setMaxWait(10);
+        this.context.checking(new Expectations() {
+            {
+                one(xaConnectionFactory).createXAConnection(user, pw);
+                will(returnValue(xaConnection));
+            }
+        });
+
+        this.pooledXAConnectionFactory.createXAConnection();
+        this.pooledXAConnectionFactory.createXAConnection();
+    }
+
+    @Test
+    public void testBrokenConnectionsAreNotReused() throws Throwable {
+        final XAConnection replacement = this.context.mock(XAConnection.class, "replacement");
+        final ExceptionListener listener = this.context.mock(ExceptionListener.class);
+        final JMSException failure = new JMSException("connection failure");
+        this.context.checking(new Expectations() {
+            {
+                exactly(2).of(xaConnectionFactory).createXAConnection(user, pw);
+                will(onConsecutiveCalls(returnValue(xaConnection), returnValue(replacement)));
+                allowing(replacement).setExceptionListener(with(any(ExceptionListener.class)));
+                one(listener).onException(failure);
+                one(xaConnection).close();
+                one(replacement).close();
+            }
+        });
+
+        final XAConnection connection = this.pooledXAConnectionFactory.createXAConnection();
+        connection.setExceptionListener(listener);
+        this.poolListener.onException(failure);
+        connection.close();
+
+        this.pooledXAConnectionFactory.createXAConnection().close();
+        assertEquals(1, this.pooledXAConnectionFactory.getIdleConnectionCount());
+    }
+
+    @Test
+    public void testIdleConnectionsAreEvicted() throws Throwable {
+        this.pooledXAConnectionFactory.setMaxIdleTime(-1);
+        this.context.checking(new Expectations() {
+            {
+                one(xaConnectionFactory).createXAConnection(user, pw);
+                will(returnValue(xaConnection));
+                one(xaConnection).close();
+            }
+        });
+
+        this.pooledXAConnectionFactory.createXAConnection().close();
+        this.pooledXAConnectionFactory.evictIdleConnections();
+        assertEquals(0, this.pooledXAConnectionFactory.getIdleConnectionCount());
+    }
+
+    @Test
+    public void testSessionsAreReturnedWhenTheTransactionCompletes() throws Throwable {
+        this.context.checking(new Expectations() {
+            {
+                one(xaConnectionFactory).createXAConnection(user, pw);
+                will(returnValue(xaConnection));
+                exactly(2).of(xaConnection).createXASession();
+                will(returnValue(xaSession));
+                one(xaConnection).close();
+            }
+        });
+
+        final XAConnection connection = this.pooledXAConnectionFactory.createXAConnection();
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            connection.createXASession().close();
+            connection.createXASession().close();
+            TransactionSynchronizationUtils.invokeAfterCompletion(TransactionSynchronizationManager.getSynchronizations(),
+                TransactionSynchronization.STATUS_COMMITTED);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        connection.createXASession().close();
+        connection.close();
+    }
+
+    @Test
+    public void testStoppingALentConnectionHasNoEffect() throws Throwable {
+        this.context.checking(new Expectations() {
+            {
+                one(xaConnectionFactory).createXAConnection(user, pw);
+                will(returnValue(xaConnection));
+                one(xaConnection).start();
+                never(xaConnection).stop();
+                one(xaConnection).close();
+            }
+        });
+
+        final XAConnection connection = this.pooledXAConnectionFactory.createXAConnection();
+        connection.start();
+        connection.stop();
+        connection.close();
+
+        this.pooledXAConnectionFactory.createXAConnection().close();
+    }
+
+    @Test
+    public void testNonXASessionsAndConnectionConsumersAreClosedWhenTheConnectionIsReturned() throws Throwable {
+        final Session session = this.context.mock(Session.class);
+        final Queue queue = this.context.mock(Queue.class);
+        final ServerSessionPool sessionPool = this.context.mock(ServerSessionPool.class);
+        final ConnectionConsumer connectionConsumer = this.context.mock(ConnectionConsumer.class);
+        this.context.checking(new Expectations() {
+            {
+                one(xaConnectionFactory).createXAConnection(user, pw);
+                will(returnValue(xaConnection));
+                one(xaConnection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+                will(returnValue(session));
+                one(xaConnection).createConnectionConsumer(queue, null, sessionPool, 1);
+                will(returnValue(connectionConsumer));
+                one(session).close();
+                one(connectionConsumer).close();
+                one(xaConnection).close();
+            }
+        });
+
+        final XAConnection connection = this.pooledXAConnectionFactory.createXAConnection();
+        connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        connection.createConnectionConsumer(queue, null, sessionPool, 1);
+        connection.close();
+        assertEquals(1, this.pooledXAConnectionFactory.getIdleConnectionCount());
+    }
+
+    @Test
+    public void testResourcesClosedByTheCallerAreNotClosedAgain() throws Throwable {
+        final Session session = this.context.mock(Session.class);
+        final Queue queue = this.context.mock(Queue.class);
+        final MessageConsumer consumer = this.context.mock(MessageConsumer.class);
+        this.context.checking(new Expectations() {
+            {
+                one(xaConnectionFactory).createXAConnection(user, pw);
+                will(returnValue(xaConnection));
+                one(xaConnection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+                will(returnValue(session));
+                one(xaConnection).createXASession();
+                will(returnValue(xaSession));
+                exactly(2).of(xaSession).createConsumer(queue);
+                will(returnValue(consumer));
+                exactly(2).of(consumer).close();
+                one(session).close();
+                one(xaConnection).close();
+            }
+        });
+
+        final XAConnection connection = this.pooledXAConnectionFactory.createXAConnection();
+        connection.createSession(false, Session.AUTO_ACKNOWLEDGE).close();
+        for (int i = 0; i < 2; i++) {
+            final XASession lent = connection.createXASession();
+            lent.createConsumer(queue).close();
+            lent.close();
+        }
+        connection.close();
+    }
+
+    @Test
+    public void testTheSessionOfAnXASessionIsPooled() throws Throwable {
+        final Queue queue = this.context.mock(Queue.class);
+        final MessageProducer producer = this.context.mock(MessageProducer.class);
+        final MessageConsumer consumer = this.context.mock(MessageConsumer.class);
+        this.context.checking(new Expectations() {
+            {
+                one(xaConnectionFactory).createXAConnection(user, pw);
+                will(returnValue(xaConnection));
+                one(xaConnection).createXASession();
+                will(returnValue(xaSession));
+                never(xaSession).getSession();
+                never(xaSession).close();
+                one(xaSession).createProducer(queue);
+                will(returnValue(producer));
+                one(xaSession).createConsumer(queue);
+                will(returnValue(consumer));
+                one(consumer).close();
+                exactly(2).of(producer).setDeliveryMode(with(any(int.class)));
+                exactly(2).of(producer).setPriority(with(any(int.class)));
+                exactly(2).of(producer).setTimeToLive(with(any(long.class)));
+                exactly(2).of(producer).setDisableMessageID(false);
+                exactly(2).of(producer).setDisableMessageTimestamp(false);
+                one(xaConnection).close();
+            }
+        });
+
+        for (int i = 0; i < 2; i++) {
+            final XAConnection connection = this.pooledXAConnectionFactory.createXAConnection();
+            final Session session = connection.createXASession().getSession();
+            session.createProducer(queue);
+            if (i == 0) {
+                // left open, and closed when the session is returned
+                session.createConsumer(queue);
+            }
+            session.close();
+            connection.close();
+        }
+        assertEquals(1, this.pooledXAConnectionFactory.getIdleConnectionCount());
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.connection;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.XAConnection;
+import javax.jms.XAConnectionFactory;
+
+/**
+ * There doesn't seem to be a readily accessed way to mock multiple interaces using JMock , so this stub will do.
+ */
+class TargetConnectionFactory implements XAConnectionFactory, ConnectionFactory {
+    public TargetConnectionFactory() {
+        super(); //To change body of overridden methods use File | Settings | File Templates.
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode(); //To change body of overridden methods use File | Settings | File Templates.
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return super.equals(o); //To change body of overridden methods use File | Settings | File Templates.
+    }
+
+    @Override
+    protected Object clone() throws CloneNotSupportedException {
+        return super.clone(); //To change body of overridden methods use File | Settings | File Templates.
+    }
+
+    @Override
+    public String toString() {
+        return super.toString(); //To change body of overridden methods use File | Settings | File Templates.
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        super.finalize(); //To change body of overridden methods use File | Settings | File Templates.
+    }
+
+    @Override
+    public Connection createConnection() throws JMSException {
+        return null; //To change body of implemented methods use File | Settings | File Templates.
+    }
+
+    @Override
+    public Connection createConnection(String s, String s1)
+        throws JMSException {
+        return null; //To change body of implemented methods use File | Settings | File Templates.
+    }
+
+    @Override
+    public XAConnection createXAConnection() throws JMSException {
+        return null; //To change body of implemented methods use File | Settings | File Templates.
+    }
+
+    @Override
+    public XAConnection createXAConnection(String s, String s1)
+        throws JMSException {
+        return null; //To change body of implemented methods use File | Settings | File Templates.
+    }
+}
@@ -2,6 +2,8 @@ package com.shopzilla.spring.messaging.jms.connection;
 
 import org.jmock.Expectations;
 import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 import org.jmock.lib.legacy.ClassImposteriser;
 import org.junit.After;
 import org.junit.Before;
@@ -69,61 +71,132 @@ public class UserCredentialsXAConnectionFactoryAdapterTest {
         });
         this.userCredentialsXAConnectionFactoryAdapter.createXAConnection();
     }
-}
 
+    @Test
+    public void testCachedConnectionsAreSharedAndEvicted() throws Throwable {
+        final XAConnection merchantA = this.context.mock(XAConnection.class, "merchantA");
+        final XAConnection merchantB = this.context.mock(XAConnection.class, "merchantB");
+        this.userCredentialsXAConnectionFactoryAdapter.setConnectionCacheSize(1);
+        this.context.checking(new Expectations() {
+            {
+                one(xaConnectionFactory).createXAConnection("a", "pa");
+                will(returnValue(merchantA));
+                one(xaConnectionFactory).createXAConnection("b", "pb");
+                will(returnValue(merchantB));
+                allowing(merchantA).setExceptionListener(with(any(ExceptionListener.class)));
+                allowing(merchantB).setExceptionListener(with(any(ExceptionListener.class)));
+            }
+        });
 
-/**
- * There doesn't seem to be a readily accessed way to mock multiple interaces using JMock , so this stub will do.
- */
-class TargetConnectionFactory implements XAConnectionFactory, ConnectionFactory {
-    public TargetConnectionFactory() {
-        super(); //To change body of overridden methods use File | Settings | File Templates.
-    }
+        final XAConnection first = this.userCredentialsXAConnectionFactoryAdapter.createXAConnection("a", "pa");
+        final XAConnection second = this.userCredentialsXAConnectionFactoryAdapter.createXAConnection("a", "pa");
+        first.close();
+        second.stop();
+        second.close();
 
-    @Override
-    public int hashCode() {
-        return super.hashCode(); //To change body of overridden methods use File | Settings | File Templates.
+        // merchant a's connection is idle, so it makes way for merchant b's
+        this.context.checking(new Expectations() {
+            {
+                one(merchantA).close();
+            }
+        });
+        this.userCredentialsXAConnectionFactoryAdapter.createXAConnection("b", "pb");
     }
 
-    @Override
-    public boolean equals(Object o) {
-        return super.equals(o); //To change body of overridden methods use File | Settings | File Templates.
-    }
+    @Test
+    public void testConnectionsInUseAreNotEvicted() throws Throwable {
+        final XAConnection merchantA = this.context.mock(XAConnection.class, "merchantA");
+        final XAConnection merchantB = this.context.mock(XAConnection.class, "merchantB");
+        final XASession session = this.context.mock(XASession.class);
+        this.userCredentialsXAConnectionFactoryAdapter.setConnectionCacheSize(1);
+        this.context.checking(new Expectations() {
+            {
+                one(xaConnectionFactory).createXAConnection("a", "pa");
+                will(returnValue(merchantA));
+                one(xaConnectionFactory).createXAConnection("b", "pb");
+                will(returnValue(merchantB));
+                allowing(merchantA).setExceptionListener(with(any(ExceptionListener.class)));
+                allowing(merchantB).setExceptionListener(with(any(ExceptionListener.class)));
+                one(merchantA).createXASession();
+                will(returnValue(session));
+            }
+        });
 
-    @Override
-    protected Object clone() throws CloneNotSupportedException {
-        return super.clone(); //To change body of overridden methods use File | Settings | File Templates.
-    }
+        final XAConnection inUse = this.userCredentialsXAConnectionFactoryAdapter.createXAConnection("a", "pa");
+        inUse.createXASession();
+        this.userCredentialsXAConnectionFactoryAdapter.createXAConnection("b", "pb");
 
-    @Override
-    public String toString() {
-        return super.toString(); //To change body of overridden methods use File | Settings | File Templates.
+        // closing the last handle closes the sessions created through it and evicts the connection
+        this.context.checking(new Expectations() {
+            {
+                one(session).close();
+                one(merchantA).close();
+            }
+        });
+        inUse.close();
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize(); //To change body of overridden methods use File | Settings | File Templates.
-    }
+    @Test
+    public void testSessionsClosedByTheCallerAreNotClosedAgain() throws Throwable {
+        final XAConnection shared = this.context.mock(XAConnection.class, "shared");
+        final Session first = this.context.mock(Session.class, "first");
+        final Session second = this.context.mock(Session.class, "second");
+        this.userCredentialsXAConnectionFactoryAdapter.setConnectionCacheSize(1);
+        this.context.checking(new Expectations() {
+            {
+                one(xaConnectionFactory).createXAConnection(user, pw);
+                will(returnValue(shared));
+                allowing(shared).setExceptionListener(with(any(ExceptionListener.class)));
+                exactly(2).of(shared).createSession(false, Session.AUTO_ACKNOWLEDGE);
+                will(onConsecutiveCalls(returnValue(first), returnValue(second)));
+                one(first).close();
+                one(second).close();
+            }
+        });
 
-    @Override
-    public Connection createConnection() throws JMSException {
-        return null; //To change body of implemented methods use File | Settings | File Templates.
-    }
+        final XAConnection connection = this.userCredentialsXAConnectionFactoryAdapter.createXAConnection();
+        connection.createSession(false, Session.AUTO_ACKNOWLEDGE).close();
 
-    @Override
-    public Connection createConnection(String s, String s1)
-        throws JMSException {
-        return null; //To change body of implemented methods use File | Settings | File Templates.
+        // only the session left open is closed with the handle
+        connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        connection.close();
     }
 
-    @Override
-    public XAConnection createXAConnection() throws JMSException {
-        return null; //To change body of implemented methods use File | Settings | File Templates.
-    }
+    @Test
+    public void testBrokenConnectionsAreReplaced() throws Throwable {
+        final XAConnection broken = this.context.mock(XAConnection.class, "broken");
+        final XAConnection replacement = this.context.mock(XAConnection.class, "replacement");
+        final ExceptionListener listener = this.context.mock(ExceptionListener.class);
+        final JMSException failure = new JMSException("connection failure");
+        final ExceptionListener[] cacheListener = new ExceptionListener[1];
+        this.userCredentialsXAConnectionFactoryAdapter.setConnectionCacheSize(4);
+        this.context.checking(new Expectations() {
+            {
+                exactly(2).of(xaConnectionFactory).createXAConnection(user, pw);
+                will(onConsecutiveCalls(returnValue(broken), returnValue(replacement)));
+                one(broken).setExceptionListener(with(any(ExceptionListener.class)));
+                will(new CustomAction("remember the exception listener") {
+                        public Object invoke(Invocation invocation) {
+                            cacheListener[0] = (ExceptionListener) invocation.getParameter(0);
+
+                            return null;
+                        }
+                    });
+                allowing(replacement).setExceptionListener(with(any(ExceptionListener.class)));
+                one(listener).onException(failure);
+            }
+        });
 
-    @Override
-    public XAConnection createXAConnection(String s, String s1)
-        throws JMSException {
-        return null; //To change body of implemented methods use File | Settings | File Templates.
+        final XAConnection connection = this.userCredentialsXAConnectionFactoryAdapter.createXAConnection();
+        connection.setExceptionListener(listener);
+        cacheListener[0].onException(failure);
+        this.userCredentialsXAConnectionFactoryAdapter.createXAConnection();
+
+        this.context.checking(new Expectations() {
+            {
+                one(broken).close();
+            }
+        });
+        connection.close();
     }
 }
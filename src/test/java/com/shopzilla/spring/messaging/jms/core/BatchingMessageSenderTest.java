@@ -0,0 +1,211 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.core;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.Sequence;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jms.JmsException;
+import org.springframework.jms.core.MessageCreator;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+
+/**
+ * Unit tests for {@link com.shopzilla.spring.messaging.jms.core.BatchingMessageSender}
+ */
+public class BatchingMessageSenderTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private BatchingMessageSender sender;
+    private ConnectionFactory connectionFactory;
+    private Connection connection;
+    private Session session;
+    private MessageProducer producer;
+    private Queue queue;
+    private Message message;
+    private MessageCreator messageCreator;
+
+    @Before
+    public void before() throws Throwable {
+        this.connectionFactory = this.context.mock(ConnectionFactory.class);
+        this.connection = this.context.mock(Connection.class);
+        this.session = this.context.mock(Session.class);
+        this.producer = this.context.mock(MessageProducer.class);
+        this.queue = this.context.mock(Queue.class);
+        this.message = this.context.mock(Message.class);
+        this.messageCreator = new MessageCreator() {
+                public Message createMessage(Session session) {
+                    return BatchingMessageSenderTest.this.message;
+                }
+            };
+
+        this.sender = new BatchingMessageSender();
+        this.sender.setConnectionFactory(this.connectionFactory);
+        this.sender.setDestinationName("queue");
+        this.sender.setBatchSize(3);
+        this.sender.setFlushInterval(0);
+        this.sender.afterPropertiesSet();
+    }
+
+    @After
+    public void after() {
+        this.context.assertIsSatisfied();
+    }
+
+    private void expectSession() throws JMSException {
+        this.context.checking(new Expectations() {
+                {
+                    oneOf(connectionFactory).createConnection();
+                    will(returnValue(connection));
+                    oneOf(connection).createSession(true, Session.AUTO_ACKNOWLEDGE);
+                    will(returnValue(session));
+                    oneOf(session).createProducer(null);
+                    will(returnValue(producer));
+                    oneOf(session).createQueue("queue");
+                    will(returnValue(queue));
+                }
+            });
+    }
+
+    @Test
+    public void testFullBatchIsSentInOneTransaction() throws Throwable {
+        expectSession();
+        final Sequence batch = this.context.sequence("batch");
+        this.context.checking(new Expectations() {
+                {
+                    exactly(3).of(producer).send(queue, message, DeliveryMode.PERSISTENT, Message.DEFAULT_PRIORITY,
+                        Message.DEFAULT_TIME_TO_LIVE);
+                    inSequence(batch);
+                    oneOf(session).commit();
+                    inSequence(batch);
+                }
+            });
+
+        this.sender.send(this.messageCreator);
+        this.sender.send(this.messageCreator);
+        Assert.assertEquals(2, this.sender.getBufferedCount());
+
+        this.sender.send(this.messageCreator);
+        Assert.assertEquals(0, this.sender.getBufferedCount());
+    }
+
+    @Test
+    public void testFlushSendsPartialBatch() throws Throwable {
+        expectSession();
+        this.context.checking(new Expectations() {
+                {
+                    oneOf(producer).send(queue, message, DeliveryMode.PERSISTENT, Message.DEFAULT_PRIORITY,
+                        Message.DEFAULT_TIME_TO_LIVE);
+                    oneOf(session).commit();
+                }
+            });
+
+        this.sender.send(this.messageCreator);
+        this.sender.flush();
+        Assert.assertEquals(0, this.sender.getBufferedCount());
+
+        // nothing buffered, nothing sent
+        this.sender.flush();
+    }
+
+    @Test
+    public void testFailedBatchIsRolledBack() throws Throwable {
+        expectSession();
+        this.context.checking(new Expectations() {
+                {
+                    oneOf(producer).send(queue, message, DeliveryMode.PERSISTENT, Message.DEFAULT_PRIORITY,
+                        Message.DEFAULT_TIME_TO_LIVE);
+                    will(throwException(new JMSException("broker went away")));
+                    oneOf(session).rollback();
+                    oneOf(producer).close();
+                    oneOf(session).close();
+                    oneOf(connection).close();
+                }
+            });
+
+        this.sender.send(this.messageCreator);
+        try {
+            this.sender.flush();
+            Assert.fail("expected the failure to be thrown");
+        } catch (JmsException e) {
+            Assert.assertEquals("broker went away", e.getCause().getMessage());
+        }
+
+        // the failure is only thrown once
+        this.sender.flush();
+    }
+
+    @Test
+    public void testFailedTimerFlushIsThrownByNextSend() throws Throwable {
+        expectSession();
+        this.context.checking(new Expectations() {
+                {
+                    oneOf(producer).send(queue, message, DeliveryMode.PERSISTENT, Message.DEFAULT_PRIORITY,
+                        Message.DEFAULT_TIME_TO_LIVE);
+                    will(throwException(new JMSException("broker went away")));
+                    oneOf(session).rollback();
+                    oneOf(producer).close();
+                    oneOf(session).close();
+                    oneOf(connection).close();
+                }
+            });
+
+        this.sender.send(this.messageCreator);
+        this.sender.scheduledFlush.run();
+        try {
+            this.sender.send(this.messageCreator);
+            Assert.fail("expected the failure to be thrown");
+        } catch (JmsException e) {
+            Assert.assertEquals("broker went away", e.getCause().getMessage());
+        }
+        Assert.assertEquals(0, this.sender.getBufferedCount());
+
+        // the failure is only thrown once
+        this.sender.send(this.messageCreator);
+        Assert.assertEquals(1, this.sender.getBufferedCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSendAfterDestroyIsRejected() throws Throwable {
+        this.sender.destroy();
+        this.sender.send(this.messageCreator);
+    }
+}
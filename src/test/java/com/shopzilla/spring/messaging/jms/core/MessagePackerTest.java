@@ -0,0 +1,318 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.core;
+
+import org.hornetq.api.core.TransportConfiguration;
+import org.hornetq.core.config.Configuration;
+import org.hornetq.core.config.impl.ConfigurationImpl;
+import org.hornetq.core.remoting.impl.invm.InVMAcceptorFactory;
+import org.hornetq.core.remoting.impl.invm.InVMConnectorFactory;
+import org.hornetq.core.server.HornetQServer;
+import org.hornetq.core.server.HornetQServers;
+import org.hornetq.core.server.cluster.QueueConfiguration;
+import org.hornetq.jms.client.HornetQConnectionFactory;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.jms.core.MessageCreator;
+import com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListener;
+import com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Unit tests for {@link com.shopzilla.spring.messaging.jms.core.MessagePacker}, against an embedded,
+ * in-VM HornetQ broker
+ */
+public class MessagePackerTest {
+    private static final String QUEUE = "packerQueue";
+    // a queue of its own, as the container may still hold messages from it as the next test starts
+    private static final String PARTITION_QUEUE = "partitionQueue";
+
+    private static HornetQServer server;
+    private static HornetQConnectionFactory connectionFactory;
+
+    private Connection connection;
+    private Session session;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        Configuration configuration = new ConfigurationImpl();
+        configuration.setPersistenceEnabled(false);
+        configuration.setSecurityEnabled(false);
+        configuration.setJMXManagementEnabled(false);
+        configuration.getAcceptorConfigurations().add(new TransportConfiguration(InVMAcceptorFactory.class.getName()));
+        configuration.getQueueConfigurations().add(
+            new QueueConfiguration("jms.queue." + QUEUE, "jms.queue." + QUEUE, null, false));
+        configuration.getQueueConfigurations().add(
+            new QueueConfiguration("jms.queue." + PARTITION_QUEUE, "jms.queue." + PARTITION_QUEUE, null, false));
+        server = HornetQServers.newHornetQServer(configuration, false);
+        server.start();
+        connectionFactory = new HornetQConnectionFactory(new TransportConfiguration(InVMConnectorFactory.class.getName()));
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        connectionFactory.close();
+        server.stop();
+    }
+
+    @Before
+    public void before() throws JMSException {
+        this.connection = connectionFactory.createConnection();
+        this.session = this.connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        this.connection.start();
+    }
+
+    @After
+    public void after() throws JMSException {
+        this.connection.close();
+    }
+
+    @Test
+    public void testRoundTrip() throws Throwable {
+        TextMessage text = this.session.createTextMessage("caf\u00e9");
+        text.setJMSCorrelationID("correlation");
+        text.setStringProperty("key", "value");
+        text.setIntProperty("count", 3);
+        text.setBooleanProperty("flag", true);
+
+        BytesMessage bytes = this.session.createBytesMessage();
+        bytes.writeBytes(new byte[] { 1, 2, 3 });
+        bytes.setJMSType("type");
+
+        TextMessage empty = this.session.createTextMessage();
+
+        List<byte[]> packed = Arrays.asList(MessagePacker.pack(text), MessagePacker.pack(bytes),
+            MessagePacker.pack(empty));
+        this.session.createProducer(this.session.createQueue(QUEUE)).send(
+            MessagePacker.createEnvelope(this.session, packed));
+
+        Message envelope = this.session.createConsumer(this.session.createQueue(QUEUE)).receive(5000);
+        Assert.assertTrue(MessagePacker.isEnvelope(envelope));
+
+        List<Message> messages = MessagePacker.unpack(this.session, envelope);
+        Assert.assertEquals(3, messages.size());
+
+        TextMessage unpackedText = (TextMessage) messages.get(0);
+        Assert.assertEquals("caf\u00e9", unpackedText.getText());
+        Assert.assertEquals("correlation", unpackedText.getJMSCorrelationID());
+        Assert.assertEquals("value", unpackedText.getStringProperty("key"));
+        Assert.assertEquals(3, unpackedText.getIntProperty("count"));
+        Assert.assertTrue(unpackedText.getBooleanProperty("flag"));
+        Assert.assertEquals(envelope.getJMSMessageID() + ":0", unpackedText.getJMSMessageID());
+        Assert.assertEquals(envelope.getJMSDestination(), unpackedText.getJMSDestination());
+
+        BytesMessage unpackedBytes = (BytesMessage) messages.get(1);
+        byte[] body = new byte[(int) unpackedBytes.getBodyLength()];
+        unpackedBytes.readBytes(body);
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, body);
+        Assert.assertEquals("type", unpackedBytes.getJMSType());
+        Assert.assertEquals(envelope.getJMSMessageID() + ":1", unpackedBytes.getJMSMessageID());
+
+        Assert.assertNull(((TextMessage) messages.get(2)).getText());
+    }
+
+    @Test
+    public void testStringsLongerThanWriteUTFAllowsArePacked() throws Throwable {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            builder.append('\u00e9');
+        }
+        // 80000 bytes in UTF-8
+        final String large = builder.toString();
+        TextMessage text = this.session.createTextMessage("text");
+        text.setStringProperty("large", large);
+        text.setJMSCorrelationID(large);
+
+        byte[] packed = MessagePacker.pack(text);
+        Assert.assertNotNull(packed);
+        Message unpacked = MessagePacker.unpack(this.session,
+            MessagePacker.createEnvelope(this.session, Collections.singletonList(packed))).get(0);
+        Assert.assertEquals(large, unpacked.getStringProperty("large"));
+        Assert.assertEquals(large, unpacked.getJMSCorrelationID());
+        Assert.assertEquals("text", ((TextMessage) unpacked).getText());
+    }
+
+    @Test
+    public void testEnvelopeOfFirstFormatIsUnpacked() throws Throwable {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(MessagePacker.UTF_FORMAT_VERSION);
+        out.writeByte(MessagePacker.TEXT);
+        out.writeBoolean(true);
+        out.writeUTF("correlation");
+        out.writeBoolean(false);
+        out.writeShort(1);
+        out.writeUTF("key");
+        out.writeByte('S');
+        out.writeUTF("value");
+        out.writeInt(4);
+        out.write("text".getBytes("UTF-8"));
+        out.flush();
+        BytesMessage envelope = this.session.createBytesMessage();
+        envelope.writeBytes(buffer.toByteArray());
+        envelope.setIntProperty(MessagePacker.PACKED_COUNT_PROPERTY, 1);
+
+        TextMessage unpacked = (TextMessage) MessagePacker.unpack(this.session, envelope).get(0);
+        Assert.assertEquals("text", unpacked.getText());
+        Assert.assertEquals("correlation", unpacked.getJMSCorrelationID());
+        Assert.assertNull(unpacked.getJMSType());
+        Assert.assertEquals("value", unpacked.getStringProperty("key"));
+    }
+
+    @Test
+    public void testOnlyTextAndBytesMessagesArePacked() throws Throwable {
+        Assert.assertNull(MessagePacker.pack(this.session.createMapMessage()));
+        Assert.assertNull(MessagePacker.pack(this.session.createObjectMessage("object")));
+        Assert.assertFalse(MessagePacker.isEnvelope(this.session.createBytesMessage()));
+    }
+
+    @Test
+    public void testSenderPacksConsecutiveMessagesForOneDestination() throws Throwable {
+        BatchingMessageSender sender = new BatchingMessageSender();
+        sender.setConnectionFactory(connectionFactory);
+        sender.setDestinationName(QUEUE);
+        sender.setFlushInterval(0);
+        sender.setPackMessages(true);
+        sender.afterPropertiesSet();
+
+        for (int i = 0; i < 5; i++) {
+            sender.convertAndSend("message " + i);
+        }
+        sender.send(new MessageCreator() {
+                public Message createMessage(Session session) throws JMSException {
+                    return session.createMapMessage();
+                }
+            });
+        sender.convertAndSend("message 5");
+        sender.destroy();
+
+        MessageConsumer consumer = this.session.createConsumer(this.session.createQueue(QUEUE));
+        List<Message> first = MessagePacker.unpack(this.session, consumer.receive(5000));
+        Assert.assertEquals(5, first.size());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals("message " + i, ((TextMessage) first.get(i)).getText());
+        }
+        Assert.assertFalse(MessagePacker.isEnvelope(consumer.receive(5000)));
+        List<Message> last = MessagePacker.unpack(this.session, consumer.receive(5000));
+        Assert.assertEquals("message 5", ((TextMessage) last.get(0)).getText());
+        Assert.assertNull(consumer.receiveNoWait());
+    }
+
+    @Test
+    public void testMessageGroupIsCarried() throws Throwable {
+        TextMessage grouped = this.session.createTextMessage("grouped");
+        grouped.setStringProperty("JMSXGroupID", "merchant");
+        grouped.setIntProperty("JMSXGroupSeq", 2);
+
+        BytesMessage envelope = MessagePacker.createEnvelope(this.session,
+            Arrays.asList(MessagePacker.pack(grouped)), "merchant");
+        Assert.assertEquals("merchant", envelope.getStringProperty("JMSXGroupID"));
+        envelope.reset();
+
+        Message unpacked = MessagePacker.unpack(this.session, envelope).get(0);
+        Assert.assertEquals("merchant", MessagePacker.getGroupId(unpacked));
+        Assert.assertEquals(2, unpacked.getIntProperty("JMSXGroupSeq"));
+    }
+
+    @Test
+    public void testPackedMessagesLandInTheirGroupsPartition() throws Throwable {
+        BatchingMessageSender sender = new BatchingMessageSender();
+        sender.setConnectionFactory(connectionFactory);
+        sender.setDestinationName(PARTITION_QUEUE);
+        sender.setFlushInterval(0);
+        sender.setPackMessages(true);
+        sender.afterPropertiesSet();
+
+        // "a".hashCode() is odd and "b".hashCode() is even, so they fall in different partitions
+        for (final String group : new String[] { "a", "a", "b", "b", "a" }) {
+            sender.send(new MessageCreator() {
+                    public Message createMessage(Session session) throws JMSException {
+                        Message message = session.createTextMessage(group);
+                        message.setStringProperty("JMSXGroupID", group);
+                        return message;
+                    }
+                });
+        }
+        sender.destroy();
+
+        final List<List<String>> partitions = new CopyOnWriteArrayList<List<String>>();
+        final CountDownLatch received = new CountDownLatch(5);
+        BatchMessageListenerContainer container = new BatchMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.setDestinationName(PARTITION_QUEUE);
+        container.setBatchSize(5);
+        container.setQuietPeriod(100);
+        container.setPartitionCount(2);
+        container.setPartitionTaskExecutor(new SyncTaskExecutor());
+        container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                    List<String> groups = new ArrayList<String>();
+                    try {
+                        for (Message message : messages) {
+                            groups.add(MessagePacker.getGroupId(message));
+                        }
+                    } catch (JMSException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    // recorded before counting down, so the partitions are complete once all are received
+                    partitions.add(groups);
+                    for (int i = 0; i < groups.size(); i++) {
+                        received.countDown();
+                    }
+                }
+            });
+        container.afterPropertiesSet();
+        try {
+            Assert.assertTrue(received.await(5, TimeUnit.SECONDS));
+        } finally {
+            container.destroy();
+        }
+
+        Assert.assertTrue(partitions.contains(Arrays.asList("a", "a", "a")));
+        Assert.assertTrue(partitions.contains(Arrays.asList("b", "b")));
+    }
+}
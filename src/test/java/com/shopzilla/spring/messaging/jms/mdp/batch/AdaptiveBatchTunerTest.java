@@ -0,0 +1,139 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Unit tests for {@link com.shopzilla.spring.messaging.jms.mdp.batch.AdaptiveBatchTuner}
+ */
+public class AdaptiveBatchTunerTest {
+    private AdaptiveBatchTuner adaptiveBatchTuner;
+
+    @Before
+    public void before() throws Throwable {
+        this.adaptiveBatchTuner = new AdaptiveBatchTuner();
+        this.adaptiveBatchTuner.setTargetListenerLatency(100);
+        this.adaptiveBatchTuner.setBatchSizeIncrement(10);
+        this.adaptiveBatchTuner.setMinBatchSize(5);
+        this.adaptiveBatchTuner.setMaxBatchSize(200);
+        this.adaptiveBatchTuner.initialize(100, 1000, 5000);
+    }
+
+    @Test
+    public void testInitializeClampsToBounds() throws Throwable {
+        this.adaptiveBatchTuner.setMinQuietPeriod(10);
+        this.adaptiveBatchTuner.setMaxBatchTimeout(5000);
+        this.adaptiveBatchTuner.initialize(500, 1, 50000);
+        Assert.assertEquals(200, this.adaptiveBatchTuner.getBatchSize());
+        Assert.assertEquals(10, this.adaptiveBatchTuner.getQuietPeriod());
+        Assert.assertEquals(5000, this.adaptiveBatchTuner.getBatchTimeout());
+    }
+
+    @Test
+    public void testUnsetBoundsIncludeConfiguredValues() throws Throwable {
+        AdaptiveBatchTuner tuner = new AdaptiveBatchTuner();
+        tuner.validate();
+        tuner.initialize(5000, 5, 100000);
+        Assert.assertEquals(5000, tuner.getBatchSize());
+        Assert.assertEquals(5, tuner.getQuietPeriod());
+        Assert.assertEquals(100000, tuner.getBatchTimeout());
+        // the configured batch size is the largest allowed
+        tuner.batchCompleted(5000, 0, 10, FlushReason.SIZE);
+        Assert.assertEquals(5000, tuner.getBatchSize());
+        tuner.initialize(100, 1000, 5000);
+        tuner.batchCompleted(100, 0, 10, FlushReason.SIZE);
+        Assert.assertEquals(110, tuner.getBatchSize());
+    }
+
+    @Test
+    public void testUnsetBoundStaysOnSideOfSetBound() throws Throwable {
+        AdaptiveBatchTuner tuner = new AdaptiveBatchTuner();
+        tuner.setMinQuietPeriod(50000);
+        tuner.validate();
+        tuner.initialize(100, 1000, 5000);
+        Assert.assertEquals(50000, tuner.getQuietPeriod());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMinGreaterThanMaxIsRejected() throws Throwable {
+        this.adaptiveBatchTuner.setMinBatchSize(300);
+        this.adaptiveBatchTuner.validate();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNegativeBoundIsRejected() throws Throwable {
+        this.adaptiveBatchTuner.setMaxBatchTimeout(-1);
+        this.adaptiveBatchTuner.validate();
+    }
+
+    @Test
+    public void testFullBatchWithinLatencyGrowsAdditively() throws Throwable {
+        this.adaptiveBatchTuner.batchCompleted(100, 0, 50, FlushReason.SIZE);
+        Assert.assertEquals(110, this.adaptiveBatchTuner.getBatchSize());
+    }
+
+    @Test
+    public void testSlowBatchShrinksMultiplicatively() throws Throwable {
+        this.adaptiveBatchTuner.batchCompleted(100, 0, 150, FlushReason.SIZE);
+        Assert.assertEquals(50, this.adaptiveBatchTuner.getBatchSize());
+        this.adaptiveBatchTuner.batchCompleted(50, 0, 150, FlushReason.SIZE);
+        this.adaptiveBatchTuner.batchCompleted(25, 0, 150, FlushReason.SIZE);
+        this.adaptiveBatchTuner.batchCompleted(12, 0, 150, FlushReason.SIZE);
+        this.adaptiveBatchTuner.batchCompleted(6, 0, 150, FlushReason.SIZE);
+        Assert.assertEquals(5, this.adaptiveBatchTuner.getBatchSize());
+    }
+
+    @Test
+    public void testPartialBatchLeavesBatchSizeAlone() throws Throwable {
+        this.adaptiveBatchTuner.batchCompleted(40, 0, 10, FlushReason.QUIET_PERIOD);
+        Assert.assertEquals(100, this.adaptiveBatchTuner.getBatchSize());
+    }
+
+    @Test
+    public void testStopsGrowingAtTargetThroughput() throws Throwable {
+        this.adaptiveBatchTuner.setTargetListenerLatency(0);
+        this.adaptiveBatchTuner.setTargetThroughput(1000);
+        // 100 messages in 50 ms is 2000 messages per second
+        this.adaptiveBatchTuner.batchCompleted(100, 0, 50, FlushReason.SIZE);
+        Assert.assertEquals(100, this.adaptiveBatchTuner.getBatchSize());
+        // 100 messages in 99 ms is just over 1000 messages per second
+        this.adaptiveBatchTuner.batchCompleted(100, 0, 99, FlushReason.SIZE);
+        Assert.assertEquals(100, this.adaptiveBatchTuner.getBatchSize());
+        // 100 messages in 101 ms falls short
+        this.adaptiveBatchTuner.batchCompleted(100, 0, 101, FlushReason.SIZE);
+        Assert.assertEquals(110, this.adaptiveBatchTuner.getBatchSize());
+    }
+
+    @Test
+    public void testQuietPeriodAndTimeoutFollowArrivalRate() throws Throwable {
+        // 11 messages over 100 ms is one every 10 ms
+        this.adaptiveBatchTuner.batchCompleted(11, 100, 10, FlushReason.QUIET_PERIOD);
+        Assert.assertEquals(40, this.adaptiveBatchTuner.getQuietPeriod());
+        Assert.assertEquals(2000, this.adaptiveBatchTuner.getBatchTimeout());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jms.listener.adapter.ListenerExecutionFailedException;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.Session;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Unit tests for {@link com.shopzilla.spring.messaging.jms.mdp.batch.AsyncBatchMessageListener asynchronous listeners}
+ * of {@link com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer}
+ */
+public class AsyncBatchMessageListenerTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private BatchMessageListenerContainer container;
+    private Session session;
+    private Collection<Message> messages;
+    private List<Collection<Message>> batches;
+    private Exception failure;
+
+    @Before
+    public void before() throws Throwable {
+        this.session = this.context.mock(Session.class);
+        this.messages = Arrays.asList(this.context.mock(Message.class, "first"),
+                this.context.mock(Message.class, "last"));
+        this.batches = new ArrayList<Collection<Message>>();
+        this.container = new BatchMessageListenerContainer();
+        this.container.setAsyncMessageListener(new AsyncBatchMessageListener() {
+                public Future<?> onMessages(final Collection<Message> messages) {
+                    batches.add(messages);
+                    FutureTask<Object> future = new FutureTask<Object>(new Callable<Object>() {
+                            public Object call() throws Exception {
+                                if (failure != null) {
+                                    throw failure;
+                                }
+                                return null;
+                            }
+                        });
+                    future.run();
+                    return future;
+                }
+            });
+    }
+
+    @After
+    public void after() throws Throwable {
+        this.context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testDispatchDoesNotWaitForListener() throws Throwable {
+        BatchMessageListenerContainer.PendingBatch batch = this.container.dispatch(this.session, this.messages, 0,
+                FlushReason.SIZE);
+        Assert.assertEquals(1, this.batches.size());
+        Assert.assertEquals(this.messages, batch.dispatched);
+        Assert.assertNotNull(batch.future);
+        Assert.assertNull(this.container.awaitListener(batch));
+        Assert.assertTrue(this.container.usesProcessor());
+        Assert.assertTrue(this.container.acknowledgesOnProcessor());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFailedFutureRethrowsCause() throws Throwable {
+        this.failure = new IllegalArgumentException("bad batch");
+        this.container.awaitListener(this.container.dispatch(this.session, this.messages, 0, FlushReason.SIZE));
+    }
+
+    @Test(expected = ListenerExecutionFailedException.class)
+    public void testCheckedFailureIsWrapped() throws Throwable {
+        this.failure = new IOException("unreachable");
+        this.container.awaitListener(this.container.dispatch(this.session, this.messages, 0, FlushReason.SIZE));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRequiresNonTransactedSession() throws Throwable {
+        this.container.setConnectionFactory(this.context.mock(ConnectionFactory.class));
+        this.container.setDestinationName("queue");
+        this.container.setSessionTransacted(true);
+        this.container.afterPropertiesSet();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRequiresClientAcknowledge() throws Throwable {
+        this.container.setConnectionFactory(this.context.mock(ConnectionFactory.class));
+        this.container.setDestinationName("queue");
+        this.container.setSessionAcknowledgeMode(Session.AUTO_ACKNOWLEDGE);
+        this.container.afterPropertiesSet();
+    }
+
+    @Test
+    public void testAsyncAcknowledgeStrategyUsesClientAcknowledge() throws Throwable {
+        this.container.setConnectionFactory(this.context.mock(ConnectionFactory.class));
+        this.container.setDestinationName("queue");
+        this.container.setAcknowledgeStrategy(AcknowledgeStrategy.ASYNC);
+        this.container.setAutoStartup(false);
+        this.container.afterPropertiesSet();
+        Assert.assertEquals(Session.CLIENT_ACKNOWLEDGE, this.container.getWorkerAcknowledgeMode());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testOnlyOneListener() throws Throwable {
+        this.container.setConnectionFactory(this.context.mock(ConnectionFactory.class));
+        this.container.setDestinationName("queue");
+        this.container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                }
+            });
+        this.container.afterPropertiesSet();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jms.Message;
+import javax.jms.Session;
+import java.util.Arrays;
+import java.util.Collection;
+
+
+/**
+ * Unit tests for the {@link com.shopzilla.spring.messaging.jms.mdp.batch.AcknowledgeStrategy acknowledge strategies}
+ * of {@link com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer}
+ */
+public class BatchAcknowledgementTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private BatchMessageListenerContainer container;
+    private Session session;
+    private Message first;
+    private Message last;
+    private Collection<Message> messages;
+
+    @Before
+    public void before() throws Throwable {
+        this.container = new BatchMessageListenerContainer();
+        this.session = this.context.mock(Session.class);
+        this.first = this.context.mock(Message.class, "first");
+        this.last = this.context.mock(Message.class, "last");
+        this.messages = Arrays.asList(this.first, this.context.mock(Message.class, "middle"), this.last);
+    }
+
+    @After
+    public void after() throws Throwable {
+        this.context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testCumulativeAcknowledgesLastMessageOnce() throws Throwable {
+        this.container.setSessionAcknowledgeMode(Session.CLIENT_ACKNOWLEDGE);
+        this.context.checking(new Expectations() {
+            {
+                one(last).acknowledge();
+            }
+        });
+        Assert.assertEquals(Session.CLIENT_ACKNOWLEDGE, this.container.getWorkerAcknowledgeMode());
+        this.container.acknowledge(this.session, this.messages, null);
+    }
+
+    @Test
+    public void testCumulativeLeavesAutoAcknowledgeToSession() throws Throwable {
+        Assert.assertEquals(Session.AUTO_ACKNOWLEDGE, this.container.getWorkerAcknowledgeMode());
+        this.container.acknowledge(this.session, this.messages, null);
+    }
+
+    @Test
+    public void testTransactedSessionIsCommitted() throws Throwable {
+        this.container.setSessionTransacted(true);
+        this.context.checking(new Expectations() {
+            {
+                one(session).commit();
+            }
+        });
+        this.container.acknowledge(this.session, this.messages, null);
+    }
+
+    @Test
+    public void testDupsOkNeverAcknowledges() throws Throwable {
+        this.container.setSessionAcknowledgeMode(Session.CLIENT_ACKNOWLEDGE);
+        this.container.setAcknowledgeStrategy(AcknowledgeStrategy.DUPS_OK);
+        Assert.assertEquals(Session.DUPS_OK_ACKNOWLEDGE, this.container.getWorkerAcknowledgeMode());
+        this.container.acknowledge(this.session, this.messages, null);
+    }
+
+    @Test
+    public void testAsyncUsesClientAcknowledge() throws Throwable {
+        this.container.setAcknowledgeStrategy(AcknowledgeStrategy.ASYNC);
+        this.context.checking(new Expectations() {
+            {
+                one(last).acknowledge();
+            }
+        });
+        Assert.assertEquals(Session.CLIENT_ACKNOWLEDGE, this.container.getWorkerAcknowledgeMode());
+        Assert.assertTrue(this.container.usesProcessor());
+        this.container.acknowledge(this.session, this.messages, null);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.hamcrest.Description;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Action;
+import org.jmock.api.Invocation;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.task.TaskExecutor;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+
+/**
+ * Unit tests for the concurrent workers of a {@link com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer}
+ */
+public class ConcurrentWorkersTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private BatchMessageListenerContainer container;
+    private ConnectionFactory connectionFactory;
+    private Connection connection;
+    private Queue queue;
+    private Session[] sessions;
+    private MessageConsumer[] consumers;
+    private Message poison;
+    private IllegalArgumentException listenerFailure;
+    private List<Runnable> workers;
+    private StopCallback callback;
+
+    @Before
+    public void before() throws Throwable {
+        this.connectionFactory = this.context.mock(ConnectionFactory.class);
+        this.connection = this.context.mock(Connection.class);
+        this.queue = this.context.mock(Queue.class);
+        this.sessions = new Session[3];
+        this.consumers = new MessageConsumer[3];
+        for (int i = 0; i < 3; i++) {
+            this.sessions[i] = this.context.mock(Session.class, "session" + i);
+            this.consumers[i] = this.context.mock(MessageConsumer.class, "consumer" + i);
+        }
+        this.poison = this.context.mock(Message.class, "poison");
+        this.listenerFailure = new IllegalArgumentException("poison");
+        this.workers = new ArrayList<Runnable>();
+        this.callback = new StopCallback();
+
+        this.container = new BatchMessageListenerContainer();
+        this.container.setConnectionFactory(this.connectionFactory);
+        this.container.setDestinationName("queue");
+        this.container.setConcurrentConsumers(3);
+        this.container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                    if (messages.contains(poison)) {
+                        throw listenerFailure;
+                    }
+                }
+            });
+        // holds the workers, for the test to run them one within another
+        this.container.setTaskExecutor(new TaskExecutor() {
+                public void execute(Runnable task) {
+                    workers.add(task);
+                }
+            });
+    }
+
+    @After
+    public void after() throws Throwable {
+        this.context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testWorkersShareConnectionAndReportFailureAndStopTogether() throws Throwable {
+        this.context.checking(new Expectations() {
+            {
+                one(connectionFactory).createConnection();
+                will(returnValue(connection));
+                one(connection).start();
+                exactly(3).of(connection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+                will(onConsecutiveCalls(returnValue(sessions[0]), returnValue(sessions[1]),
+                        returnValue(sessions[2])));
+                for (int i = 0; i < 3; i++) {
+                    one(sessions[i]).createQueue("queue");
+                    will(returnValue(queue));
+                    one(sessions[i]).createConsumer(queue);
+                    will(returnValue(consumers[i]));
+                    one(consumers[i]).close();
+                    one(sessions[i]).close();
+                }
+
+                // while the first worker waits, the second fails and the third stops the container
+                one(consumers[0]).receive(with(any(long.class)));
+                will(new RunWorkersAction(1, 2));
+                one(consumers[1]).receive(with(any(long.class)));
+                will(returnValue(poison));
+                one(consumers[2]).receive(with(any(long.class)));
+                will(new StopAction());
+
+                // only once the last worker has finished
+                one(connection).close();
+            }
+        });
+
+        this.container.afterPropertiesSet();
+        Assert.assertEquals(3, this.workers.size());
+        Assert.assertEquals(3, this.container.getActiveConsumerCount());
+
+        this.workers.get(0).run();
+
+        Assert.assertTrue(this.container.isFailure());
+        Assert.assertSame(this.listenerFailure, this.container.getFailure());
+        Assert.assertEquals(0, this.container.getActiveConsumerCount());
+        Assert.assertEquals(1, this.callback.runs);
+    }
+
+    /**
+     * Runs other workers from within a receive, as if they ran while it was blocked.
+     */
+    private class RunWorkersAction implements Action {
+        private final int[] indexes;
+
+        RunWorkersAction(int... indexes) {
+            this.indexes = indexes;
+        }
+
+        public void describeTo(Description description) {
+            description.appendText("runs other workers");
+        }
+
+        public Object invoke(Invocation invocation) throws Throwable {
+            for (int index : this.indexes) {
+                workers.get(index).run();
+            }
+            // the first worker is still receiving, so the stop has not finished
+            Assert.assertEquals(0, callback.runs);
+            return null;
+        }
+    }
+
+    /**
+     * Stops the container from within a receive, as another thread would.
+     */
+    private class StopAction implements Action {
+        public void describeTo(Description description) {
+            description.appendText("stops the container");
+        }
+
+        public Object invoke(Invocation invocation) throws Throwable {
+            container.stop(callback);
+            return null;
+        }
+    }
+
+    private static class StopCallback implements Runnable {
+        private int runs = 0;
+
+        public void run() {
+            this.runs++;
+        }
+    }
+}
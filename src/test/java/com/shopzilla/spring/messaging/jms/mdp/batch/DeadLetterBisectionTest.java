@@ -0,0 +1,243 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.Sequence;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Unit tests for the bisection of failed batches by {@link com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer}
+ */
+public class DeadLetterBisectionTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private BatchMessageListenerContainer container;
+    private List<Message> messages;
+    private Message bad;
+    private int calls;
+
+    @Before
+    public void before() throws Throwable {
+        this.container = new BatchMessageListenerContainer();
+        this.container.setDeadLetterDestinationName("deadLetters");
+        this.messages = new ArrayList<Message>();
+        for (int i = 0; i < 8; i++) {
+            this.messages.add(this.context.mock(Message.class, "message" + i));
+        }
+        this.bad = this.messages.get(5);
+        this.container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                    calls++;
+                    if (messages.contains(bad)) {
+                        throw new IllegalArgumentException("bad message");
+                    }
+                }
+            });
+    }
+
+    @After
+    public void after() throws Throwable {
+        this.context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testBadMessageIsDeadLettered() throws Throwable {
+        BatchMessageListenerContainer.BatchOutcome outcome = this.container.invokeListener(this.messages, 0, FlushReason.SIZE);
+        Assert.assertEquals(Collections.singletonList(this.bad), outcome.deadLetters);
+        Assert.assertTrue(outcome.retries.isEmpty());
+        // the whole batch, then halves of 4, 2 and 1 on the way down to the bad message
+        Assert.assertEquals(1 + 2 + 2 + 2, this.calls);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFailureIsRethrownWithoutDeadLetterDestination() throws Throwable {
+        this.container.setDeadLetterDestinationName(null);
+        this.container.invokeListener(this.messages, 0, FlushReason.SIZE);
+    }
+
+    @Test
+    public void testFailureOfEveryMessageIsRethrown() throws Throwable {
+        final IllegalStateException unavailable = new IllegalStateException("database unavailable");
+        this.container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                    calls++;
+                    throw unavailable;
+                }
+            });
+        try {
+            this.container.invokeListener(this.messages, 0, FlushReason.SIZE);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertSame(unavailable, e);
+        }
+        // the whole batch, then halves of 4, 2 and 1 all the way down to every message
+        Assert.assertEquals(1 + 2 + 4 + 8, this.calls);
+    }
+
+    @Test
+    public void testBadMessagesInBothHalvesAreDeadLettered() throws Throwable {
+        final Message otherBad = this.messages.get(1);
+        this.container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                    calls++;
+                    if (messages.contains(bad) || messages.contains(otherBad)) {
+                        throw new IllegalArgumentException("bad message");
+                    }
+                }
+            });
+        BatchMessageListenerContainer.BatchOutcome outcome = this.container.invokeListener(this.messages, 0, FlushReason.SIZE);
+        Assert.assertEquals(Arrays.asList(otherBad, this.bad), outcome.deadLetters);
+        // the whole batch, both halves of 4, then halves of 2 and 1 of each
+        Assert.assertEquals(1 + 2 + 4 + 4, this.calls);
+    }
+
+    @Test
+    public void testFirstFailureIsRedeliveredBeforeBisecting() throws Throwable {
+        this.container.setSessionTransacted(true);
+        expectDeliveryCounts(1);
+        BatchMessageListenerContainer.BatchOutcome outcome = this.container.invokeListener(this.messages, 0, FlushReason.SIZE);
+        Assert.assertTrue(outcome.redeliver);
+        Assert.assertTrue(outcome.deadLetters.isEmpty());
+        Assert.assertEquals(1, this.calls);
+    }
+
+    @Test
+    public void testRedeliveredBatchIsBisected() throws Throwable {
+        this.container.setSessionAcknowledgeMode(Session.CLIENT_ACKNOWLEDGE);
+        this.context.checking(new Expectations() {
+            {
+                allowing(messages.get(7)).getIntProperty("JMSXDeliveryCount");
+                will(returnValue(2));
+            }
+        });
+        expectDeliveryCounts(1);
+        BatchMessageListenerContainer.BatchOutcome outcome = this.container.invokeListener(this.messages, 0, FlushReason.SIZE);
+        Assert.assertFalse(outcome.redeliver);
+        Assert.assertEquals(Collections.singletonList(this.bad), outcome.deadLetters);
+    }
+
+    @Test
+    public void testRedeliveredFlagCountsWithoutDeliveryCount() throws Throwable {
+        this.container.setSessionTransacted(true);
+        this.context.checking(new Expectations() {
+            {
+                for (Message message : messages) {
+                    allowing(message).propertyExists("JMSXDeliveryCount");
+                    will(returnValue(false));
+                    allowing(message).getJMSRedelivered();
+                    will(returnValue(message == bad));
+                }
+            }
+        });
+        BatchMessageListenerContainer.BatchOutcome outcome = this.container.invokeListener(this.messages, 0, FlushReason.SIZE);
+        Assert.assertEquals(Collections.singletonList(this.bad), outcome.deadLetters);
+    }
+
+    @Test
+    public void testRedeliveryRollsBackOrRecovers() throws Throwable {
+        final Session session = this.context.mock(Session.class);
+        final BatchMessageListenerContainer.BatchOutcome outcome = new BatchMessageListenerContainer.BatchOutcome();
+        outcome.redeliver = true;
+        this.context.checking(new Expectations() {
+            {
+                one(session).rollback();
+                one(session).recover();
+            }
+        });
+        this.container.setSessionTransacted(true);
+        this.container.acknowledge(session, this.messages, outcome);
+        this.container.setSessionTransacted(false);
+        this.container.setSessionAcknowledgeMode(Session.CLIENT_ACKNOWLEDGE);
+        this.container.acknowledge(session, this.messages, outcome);
+    }
+
+    @Test
+    public void testDeadLettersAreSentBeforeCommit() throws Throwable {
+        this.container.setSessionTransacted(true);
+        final Session session = this.context.mock(Session.class);
+        final MessageProducer producer = this.context.mock(MessageProducer.class);
+        final Queue deadLetters = this.context.mock(Queue.class);
+        final Sequence sequence = this.context.sequence("deadLetter");
+        this.context.checking(new Expectations() {
+            {
+                allowing(bad).getJMSExpiration();
+                will(returnValue(0L));
+                allowing(bad).getJMSDeliveryMode();
+                will(returnValue(DeliveryMode.PERSISTENT));
+                allowing(bad).getJMSPriority();
+                will(returnValue(4));
+                one(session).createQueue("deadLetters");
+                will(returnValue(deadLetters));
+                one(session).createProducer(null);
+                will(returnValue(producer));
+                inSequence(sequence);
+                one(producer).send(deadLetters, bad, DeliveryMode.PERSISTENT, 4, Message.DEFAULT_TIME_TO_LIVE);
+                inSequence(sequence);
+                one(producer).close();
+                inSequence(sequence);
+                one(session).commit();
+                inSequence(sequence);
+            }
+        });
+        BatchMessageListenerContainer.BatchOutcome outcome = new BatchMessageListenerContainer.BatchOutcome();
+        outcome.deadLetters.add(this.bad);
+        this.container.acknowledge(session, this.messages, outcome);
+    }
+
+    private void expectDeliveryCounts(final int deliveryCount) throws JMSException {
+        this.context.checking(new Expectations() {
+            {
+                for (Message message : messages) {
+                    allowing(message).propertyExists("JMSXDeliveryCount");
+                    will(returnValue(true));
+                    allowing(message).getIntProperty("JMSXDeliveryCount");
+                    will(returnValue(deliveryCount));
+                }
+            }
+        });
+    }
+}
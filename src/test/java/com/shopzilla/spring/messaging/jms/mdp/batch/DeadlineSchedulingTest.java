@@ -0,0 +1,256 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.hamcrest.Description;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Action;
+import org.jmock.api.Invocation;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.task.TaskExecutor;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Unit tests for how a worker of a {@link com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer}
+ * schedules its receives against the batch deadlines, on a clock the test controls. Each receive
+ * advances the clock by the time it stands for.
+ */
+public class DeadlineSchedulingTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private BatchMessageListenerContainer container;
+    private ConnectionFactory connectionFactory;
+    private Connection connection;
+    private Queue queue;
+    private Session session;
+    private MessageConsumer consumer;
+    private BatchMetrics metrics;
+    private Message[] messages;
+    private List<Collection<Message>> batches;
+    private List<Runnable> workers;
+    private long now = 0;
+
+    @Before
+    public void before() throws Throwable {
+        this.connectionFactory = this.context.mock(ConnectionFactory.class);
+        this.connection = this.context.mock(Connection.class);
+        this.queue = this.context.mock(Queue.class);
+        this.session = this.context.mock(Session.class);
+        this.consumer = this.context.mock(MessageConsumer.class);
+        this.metrics = this.context.mock(BatchMetrics.class);
+        this.messages = new Message[3];
+        for (int i = 0; i < 3; i++) {
+            this.messages[i] = this.context.mock(Message.class, "message" + i);
+        }
+        this.batches = new ArrayList<Collection<Message>>();
+        this.workers = new ArrayList<Runnable>();
+
+        this.container = new BatchMessageListenerContainer() {
+                @Override
+                long nanoTime() {
+                    return now;
+                }
+            };
+        this.container.setConnectionFactory(this.connectionFactory);
+        this.container.setDestinationName("queue");
+        this.container.setBatchSize(10);
+        this.container.setQuietPeriod(100);
+        this.container.setBatchTimeout(1000);
+        this.container.setMetrics(this.metrics);
+        this.container.setMessageSizeEstimator(null);
+        // the listener stops the container, so that the worker ends after the first batch
+        this.container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> batch) {
+                    batches.add(new ArrayList<Message>(batch));
+                    container.stop();
+                }
+            });
+        this.container.setTaskExecutor(new TaskExecutor() {
+                public void execute(Runnable task) {
+                    workers.add(task);
+                }
+            });
+
+        this.context.checking(new Expectations() {
+            {
+                for (Message message : messages) {
+                    allowing(message).propertyExists(with(any(String.class)));
+                    will(returnValue(false));
+                }
+                one(connectionFactory).createConnection();
+                will(returnValue(connection));
+                one(connection).start();
+                one(connection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+                will(returnValue(session));
+                one(session).createQueue("queue");
+                will(returnValue(queue));
+                one(session).createConsumer(queue);
+                will(returnValue(consumer));
+                one(consumer).close();
+                one(session).close();
+                one(connection).close();
+            }
+        });
+    }
+
+    @After
+    public void after() throws Throwable {
+        this.context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testReceiveWaitsUntilNearestDeadlineAndBatchFlushesByMaxLatency() throws Throwable {
+        this.container.setMaxBatchLatency(250);
+        this.context.checking(new Expectations() {
+            {
+                // nothing received yet, so the quiet period is the nearest deadline
+                one(consumer).receive(100);
+                will(new ReceiveAction(50, messages[0]));
+                // the quiet period restarts with each message
+                one(consumer).receive(100);
+                will(new ReceiveAction(90, messages[1]));
+                one(consumer).receive(100);
+                will(new ReceiveAction(90, messages[2]));
+                // the quiet period would end at 330 ms, but the first message has waited 250 ms at 300 ms
+                one(consumer).receive(70);
+                will(new ReceiveAction(70, null));
+                one(metrics).batchReceived(FlushReason.MAX_LATENCY, 3, 0, TimeUnit.MILLISECONDS.toNanos(300), 4, 1);
+                ignoring(metrics);
+            }
+        });
+
+        this.container.afterPropertiesSet();
+        this.workers.get(0).run();
+
+        Assert.assertEquals(1, this.batches.size());
+        Assert.assertEquals(Arrays.asList(this.messages), this.batches.get(0));
+        Assert.assertFalse(this.container.isFailure());
+    }
+
+    @Test
+    public void testReceiveTimeoutCapsWaitAndBatchFlushesByTimeout() throws Throwable {
+        this.container.setQuietPeriod(1000);
+        this.container.setBatchTimeout(500);
+        this.container.setReceiveTimeout(200);
+        this.context.checking(new Expectations() {
+            {
+                // the batch timeout is nearer than the quiet period, and the receive timeout nearer still
+                one(consumer).receive(200);
+                will(new ReceiveAction(100, messages[0]));
+                one(consumer).receive(200);
+                will(new ReceiveAction(200, null));
+                // 500 ms after the batch started
+                one(consumer).receive(200);
+                will(new ReceiveAction(150, messages[1]));
+                one(consumer).receive(50);
+                will(new ReceiveAction(50, null));
+                one(metrics).batchReceived(FlushReason.TIMEOUT, 2, 0, TimeUnit.MILLISECONDS.toNanos(500), 4, 2);
+                ignoring(metrics);
+            }
+        });
+
+        this.container.afterPropertiesSet();
+        this.workers.get(0).run();
+
+        Assert.assertEquals(1, this.batches.size());
+        Assert.assertEquals(Arrays.asList(this.messages[0], this.messages[1]), this.batches.get(0));
+    }
+
+    @Test
+    public void testScaleUpIntervalIsMeasuredOnTheContainerClock() throws Throwable {
+        this.container.setBatchSize(1);
+        this.container.setMaxConcurrentConsumers(3);
+        this.container.setScaleUpFullBatchRatio(0);
+        this.container.setScaleUpInterval(1000);
+        this.container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> batch) {
+                    batches.add(new ArrayList<Message>(batch));
+                    if (batches.size() == 4) {
+                        container.stop();
+                    }
+                }
+            });
+        this.context.checking(new Expectations() {
+            {
+                // the second batch is full too soon after the first worker was added, the third is not
+                exactly(4).of(consumer).receive(100);
+                will(onConsecutiveCalls(new ReceiveAction(10, messages[0]), new ReceiveAction(10, messages[1]),
+                        new ReceiveAction(1000, messages[2]), new ReceiveAction(10, messages[0])));
+                ignoring(metrics);
+            }
+        });
+
+        this.container.afterPropertiesSet();
+        this.workers.get(0).run();
+
+        Assert.assertEquals(4, this.batches.size());
+        Assert.assertEquals(3, this.workers.size());
+        // the added workers see the stop, and the last of them closes the connection
+        this.workers.get(1).run();
+        this.workers.get(2).run();
+    }
+
+    /**
+     * Advances the clock by the time a receive took and returns what it received.
+     */
+    private class ReceiveAction implements Action {
+        private final long millis;
+        private final Message message;
+
+        ReceiveAction(long millis, Message message) {
+            this.millis = millis;
+            this.message = message;
+        }
+
+        public void describeTo(Description description) {
+            description.appendText("takes " + this.millis + " ms");
+        }
+
+        public Object invoke(Invocation invocation) throws Throwable {
+            now += TimeUnit.MILLISECONDS.toNanos(this.millis);
+            return this.message;
+        }
+    }
+}
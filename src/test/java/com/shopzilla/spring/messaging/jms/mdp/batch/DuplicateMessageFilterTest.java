@@ -0,0 +1,184 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jms.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Unit tests for {@link com.shopzilla.spring.messaging.jms.mdp.batch.DuplicateMessageFilter}
+ */
+public class DuplicateMessageFilterTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private long now = 0;
+    private int messages = 0;
+    private DuplicateMessageFilter filter;
+
+    @Before
+    public void before() throws Throwable {
+        this.filter = new DuplicateMessageFilter() {
+            long now() {
+                return now;
+            }
+        };
+        this.filter.setWindowSize(3);
+    }
+
+    @After
+    public void after() throws Throwable {
+        this.context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testDropsProcessedMessages() throws Throwable {
+        Message first = message("ID:1");
+        Message again = message("ID:1");
+        Message other = message("ID:2");
+        Assert.assertEquals(Arrays.asList(first), this.filter.removeDuplicates(Arrays.asList(first)));
+        this.filter.addProcessed(Arrays.asList(first));
+        Assert.assertEquals(Arrays.asList(other), this.filter.removeDuplicates(Arrays.asList(again, other)));
+    }
+
+    @Test
+    public void testUnprocessedMessagesAreNotDropped() throws Throwable {
+        Message first = message("ID:1");
+        this.filter.removeDuplicates(Arrays.asList(first));
+        Assert.assertEquals(Arrays.asList(first), this.filter.removeDuplicates(Arrays.asList(first)));
+    }
+
+    @Test
+    public void testDropsRepeatsWithinBatch() throws Throwable {
+        Message first = message("ID:1");
+        Message other = message("ID:2");
+        Assert.assertEquals(Arrays.asList(first, other),
+                this.filter.removeDuplicates(Arrays.asList(first, message("ID:1"), other)));
+    }
+
+    @Test
+    public void testForgetsOldestWhenFull() throws Throwable {
+        this.filter.addProcessed(Arrays.asList(message("ID:1"), message("ID:2"), message("ID:3"), message("ID:4")));
+        Assert.assertEquals(3, this.filter.size());
+        Message first = message("ID:1");
+        Assert.assertEquals(Arrays.asList(first), this.filter.removeDuplicates(Arrays.asList(first, message("ID:4"))));
+    }
+
+    @Test
+    public void testForgetsAfterWindowDuration() throws Throwable {
+        this.filter.setWindowDuration(1000);
+        this.filter.addProcessed(Arrays.asList(message("ID:1")));
+        this.now = TimeUnit.MILLISECONDS.toNanos(500);
+        this.filter.addProcessed(Arrays.asList(message("ID:2")));
+        this.now = TimeUnit.MILLISECONDS.toNanos(1200);
+        Message first = message("ID:1");
+        Assert.assertEquals(Arrays.asList(first), this.filter.removeDuplicates(Arrays.asList(first, message("ID:2"))));
+        Assert.assertEquals(1, this.filter.size());
+    }
+
+    @Test
+    public void testUsesKeyProperty() throws Throwable {
+        this.filter.setKeyProperty("orderId");
+        final Message keyed = this.context.mock(Message.class, "keyed");
+        final Message unkeyed = this.context.mock(Message.class, "unkeyed");
+        this.context.checking(new Expectations() {
+            {
+                allowing(keyed).getObjectProperty("orderId");
+                will(returnValue(Long.valueOf(42)));
+                allowing(unkeyed).getObjectProperty("orderId");
+                will(returnValue(null));
+            }
+        });
+        this.filter.addProcessed(Arrays.asList(keyed, unkeyed));
+        Assert.assertEquals(1, this.filter.size());
+        Assert.assertEquals(Arrays.asList(unkeyed), this.filter.removeDuplicates(Arrays.asList(keyed, unkeyed)));
+    }
+
+    @Test
+    public void testMatchesReferenceWindow() throws Throwable {
+        // many evictions from a small, crowded table exercise removal from probe sequences
+        this.filter.setWindowSize(50);
+        LinkedList<String> window = new LinkedList<String>();
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            String id = "ID:" + random.nextInt(200);
+            Message message = message(id);
+            List<Message> unique = this.filter.removeDuplicates(Collections.singletonList(message));
+            Assert.assertEquals(id, window.contains(id), unique.isEmpty());
+            if (!unique.isEmpty()) {
+                this.filter.addProcessed(unique);
+                window.add(id);
+                if (window.size() > 50) {
+                    window.removeFirst();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testContainerSkipsBatchOfDuplicates() throws Throwable {
+        final List<Collection<Message>> batches = new ArrayList<Collection<Message>>();
+        BatchMessageListenerContainer container = new BatchMessageListenerContainer();
+        container.setDuplicateMessageFilter(this.filter);
+        container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                    batches.add(messages);
+                }
+            });
+        container.invokeListener(Arrays.asList(message("ID:1"), message("ID:2")), 0, FlushReason.SIZE);
+        container.invokeListener(Arrays.asList(message("ID:2"), message("ID:1")), 0, FlushReason.SIZE);
+        Assert.assertEquals(1, batches.size());
+        Assert.assertEquals(2, this.filter.size());
+    }
+
+    private Message message(final String id) throws Throwable {
+        final Message message = this.context.mock(Message.class, "message" + (this.messages++));
+        this.context.checking(new Expectations() {
+            {
+                allowing(message).getJMSMessageID();
+                will(returnValue(id));
+            }
+        });
+        return message;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/**
+ * Unit tests for {@link com.shopzilla.spring.messaging.jms.mdp.batch.Histogram}
+ */
+public class HistogramTest {
+
+    @Test
+    public void testBucketsCoverValues() throws Throwable {
+        long[] values = { 0, 1, 7, 8, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE };
+        for (long value : values) {
+            int bucket = Histogram.bucket(value);
+            Assert.assertTrue(String.valueOf(value), Histogram.upperBound(bucket) >= value);
+            Assert.assertTrue(String.valueOf(value), (bucket == 0) || (Histogram.upperBound(bucket - 1) < value));
+            // within 12.5% of the value
+            Assert.assertTrue(String.valueOf(value), (Histogram.upperBound(bucket) - value) <= (value / 8));
+        }
+    }
+
+    @Test
+    public void testPercentiles() throws Throwable {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(50.5, histogram.getMean(), 0.001);
+        Assert.assertEquals(100, histogram.getMax());
+        Assert.assertEquals(1, histogram.getPercentile(0));
+        Assert.assertEquals(51, histogram.getPercentile(0.5));
+        Assert.assertEquals(100, histogram.getPercentile(0.99));
+        Assert.assertEquals(100, histogram.getPercentile(1));
+    }
+
+    @Test
+    public void testReset() throws Throwable {
+        Histogram histogram = new Histogram();
+        histogram.record(10);
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getPercentile(0.5));
+        Assert.assertEquals(0, histogram.getMax());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import com.shopzilla.spring.messaging.jms.core.MessagePacker;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+
+/**
+ * Unit tests for bounding the batches of a {@link com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer}
+ * by size in bytes
+ */
+public class MaxBatchBytesTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private BodyMessageSizeEstimator estimator;
+
+    @Before
+    public void before() throws Throwable {
+        this.estimator = new BodyMessageSizeEstimator();
+    }
+
+    @After
+    public void after() throws Throwable {
+        this.context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testEstimatesBodySize() throws Throwable {
+        final BytesMessage bytes = this.context.mock(BytesMessage.class);
+        final TextMessage text = this.context.mock(TextMessage.class);
+        final ObjectMessage object = this.context.mock(ObjectMessage.class);
+        this.context.checking(new Expectations() {
+            {
+                allowing(bytes).getBodyLength();
+                will(returnValue(1000L));
+                allowing(text).getText();
+                will(returnValue("hello"));
+            }
+        });
+
+        Assert.assertEquals(1000, this.estimator.estimateSize(bytes));
+        Assert.assertEquals(10, this.estimator.estimateSize(text));
+        Assert.assertEquals(0, this.estimator.estimateSize(object));
+
+        this.estimator.setDefaultSize(200);
+        Assert.assertEquals(1200, this.estimator.estimateSize(bytes));
+        Assert.assertEquals(200, this.estimator.estimateSize(object));
+    }
+
+    @Test
+    public void testBatchIsFlushedAtMaxBatchBytes() throws Throwable {
+        final ConnectionFactory connectionFactory = this.context.mock(ConnectionFactory.class);
+        final Connection connection = this.context.mock(Connection.class);
+        final Session session = this.context.mock(Session.class);
+        final Queue queue = this.context.mock(Queue.class);
+        final MessageConsumer consumer = this.context.mock(MessageConsumer.class);
+        final BytesMessage message = this.context.mock(BytesMessage.class);
+        final SimpleBatchMetrics metrics = new SimpleBatchMetrics();
+        final List<Collection<Message>> batches = new ArrayList<Collection<Message>>();
+
+        final BatchMessageListenerContainer container = new BatchMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.setDestinationName("queue");
+        container.setBatchSize(10);
+        container.setMaxBatchBytes(1000);
+        container.setMetrics(metrics);
+        final BatchMessageListenerContainer.Worker worker = container.new Worker();
+        container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                    batches.add(new ArrayList<Message>(messages));
+                    worker.stop();
+                }
+            });
+
+        this.context.checking(new Expectations() {
+            {
+                one(connectionFactory).createConnection();
+                will(returnValue(connection));
+                one(connection).start();
+                one(connection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+                will(returnValue(session));
+                one(session).createQueue("queue");
+                will(returnValue(queue));
+                one(session).createConsumer(queue);
+                will(returnValue(consumer));
+                exactly(3).of(consumer).receive(with(any(long.class)));
+                will(returnValue(message));
+                allowing(message).getBodyLength();
+                will(returnValue(400L));
+                allowing(message).propertyExists(MessagePacker.PACKED_COUNT_PROPERTY);
+                will(returnValue(false));
+                one(consumer).close();
+                one(session).close();
+            }
+        });
+
+        worker.run();
+
+        Assert.assertNull(worker.getFailure());
+        Assert.assertEquals(1, batches.size());
+        Assert.assertEquals(3, batches.get(0).size());
+        Assert.assertEquals(1, metrics.getFlushCount("BYTES"));
+        Assert.assertEquals(1200, metrics.getByteCount());
+    }
+}
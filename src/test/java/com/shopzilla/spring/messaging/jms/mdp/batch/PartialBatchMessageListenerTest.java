@@ -0,0 +1,221 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.Sequence;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Unit tests for the handling of a {@link com.shopzilla.spring.messaging.jms.mdp.batch.PartialBatchMessageListener}
+ * by {@link com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer}
+ */
+public class PartialBatchMessageListenerTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private BatchMessageListenerContainer container;
+    private Session session;
+    private MessageProducer producer;
+    private Queue queue;
+    private Message processed;
+    private Message retry;
+    private Message reject;
+    private Collection<Message> messages;
+
+    @Before
+    public void before() throws Throwable {
+        this.container = new BatchMessageListenerContainer();
+        this.session = this.context.mock(Session.class);
+        this.producer = this.context.mock(MessageProducer.class);
+        this.queue = this.context.mock(Queue.class);
+        this.processed = this.context.mock(Message.class, "processed");
+        this.retry = this.context.mock(Message.class, "retry");
+        this.reject = this.context.mock(Message.class, "reject");
+        this.messages = Arrays.asList(this.processed, this.retry, this.reject);
+    }
+
+    @After
+    public void after() throws Throwable {
+        this.context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testRejectsAreDiscardedWithoutDeadLetterDestination() throws Throwable {
+        this.container.setPartialBatchMessageListener(new PartialBatchMessageListener() {
+                public List<MessageOutcome> onMessages(Collection<Message> messages) {
+                    return Arrays.asList(MessageOutcome.PROCESSED, MessageOutcome.RETRY, MessageOutcome.REJECT);
+                }
+            });
+        expectRetryCount(this.retry, 0);
+        BatchMessageListenerContainer.BatchOutcome outcome = this.container.invokeListener(this.messages, 0, FlushReason.SIZE);
+        Assert.assertEquals(Collections.singletonList(this.retry), outcome.retries);
+        Assert.assertTrue(outcome.deadLetters.isEmpty());
+    }
+
+    @Test
+    public void testRejectsAreDeadLettered() throws Throwable {
+        this.container.setDeadLetterDestinationName("dlq");
+        expectRetryCount(this.retry, 0);
+        BatchMessageListenerContainer.BatchOutcome outcome = this.container.getOutcome(this.messages,
+                Arrays.asList(MessageOutcome.PROCESSED, MessageOutcome.RETRY, MessageOutcome.REJECT));
+        Assert.assertEquals(Collections.singletonList(this.retry), outcome.retries);
+        Assert.assertEquals(Collections.singletonList(this.reject), outcome.deadLetters);
+    }
+
+    @Test
+    public void testRetriesBeyondLimitAreDeadLettered() throws Throwable {
+        this.container.setDeadLetterDestinationName("dlq");
+        this.container.setMaxRetries(2);
+        expectRetryCount(this.processed, 1);
+        expectRetryCount(this.retry, 2);
+        BatchMessageListenerContainer.BatchOutcome outcome = this.container.getOutcome(this.messages,
+                Arrays.asList(MessageOutcome.RETRY, MessageOutcome.RETRY, MessageOutcome.PROCESSED));
+        Assert.assertEquals(Collections.singletonList(this.processed), outcome.retries);
+        Assert.assertEquals(Collections.singletonList(this.retry), outcome.deadLetters);
+    }
+
+    @Test
+    public void testRetriesBeyondLimitAreDiscardedWithoutDeadLetterDestination() throws Throwable {
+        this.container.setMaxRetries(2);
+        expectRetryCount(this.retry, 2);
+        Assert.assertNull(this.container.getOutcome(this.messages,
+                Arrays.asList(MessageOutcome.PROCESSED, MessageOutcome.RETRY, MessageOutcome.PROCESSED)));
+    }
+
+    @Test
+    public void testNullOutcomesMeanProcessed() throws Throwable {
+        Assert.assertNull(this.container.getOutcome(this.messages, null));
+        Assert.assertNull(this.container.getOutcome(this.messages,
+                Arrays.asList(null, MessageOutcome.PROCESSED, MessageOutcome.REJECT)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testOutcomeCountMustMatchBatch() throws Throwable {
+        this.container.getOutcome(this.messages, Collections.singletonList(MessageOutcome.RETRY));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRequiresQueue() throws Throwable {
+        this.container.setConnectionFactory(this.context.mock(ConnectionFactory.class));
+        this.container.setDestinationName("topic");
+        this.container.setPubSubDomain(true);
+        this.container.setPartialBatchMessageListener(new PartialBatchMessageListener() {
+                public List<MessageOutcome> onMessages(Collection<Message> messages) {
+                    return null;
+                }
+            });
+        this.container.afterPropertiesSet();
+    }
+
+    @Test
+    public void testRetriesAreResentBeforeCommit() throws Throwable {
+        this.container.setSessionTransacted(true);
+        final Sequence sequence = this.context.sequence("resend");
+        this.context.checking(new Expectations() {
+            {
+                allowing(retry).getJMSExpiration();
+                will(returnValue(0L));
+                allowing(retry).getJMSDestination();
+                will(returnValue(queue));
+                allowing(retry).getJMSDeliveryMode();
+                will(returnValue(DeliveryMode.PERSISTENT));
+                allowing(retry).getJMSPriority();
+                will(returnValue(4));
+
+                // the retry count is incremented, keeping the message group and the properties a client may set
+                allowing(retry).propertyExists(BatchMessageListenerContainer.RETRY_COUNT_PROPERTY);
+                will(returnValue(true));
+                allowing(retry).getIntProperty(BatchMessageListenerContainer.RETRY_COUNT_PROPERTY);
+                will(returnValue(1));
+                allowing(retry).getStringProperty("JMSXGroupID");
+                will(returnValue("group"));
+                one(retry).getPropertyNames();
+                will(returnValue(Collections.enumeration(Arrays.asList("color", "JMSXDeliveryCount",
+                        BatchMessageListenerContainer.RETRY_COUNT_PROPERTY, "vendorHandle"))));
+                allowing(retry).getObjectProperty("color");
+                will(returnValue("red"));
+                allowing(retry).getObjectProperty("JMSXDeliveryCount");
+                will(returnValue(1));
+                allowing(retry).getObjectProperty(BatchMessageListenerContainer.RETRY_COUNT_PROPERTY);
+                will(returnValue(1));
+                allowing(retry).getObjectProperty("vendorHandle");
+                will(returnValue(new Object()));
+                one(retry).clearProperties();
+                inSequence(sequence);
+                one(retry).setObjectProperty("color", "red");
+                inSequence(sequence);
+                one(retry).setStringProperty("JMSXGroupID", "group");
+                inSequence(sequence);
+                one(retry).setIntProperty(BatchMessageListenerContainer.RETRY_COUNT_PROPERTY, 2);
+                inSequence(sequence);
+
+                one(session).createProducer(null);
+                will(returnValue(producer));
+                inSequence(sequence);
+                one(producer).send(queue, retry, DeliveryMode.PERSISTENT, 4, Message.DEFAULT_TIME_TO_LIVE);
+                inSequence(sequence);
+                one(producer).close();
+                inSequence(sequence);
+                one(session).commit();
+                inSequence(sequence);
+            }
+        });
+        BatchMessageListenerContainer.BatchOutcome outcome = new BatchMessageListenerContainer.BatchOutcome();
+        outcome.retries.add(this.retry);
+        this.container.acknowledge(this.session, this.messages, outcome);
+    }
+
+    private void expectRetryCount(final Message message, final int retries) throws JMSException {
+        this.context.checking(new Expectations() {
+            {
+                allowing(message).propertyExists(BatchMessageListenerContainer.RETRY_COUNT_PROPERTY);
+                will(returnValue(retries > 0));
+                allowing(message).getIntProperty(BatchMessageListenerContainer.RETRY_COUNT_PROPERTY);
+                will(returnValue(retries));
+            }
+        });
+    }
+}
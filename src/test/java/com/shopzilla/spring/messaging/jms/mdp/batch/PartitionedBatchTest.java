@@ -0,0 +1,144 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+
+import javax.jms.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+
+/**
+ * Unit tests for the partitioned mode of {@link com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer}
+ */
+public class PartitionedBatchTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private BatchMessageListenerContainer container;
+    private List<Collection<Message>> batches;
+    private Message a1;
+    private Message b1;
+    private Message a2;
+    private Message unkeyed1;
+    private Message unkeyed2;
+
+    @Before
+    public void before() throws Throwable {
+        this.container = new BatchMessageListenerContainer();
+        this.container.setPartitionCount(2);
+        this.container.setPartitionKeyProperty("merchantId");
+        this.container.setPartitionTaskExecutor(new SyncTaskExecutor());
+        this.batches = new ArrayList<Collection<Message>>();
+        this.container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                    batches.add(messages);
+                }
+            });
+
+        // "b".hashCode() is even and "a".hashCode() is odd
+        this.a1 = keyed("a1", "a");
+        this.b1 = keyed("b1", "b");
+        this.a2 = keyed("a2", "a");
+        this.unkeyed1 = keyed("unkeyed1", null);
+        this.unkeyed2 = keyed("unkeyed2", null);
+    }
+
+    @After
+    public void after() throws Throwable {
+        this.context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testPartitionKeepsOrderOfKey() throws Throwable {
+        List<List<Message>> partitions = this.container.partition(Arrays.asList(this.a1, this.b1, this.a2));
+        Assert.assertEquals(2, partitions.size());
+        Assert.assertEquals(Arrays.asList(this.b1), partitions.get(0));
+        Assert.assertEquals(Arrays.asList(this.a1, this.a2), partitions.get(1));
+    }
+
+    @Test
+    public void testUnkeyedMessagesAreSpread() throws Throwable {
+        List<List<Message>> partitions = this.container.partition(Arrays.asList(this.unkeyed1, this.unkeyed2));
+        Assert.assertEquals(Arrays.asList(this.unkeyed1), partitions.get(0));
+        Assert.assertEquals(Arrays.asList(this.unkeyed2), partitions.get(1));
+    }
+
+    @Test
+    public void testSinglePartitionIsPassedWhole() throws Throwable {
+        List<Message> messages = Arrays.asList(this.a1, this.a2);
+        this.container.invokeListener(messages, 0, FlushReason.SIZE);
+        Assert.assertEquals(1, this.batches.size());
+        Assert.assertSame(messages, this.batches.get(0));
+    }
+
+    @Test
+    public void testPartitionsArePassedSeparately() throws Throwable {
+        this.container.invokeListener(Arrays.asList(this.a1, this.b1, this.a2), 0, FlushReason.SIZE);
+        Assert.assertEquals(2, this.batches.size());
+        Assert.assertTrue(this.batches.contains(Arrays.asList(this.b1)));
+        Assert.assertTrue(this.batches.contains(Arrays.asList(this.a1, this.a2)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFailureInAnyPartitionIsRethrown() throws Throwable {
+        this.container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                    batches.add(messages);
+                    if (messages.contains(b1)) {
+                        throw new IllegalArgumentException("bad merchant");
+                    }
+                }
+            });
+        try {
+            this.container.invokeListener(Arrays.asList(this.a1, this.b1, this.a2), 0, FlushReason.SIZE);
+        } finally {
+            Assert.assertEquals(2, this.batches.size());
+        }
+    }
+
+    private Message keyed(String name, final String key) throws Throwable {
+        final Message message = this.context.mock(Message.class, name);
+        this.context.checking(new Expectations() {
+            {
+                allowing(message).getObjectProperty("merchantId");
+                will(returnValue(key));
+            }
+        });
+        return message;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.hamcrest.Description;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Action;
+import org.jmock.api.Invocation;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.task.TaskExecutor;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Unit tests for workers of a {@link com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer}
+ * that keep receiving while earlier batches are processed, in pipelined mode or for an asynchronous
+ * listener. Each receive returns a full batch of one message, and at most two batches are in flight.
+ */
+public class PipelinedWorkerTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private BatchMessageListenerContainer container;
+    private ConnectionFactory connectionFactory;
+    private Connection connection;
+    private Queue queue;
+    private Session[] sessions;
+    private MessageConsumer[] consumers;
+    private Message[] messages;
+    // the messages acknowledged, in order; acknowledged on the processor thread for an asynchronous listener
+    private List<Message> acknowledged;
+    private List<Runnable> workers;
+
+    @Before
+    public void before() throws Throwable {
+        this.connectionFactory = this.context.mock(ConnectionFactory.class);
+        this.connection = this.context.mock(Connection.class);
+        this.queue = this.context.mock(Queue.class);
+        this.sessions = new Session[2];
+        this.consumers = new MessageConsumer[2];
+        for (int i = 0; i < 2; i++) {
+            this.sessions[i] = this.context.mock(Session.class, "session" + i);
+            this.consumers[i] = this.context.mock(MessageConsumer.class, "consumer" + i);
+        }
+        this.acknowledged = Collections.synchronizedList(new ArrayList<Message>());
+        this.messages = new Message[3];
+        for (int i = 0; i < 3; i++) {
+            this.messages[i] = createMessage();
+        }
+        this.workers = new ArrayList<Runnable>();
+
+        this.container = new BatchMessageListenerContainer();
+        this.container.setConnectionFactory(this.connectionFactory);
+        this.container.setDestinationName("queue");
+        this.container.setSessionAcknowledgeMode(Session.CLIENT_ACKNOWLEDGE);
+        this.container.setBatchSize(1);
+        this.container.setMaxBatchesInFlight(2);
+        // holds the worker, for the test to run it, and runs its batch processor on a thread of its own
+        this.container.setTaskExecutor(new TaskExecutor() {
+                public void execute(Runnable task) {
+                    if (task instanceof BatchMessageListenerContainer.BatchProcessor) {
+                        new Thread(task, "processor").start();
+                    } else {
+                        workers.add(task);
+                    }
+                }
+            });
+
+        this.context.checking(new Expectations() {
+            {
+                one(connectionFactory).createConnection();
+                will(returnValue(connection));
+                one(connection).start();
+                exactly(2).of(connection).createSession(false, Session.CLIENT_ACKNOWLEDGE);
+                will(onConsecutiveCalls(returnValue(sessions[0]), returnValue(sessions[1])));
+                for (int i = 0; i < 2; i++) {
+                    one(sessions[i]).createQueue("queue");
+                    will(returnValue(queue));
+                    one(sessions[i]).createConsumer(queue);
+                    will(returnValue(consumers[i]));
+                    one(consumers[i]).close();
+                    one(sessions[i]).close();
+                }
+                one(connection).close();
+            }
+        });
+    }
+
+    @After
+    public void after() throws Throwable {
+        this.context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testReceivesWhileListenerProcessesAndAcknowledgesInOrder() throws Throwable {
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch firstReleased = new CountDownLatch(1);
+        final List<Collection<Message>> batches = Collections.synchronizedList(new ArrayList<Collection<Message>>());
+        this.container.setPipelined(true);
+        this.container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> batch) {
+                    batches.add(new ArrayList<Message>(batch));
+                    if (batch.contains(messages[0])) {
+                        firstStarted.countDown();
+                        await(firstReleased);
+                    }
+                }
+            });
+        this.context.checking(new Expectations() {
+            {
+                one(consumers[0]).receive(with(any(long.class)));
+                will(returnValue(messages[0]));
+                // the second batch is received while the listener still holds the first
+                one(consumers[1]).receive(with(any(long.class)));
+                will(new InFlightAction(firstStarted, new Message[0], firstReleased, messages[1]));
+                // the third is not received until the first is acknowledged, and is the last
+                one(consumers[0]).receive(with(any(long.class)));
+                will(new InFlightAction(null, new Message[] {messages[0]}, null, messages[2]));
+            }
+        });
+
+        this.container.afterPropertiesSet();
+        this.workers.get(0).run();
+
+        Assert.assertEquals(Arrays.asList(this.messages), this.acknowledged);
+        Assert.assertEquals(3, batches.size());
+        Assert.assertFalse(this.container.isFailure());
+    }
+
+    @Test
+    public void testAcknowledgesInOrderWhenLaterBatchFinishesFirst() throws Throwable {
+        final FutureTask<Object> first = new FutureTask<Object>(new Runnable() {
+                public void run() {
+                }
+            }, null);
+        this.container.setAsyncMessageListener(new AsyncBatchMessageListener() {
+                public Future<?> onMessages(Collection<Message> batch) {
+                    if (batch.contains(messages[0])) {
+                        return first;
+                    }
+                    FutureTask<Object> future = new FutureTask<Object>(new Runnable() {
+                            public void run() {
+                            }
+                        }, null);
+                    future.run();
+                    if (batch.contains(messages[1])) {
+                        // the second batch is done; give the processor the chance to acknowledge
+                        // it out of order before finishing the first
+                        sleep();
+                        Assert.assertTrue(acknowledged.isEmpty());
+                        first.run();
+                    }
+                    return future;
+                }
+            });
+        this.context.checking(new Expectations() {
+            {
+                one(consumers[0]).receive(with(any(long.class)));
+                will(returnValue(messages[0]));
+                one(consumers[1]).receive(with(any(long.class)));
+                will(new InFlightAction(null, new Message[0], null, messages[1]));
+                one(consumers[0]).receive(with(any(long.class)));
+                will(new InFlightAction(null, new Message[] {messages[0]}, null, messages[2]));
+            }
+        });
+
+        this.container.afterPropertiesSet();
+        this.workers.get(0).run();
+
+        Assert.assertEquals(Arrays.asList(this.messages), this.acknowledged);
+        Assert.assertFalse(this.container.isFailure());
+    }
+
+    /**
+     * Checks that the given messages were acknowledged before a receive, and so that no more than
+     * maxBatchesInFlight batches are received but not acknowledged, and returns the next message; the
+     * last message also stops the container.
+     */
+    private class InFlightAction implements Action {
+        private final CountDownLatch awaited;
+        private final Message[] acknowledgedBefore;
+        private final CountDownLatch released;
+        private final Message message;
+
+        InFlightAction(CountDownLatch awaited, Message[] acknowledgedBefore, CountDownLatch released,
+                Message message) {
+            this.awaited = awaited;
+            this.acknowledgedBefore = acknowledgedBefore;
+            this.released = released;
+            this.message = message;
+        }
+
+        public void describeTo(Description description) {
+            description.appendText("checks the batches in flight");
+        }
+
+        public Object invoke(Invocation invocation) throws Throwable {
+            if (this.awaited != null) {
+                await(this.awaited);
+            }
+            // a later batch may already be acknowledged on the processor thread, but not an earlier one skipped
+            List<Message> expected = Arrays.asList(this.acknowledgedBefore);
+            synchronized (acknowledged) {
+                Assert.assertTrue(acknowledged.size() >= expected.size());
+                Assert.assertEquals(expected, acknowledged.subList(0, expected.size()));
+            }
+            if (this.released != null) {
+                this.released.countDown();
+            }
+            if (this.message == messages[2]) {
+                container.stop();
+            }
+            return this.message;
+        }
+    }
+
+    /**
+     * Creates a message that records its acknowledgement; it is used from the processor thread, which a
+     * mock must not be.
+     */
+    private Message createMessage() {
+        return (Message) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Message.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("acknowledge")) {
+                            acknowledged.add((Message) proxy);
+                        } else if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        } else if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (method.getReturnType().isPrimitive() && (method.getReturnType() != void.class)) {
+                            return Array.get(Array.newInstance(method.getReturnType(), 1), 0);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(50);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jms.Connection;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+import java.util.Enumeration;
+
+
+/**
+ * Unit tests for {@link com.shopzilla.spring.messaging.jms.mdp.batch.QueueBrowserQueueDepthProvider}
+ */
+public class QueueBrowserQueueDepthProviderTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private QueueBrowserQueueDepthProvider queueBrowserQueueDepthProvider;
+    private Connection connection;
+    private Session session;
+    private Queue queue;
+    private QueueBrowser browser;
+    private Enumeration<?> enumeration;
+
+    @Before
+    public void before() throws Throwable {
+        this.queueBrowserQueueDepthProvider = new QueueBrowserQueueDepthProvider();
+        this.connection = this.context.mock(Connection.class);
+        this.session = this.context.mock(Session.class);
+        this.queue = this.context.mock(Queue.class);
+        this.browser = this.context.mock(QueueBrowser.class);
+        this.enumeration = this.context.mock(Enumeration.class);
+        this.context.checking(new Expectations() {
+            {
+                one(connection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+                will(returnValue(session));
+                one(session).createBrowser(queue);
+                will(returnValue(browser));
+                one(browser).getEnumeration();
+                will(returnValue(enumeration));
+                one(browser).close();
+                one(session).close();
+            }
+        });
+    }
+
+    @After
+    public void after() throws Throwable {
+        this.context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testCountsMessages() throws Throwable {
+        this.context.checking(new Expectations() {
+            {
+                exactly(3).of(enumeration).hasMoreElements();
+                will(onConsecutiveCalls(returnValue(true), returnValue(true), returnValue(false)));
+                exactly(2).of(enumeration).nextElement();
+            }
+        });
+        Assert.assertEquals(2, this.queueBrowserQueueDepthProvider.getQueueDepth(connection, queue));
+    }
+
+    @Test
+    public void testStopsCountingAtMaxCount() throws Throwable {
+        this.queueBrowserQueueDepthProvider.setMaxCount(2);
+        this.context.checking(new Expectations() {
+            {
+                exactly(2).of(enumeration).hasMoreElements();
+                will(returnValue(true));
+                exactly(2).of(enumeration).nextElement();
+            }
+        });
+        Assert.assertEquals(2, this.queueBrowserQueueDepthProvider.getQueueDepth(connection, queue));
+    }
+}
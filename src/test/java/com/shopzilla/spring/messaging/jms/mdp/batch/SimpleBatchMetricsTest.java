@@ -0,0 +1,128 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jms.Message;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Unit tests for {@link com.shopzilla.spring.messaging.jms.mdp.batch.SimpleBatchMetrics}
+ */
+public class SimpleBatchMetricsTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private SimpleBatchMetrics metrics;
+
+    @Before
+    public void before() throws Throwable {
+        this.metrics = new SimpleBatchMetrics();
+    }
+
+    @Test
+    public void testRecordsBatchesByFlushReason() throws Throwable {
+        this.metrics.batchReceived(FlushReason.SIZE, 100, 6000, TimeUnit.MILLISECONDS.toNanos(20), 100, 0);
+        this.metrics.batchReceived(FlushReason.QUIET_PERIOD, 10, 2000, TimeUnit.MILLISECONDS.toNanos(1000), 11, 1);
+        this.metrics.batchReceived(FlushReason.QUIET_PERIOD, 0, 0, TimeUnit.MILLISECONDS.toNanos(1000), 1, 1);
+
+        Assert.assertEquals(2, this.metrics.getBatchCount());
+        Assert.assertEquals(110, this.metrics.getMessageCount());
+        Assert.assertEquals(55, this.metrics.getBatchSizeMean(), 0.001);
+        Assert.assertEquals(100, this.metrics.getBatchSizeMax());
+        Assert.assertEquals(8000, this.metrics.getByteCount());
+        Assert.assertEquals(4000, this.metrics.getBatchBytesMean(), 0.001);
+        Assert.assertEquals(6000, this.metrics.getBatchBytesMax());
+        Assert.assertEquals(1, this.metrics.getFlushCount("SIZE"));
+        Assert.assertEquals(1, this.metrics.getFlushCount("QUIET_PERIOD"));
+        Assert.assertEquals(0, this.metrics.getFlushCount("TIMEOUT"));
+        Assert.assertEquals(20000, this.metrics.getFillTimeMean("SIZE"), 0.001);
+        Assert.assertEquals(2 / 112.0, this.metrics.getIdleReceiveRatio(), 0.0001);
+    }
+
+    @Test
+    public void testRecordsListenerAndAcknowledgeTimes() throws Throwable {
+        this.metrics.listenerInvoked(10, TimeUnit.MICROSECONDS.toNanos(100), false);
+        this.metrics.listenerInvoked(10, TimeUnit.MICROSECONDS.toNanos(300), true);
+        this.metrics.batchAcknowledged(TimeUnit.MICROSECONDS.toNanos(50));
+        this.metrics.reconnecting();
+
+        Assert.assertEquals(300, this.metrics.getListenerLatencyMax());
+        Assert.assertEquals(300, this.metrics.getListenerLatency99thPercentile());
+        Assert.assertEquals(1, this.metrics.getListenerFailureCount());
+        Assert.assertEquals(50, this.metrics.getAcknowledgeTimeMean(), 0.001);
+        Assert.assertEquals(1, this.metrics.getReconnectCount());
+
+        this.metrics.reset();
+        Assert.assertEquals(0, this.metrics.getListenerLatencyMax());
+        Assert.assertEquals(0, this.metrics.getReconnectCount());
+    }
+
+    @Test
+    public void testContainerReportsListenerFailure() throws Throwable {
+        BatchMessageListenerContainer container = new BatchMessageListenerContainer();
+        container.setMetrics(this.metrics);
+        container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                    throw new IllegalArgumentException("bad batch");
+                }
+            });
+        Message message = this.context.mock(Message.class);
+        try {
+            container.invokeListener(Arrays.asList(message), 0, FlushReason.SIZE);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals(1, this.metrics.getListenerFailureCount());
+        }
+    }
+
+    @Test
+    public void testIsStandardMBean() throws Throwable {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.shopzilla.spring.messaging:type=SimpleBatchMetrics,name=test");
+        server.registerMBean(this.metrics, name);
+        try {
+            this.metrics.batchReceived(FlushReason.TIMEOUT, 5, 500, 0, 5, 0);
+            Assert.assertEquals(Long.valueOf(5), server.getAttribute(name, "MessageCount"));
+            Assert.assertEquals(Long.valueOf(1), server.invoke(name, "getFlushCount", new Object[] { "TIMEOUT" },
+                    new String[] { String.class.getName() }));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
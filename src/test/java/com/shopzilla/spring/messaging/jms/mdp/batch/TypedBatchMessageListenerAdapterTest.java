@@ -0,0 +1,119 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.jms.support.converter.MessageConversionException;
+import org.springframework.jms.support.converter.MessageConverter;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Unit tests for {@link com.shopzilla.spring.messaging.jms.mdp.batch.TypedBatchMessageListenerAdapter}
+ */
+public class TypedBatchMessageListenerAdapterTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private TypedBatchMessageListenerAdapter<Integer> adapter;
+    private List<Message> messages;
+    private List<Integer> received;
+    private Message bad;
+    private int executed;
+
+    @Before
+    public void before() throws Throwable {
+        this.messages = new ArrayList<Message>();
+        for (int i = 0; i < 10; i++) {
+            this.messages.add(this.context.mock(Message.class, "message" + i));
+        }
+        this.adapter = new TypedBatchMessageListenerAdapter<Integer>(new TypedBatchMessageListener<Integer>() {
+                public void onMessages(List<Integer> objects) {
+                    received = objects;
+                }
+            });
+        this.adapter.setMessageConverter(new MessageConverter() {
+                public Message toMessage(Object object, Session session) {
+                    throw new UnsupportedOperationException();
+                }
+
+                public Object fromMessage(Message message) throws JMSException {
+                    if (message == bad) {
+                        throw new MessageConversionException("bad message");
+                    }
+                    return messages.indexOf(message);
+                }
+            });
+        this.adapter.setTaskExecutor(new SyncTaskExecutor() {
+                public void execute(Runnable task) {
+                    executed++;
+                    super.execute(task);
+                }
+            });
+        this.adapter.setConversionParallelism(4);
+    }
+
+    @Test
+    public void testConvertsSmallBatchOnCallingThread() throws Throwable {
+        this.adapter.onMessages(this.messages);
+        Assert.assertEquals(0, this.executed);
+        assertReceivedInOrder();
+    }
+
+    @Test
+    public void testConvertsLargeBatchInParts() throws Throwable {
+        this.adapter.setParallelConversionThreshold(10);
+        this.adapter.onMessages(this.messages);
+        // parts of 3, 3, 3 and 1 messages, the first converted on the calling thread
+        Assert.assertEquals(3, this.executed);
+        assertReceivedInOrder();
+    }
+
+    @Test(expected = MessageConversionException.class)
+    public void testConversionFailureInPartIsRethrown() throws Throwable {
+        this.adapter.setParallelConversionThreshold(10);
+        this.bad = this.messages.get(7);
+        this.adapter.onMessages(this.messages);
+    }
+
+    private void assertReceivedInOrder() {
+        Assert.assertEquals(this.messages.size(), this.received.size());
+        for (int i = 0; i < this.received.size(); i++) {
+            Assert.assertEquals(Integer.valueOf(i), this.received.get(i));
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch;
+
+import org.hamcrest.Description;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Action;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Unit tests for stopping the workers of a {@link com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer}
+ */
+public class WorkerStopTest {
+    private Mockery context = new Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private BatchMessageListenerContainer container;
+    private ConnectionFactory connectionFactory;
+    private Connection connection;
+    private Session session;
+    private Queue queue;
+    private MessageConsumer consumer;
+    private Message message;
+    private List<Collection<Message>> batches;
+
+    @Before
+    public void before() throws Throwable {
+        this.connectionFactory = this.context.mock(ConnectionFactory.class);
+        this.connection = this.context.mock(Connection.class);
+        this.session = this.context.mock(Session.class);
+        this.queue = this.context.mock(Queue.class);
+        this.consumer = this.context.mock(MessageConsumer.class);
+        this.message = this.context.mock(Message.class);
+        this.batches = new ArrayList<Collection<Message>>();
+
+        this.container = new BatchMessageListenerContainer();
+        this.container.setConnectionFactory(this.connectionFactory);
+        this.container.setDestinationName("queue");
+        this.container.setBatchSize(10);
+        this.container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                    batches.add(new ArrayList<Message>(messages));
+                }
+            });
+    }
+
+    @After
+    public void after() throws Throwable {
+        // clear the interrupt a test may have left
+        Thread.interrupted();
+        this.context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testInterruptFlushesBatchAndRestoresInterrupt() throws Throwable {
+        this.context.checking(new Expectations() {
+            {
+                one(connectionFactory).createConnection();
+                will(returnValue(connection));
+                one(connection).start();
+                one(connection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+                will(returnValue(session));
+                one(session).createQueue("queue");
+                will(returnValue(queue));
+                one(session).createConsumer(queue);
+                will(returnValue(consumer));
+                one(consumer).receive(with(any(long.class)));
+                will(doAll(new InterruptAction(), returnValue(message)));
+                one(consumer).close();
+                one(session).close();
+            }
+        });
+
+        BatchMessageListenerContainer.Worker worker = this.container.new Worker();
+        worker.run();
+
+        Assert.assertEquals(1, this.batches.size());
+        Assert.assertEquals(1, this.batches.get(0).size());
+        Assert.assertNull(worker.getFailure());
+        Assert.assertTrue(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void testWorkerWaitsForRecoveryIntervalBeforeReconnecting() throws Throwable {
+        this.container.setBatchTimeout(1);
+        this.container.setRecoveryInterval(200);
+        final BatchMessageListenerContainer.Worker worker = this.container.new Worker();
+        final long[] attempts = new long[2];
+        this.context.checking(new Expectations() {
+            {
+                exactly(2).of(connectionFactory).createConnection();
+                will(new CustomAction("fail to connect") {
+                        private int attempt = 0;
+
+                        public Object invoke(Invocation invocation) throws Throwable {
+                            attempts[this.attempt++] = System.nanoTime();
+                            if (this.attempt == 2) {
+                                worker.stop();
+                            }
+                            throw new JMSException("broker unavailable");
+                        }
+                    });
+            }
+        });
+
+        worker.run();
+
+        // the wait is the recovery interval, however short the batch timeout
+        Assert.assertTrue(attempts[1] - attempts[0] >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void testStoppedWorkerDoesNotReceive() throws Throwable {
+        this.context.checking(new Expectations() {
+            {
+                never(connectionFactory).createConnection();
+            }
+        });
+
+        BatchMessageListenerContainer.Worker worker = this.container.new Worker();
+        worker.stop();
+        worker.run();
+
+        Assert.assertTrue(this.batches.isEmpty());
+        Assert.assertNull(worker.getFailure());
+        Assert.assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void testStopRunsCallbackOnceWorkerHasFinished() throws Throwable {
+        final StopCallback callback = new StopCallback();
+        this.context.checking(new Expectations() {
+            {
+                one(connectionFactory).createConnection();
+                will(returnValue(connection));
+                one(connection).start();
+                one(connection).createSession(false, Session.AUTO_ACKNOWLEDGE);
+                will(returnValue(session));
+                one(session).createQueue("queue");
+                will(returnValue(queue));
+                one(session).createConsumer(queue);
+                will(returnValue(consumer));
+                // the container is stopped while the worker waits for the first message
+                one(consumer).receive(with(any(long.class)));
+                will(new StopAction(container, callback));
+                one(consumer).close();
+                one(session).close();
+                one(connection).close();
+            }
+        });
+
+        // runs the worker on this thread, so the container has stopped once it is started
+        this.container.setTaskExecutor(new SyncTaskExecutor());
+        this.container.afterPropertiesSet();
+
+        Assert.assertTrue(this.batches.isEmpty());
+        Assert.assertEquals(0, this.container.getActiveConsumerCount());
+        Assert.assertNull(this.container.getFailure());
+        Assert.assertEquals(1, callback.runs);
+    }
+
+    @Test
+    public void testStopCallbackRunsAtOnceWithoutWorkers() throws Throwable {
+        StopCallback callback = new StopCallback();
+        this.container.stop(callback);
+        Assert.assertEquals(1, callback.runs);
+    }
+
+    @Test
+    public void testStopWaitsForRetiringWorkers() throws Throwable {
+        final StopCallback callback = new StopCallback();
+        final HeldTaskExecutor executor = new HeldTaskExecutor();
+        this.container.setTaskExecutor(executor);
+        this.container.setConcurrentConsumers(2);
+        this.container.afterPropertiesSet();
+
+        // one worker retires, but neither has got round to running
+        this.container.setConcurrentConsumers(1);
+        Assert.assertEquals(1, this.container.getActiveConsumerCount());
+        this.container.stop(callback);
+        Assert.assertEquals(0, callback.runs);
+
+        try {
+            this.container.start();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // the previous stop has not completed
+        }
+
+        executor.tasks.get(0).run();
+        Assert.assertEquals(0, callback.runs);
+        executor.tasks.get(1).run();
+        Assert.assertEquals(1, callback.runs);
+        Assert.assertEquals(0, this.container.getActiveConsumerCount());
+
+        // both workers saw the stop before receiving, so the container can start again
+        this.container.start();
+        Assert.assertEquals(3, executor.tasks.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testVirtualThreadsAndTaskExecutorAreExclusive() throws Throwable {
+        this.container.setTaskExecutor(new SyncTaskExecutor());
+        this.container.setVirtualThreads(true);
+        this.container.afterPropertiesSet();
+    }
+
+    /**
+     * Stops the container from within a receive, as another thread would.
+     */
+    private static class StopAction implements Action {
+        private final BatchMessageListenerContainer container;
+        private final Runnable callback;
+
+        StopAction(BatchMessageListenerContainer container, Runnable callback) {
+            this.container = container;
+            this.callback = callback;
+        }
+
+        public void describeTo(Description description) {
+            description.appendText("stops the container");
+        }
+
+        public Object invoke(Invocation invocation) throws Throwable {
+            this.container.stop(this.callback);
+            return null;
+        }
+    }
+
+    /**
+     * Holds on to the tasks it is given, for the test to run.
+     */
+    @Test
+    public void testRestartAfterDestroyCreatesExecutorsAgain() throws Throwable {
+        final List<HeldExecutorService> executors = new ArrayList<HeldExecutorService>();
+        this.container = new BatchMessageListenerContainer() {
+                @Override
+                ExecutorService newVirtualThreadPerTaskExecutor() {
+                    HeldExecutorService executor = new HeldExecutorService();
+                    executors.add(executor);
+                    return executor;
+                }
+            };
+        this.container.setConnectionFactory(this.connectionFactory);
+        this.container.setDestinationName("queue");
+        this.container.setVirtualThreads(true);
+        this.container.setPartitionCount(2);
+        this.container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                    synchronized (batches) {
+                        batches.add(new ArrayList<Message>(messages));
+                    }
+                }
+            });
+        final List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 2; i++) {
+            messages.add(this.context.mock(Message.class, "message" + i));
+        }
+        this.context.checking(new Expectations() {
+            {
+                for (Message message : messages) {
+                    allowing(message).getObjectProperty("JMSXGroupID");
+                    will(returnValue(null));
+                }
+            }
+        });
+
+        this.container.afterPropertiesSet();
+        Assert.assertEquals(1, executors.size());
+        Assert.assertEquals(1, executors.get(0).tasks.size());
+
+        this.container.destroy();
+        Assert.assertTrue(executors.get(0).isShutdown());
+        // a worker finishing its batch runs the partitions itself
+        this.container.invokeListener(messages, 0, FlushReason.STOP);
+        Assert.assertEquals(2, this.batches.size());
+        executors.get(0).tasks.get(0).run();
+
+        this.container.start();
+        Assert.assertEquals(2, executors.size());
+        Assert.assertEquals(1, executors.get(1).tasks.size());
+        this.container.invokeListener(messages, 0, FlushReason.SIZE);
+        Assert.assertEquals(4, this.batches.size());
+
+        this.container.destroy();
+        executors.get(1).tasks.get(0).run();
+    }
+
+    /**
+     * Holds the tasks it is given, like {@link HeldTaskExecutor}, and rejects them once shut down.
+     */
+    private static class HeldExecutorService extends AbstractExecutorService {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+        private boolean shutdown = false;
+
+        public void execute(Runnable task) {
+            if (this.shutdown) {
+                throw new RejectedExecutionException("shut down");
+            }
+            this.tasks.add(task);
+        }
+
+        public void shutdown() {
+            this.shutdown = true;
+        }
+
+        public List<Runnable> shutdownNow() {
+            this.shutdown = true;
+            return new ArrayList<Runnable>(this.tasks);
+        }
+
+        public boolean isShutdown() {
+            return this.shutdown;
+        }
+
+        public boolean isTerminated() {
+            return this.shutdown;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return this.shutdown;
+        }
+    }
+
+    private static class HeldTaskExecutor implements TaskExecutor {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        public void execute(Runnable task) {
+            this.tasks.add(task);
+        }
+    }
+
+    private static class StopCallback implements Runnable {
+        private int runs = 0;
+
+        public void run() {
+            this.runs++;
+        }
+    }
+
+    /**
+     * Interrupts the thread that is receiving, as an executor shutting down would.
+     */
+    private static class InterruptAction implements Action {
+        public void describeTo(Description description) {
+            description.appendText("interrupts the current thread");
+        }
+
+        public Object invoke(Invocation invocation) throws Throwable {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *
+ * Copyright (C) 2010 Shopzilla, Inc
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ *
+ * http://tech.shopzilla.com
+ *
+ *
+ */
+package com.shopzilla.spring.messaging.jms.mdp.batch.example;
+
+import com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListener;
+import com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer;
+import org.hornetq.api.core.TransportConfiguration;
+import org.hornetq.core.config.Configuration;
+import org.hornetq.core.config.impl.ConfigurationImpl;
+import org.hornetq.core.remoting.impl.invm.InVMAcceptorFactory;
+import org.hornetq.core.remoting.impl.invm.InVMConnectorFactory;
+import org.hornetq.core.server.HornetQServer;
+import org.hornetq.core.server.HornetQServers;
+import org.hornetq.core.server.cluster.QueueConfiguration;
+import org.hornetq.jms.client.HornetQConnectionFactory;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Compares the throughput of {@link com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer}
+ * with and without greedy draining. An embedded, in-VM HornetQ broker is filled with messages before
+ * each run so that the consumer never waits for the producer, and the time taken to drain the queue
+ * is reported in messages per second. Each mode is run twice; the first pair warms up the JVM.
+ *
+ * @see com.shopzilla.spring.messaging.jms.mdp.batch.BatchMessageListenerContainer#setGreedyDrain(boolean)
+ */
+public class GreedyDrainComparison {
+    private static final String QUEUE = "comparisonQueue";
+    private static final boolean[] RUNS = { false, true, false, true };
+    private static final int MESSAGES = 200000;
+    private static final int BATCH_SIZE = 500;
+
+    public static void main(String[] args) throws Throwable {
+        Configuration configuration = new ConfigurationImpl();
+        configuration.setPersistenceEnabled(false);
+        configuration.setSecurityEnabled(false);
+        configuration.setJMXManagementEnabled(false);
+        configuration.getAcceptorConfigurations().add(new TransportConfiguration(InVMAcceptorFactory.class.getName()));
+        // a queue per run, as a stopped container's worker may still be finishing its last receive
+        for (int run = 0; run < RUNS.length; run++) {
+            String address = "jms.queue." + QUEUE + run;
+            configuration.getQueueConfigurations().add(new QueueConfiguration(address, address, null, false));
+        }
+
+        HornetQServer server = HornetQServers.newHornetQServer(configuration, false);
+        server.start();
+
+        HornetQConnectionFactory connectionFactory = new HornetQConnectionFactory(
+            new TransportConfiguration(InVMConnectorFactory.class.getName()));
+        try {
+            for (int run = 0; run < RUNS.length; run++) {
+                fill(connectionFactory, QUEUE + run);
+                double rate = drain(connectionFactory, QUEUE + run, RUNS[run]);
+                System.out.println(String.format("greedyDrain=%s: %.0f messages/s", RUNS[run], rate));
+            }
+        } finally {
+            connectionFactory.close();
+            server.stop();
+        }
+    }
+
+    private static void fill(ConnectionFactory connectionFactory, String queue) throws JMSException {
+        Connection connection = connectionFactory.createConnection();
+        try {
+            Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+            MessageProducer producer = session.createProducer(session.createQueue(queue));
+            producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            for (int i = 1; i <= MESSAGES; i++) {
+                producer.send(session.createTextMessage("message " + i));
+                if ((i % 1000) == 0) {
+                    session.commit();
+                }
+            }
+            session.commit();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static double drain(ConnectionFactory connectionFactory, String queue, boolean greedyDrain)
+        throws InterruptedException {
+        final CountDownLatch remaining = new CountDownLatch(MESSAGES);
+        BatchMessageListenerContainer container = new BatchMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.setDestinationName(queue);
+        container.setBatchSize(BATCH_SIZE);
+        container.setGreedyDrain(greedyDrain);
+        container.setMessageListener(new BatchMessageListener() {
+                public void onMessages(Collection<Message> messages) {
+                    for (int i = 0; i < messages.size(); i++) {
+                        remaining.countDown();
+                    }
+                }
+            });
+
+        long start = System.nanoTime();
+        container.afterPropertiesSet();
+        try {
+            remaining.await();
+            return MESSAGES / ((System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1));
+        } finally {
+            container.destroy();
+        }
+    }
+}